@@ -1,9 +1,124 @@
 package uk.co.omegaprime.btreemap;
 
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.regex.Pattern;
+
 abstract class AbstractNode {
+    // We're going to do a generalized (2, 3) tree i.e. each internal node will have between m and (2m - 1) children inclusive, for m >= 2
+    //
+    // What's a sensible value for m? It would be good if each array we allocate fits within one cache line. On Skylake,
+    // cache lines are 64 bytes, and with compressed OOPS (default for heap sizes < 32GB) object pointers are only 4 bytes long,
+    // implying that MAX_FANOUT = 16 would be a good choice, i.e. MIN_FANOUT = 8.
+    //
+    // With MIN_FANOUT=2:
+    //   Benchmark               Mode  Cnt        Score        Error  Units
+    //   BTreeMapBenchmark.get  thrpt   40  1900386.806 ± 115791.569  ops/s
+    //   BTreeMapBenchmark.put  thrpt   40  1617089.096 ±  32891.292  ops/s
+    //
+    // With MIN_FANOUT=8:
+    //   Benchmark               Mode  Cnt        Score        Error  Units
+    //   BTreeMapBenchmark.get  thrpt   40  4021130.733 ±  31473.315  ops/s
+    //   BTreeMapBenchmark.put  thrpt   40  2821784.716 ± 141837.270  ops/s
+    //
+    // java.util.TreeMap:
+    //   Benchmark               Mode  Cnt        Score        Error  Units
+    //   BTreeMapBenchmark.get  thrpt   40  3226633.131 ± 195725.464  ops/s
+    //   BTreeMapBenchmark.put  thrpt   40  2561772.533 ±  31611.667  ops/s
+    //
+    // After some benchmarking I found that MIN_FANOUT = 16 is ~10% faster than MIN_FANOUT = 8:
+    //
+    // Min Fanout  Get Throughput (ops/sec)  99.9% CI
+    //  4          4216265.491                43520.265
+    //  5          4409875.947                91176.223
+    //  6          4573909.740                59522.347
+    //  7          4833759.229               102045.678
+    //  8          4919145.622                55779.310
+    //  9          4983996.875               116098.733
+    // 10          4727779.650               100560.027
+    // 11          4903133.847               180600.028
+    // 12          5245384.941                48753.377
+    // 13          5248156.906                83901.512
+    // 14          4953773.754                77839.875
+    // 15          5204504.977               174990.439
+    // 16          5305792.167               155854.297
+    // 17          5347054.930                47659.022
+    // 18          5415975.463                53697.353
+    // 19          5398902.319                47398.619
+    // 20          5374494.509                73927.102
+    // 21          5132999.986                40521.262
+    // 22          5161704.152                70647.085
+    //
+    // This is just the default though, for both leaves and internal nodes: every fanout listed in FANOUTS is available.
+    public static final int MIN_FANOUT = 16;
+    public static final int MAX_FANOUT = 2 * MIN_FANOUT - 1;
+
+    /** The minimum fanouts for which we generate node classes. Must agree with FanoutProperties.ALL in build.gradle. */
+    public static final int[] FANOUTS = { 8, 16, 32, 64 };
+
+    static final Unsafe UNSAFE;
+
+    static {
+        try {
+            Constructor<Unsafe> unsafeConstructor = Unsafe.class.getDeclaredConstructor();
+            unsafeConstructor.setAccessible(true);
+            UNSAFE = unsafeConstructor.newInstance();
+        } catch (NoSuchElementException | IllegalAccessException | NoSuchMethodException | InstantiationException | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // LeafNode subclasses keep their keys and values in numbered fields, which they access by offset as if they were arrays
+    static long verifyInstanceFieldsContiguous(Class<?> klass, String prefix, long stride, int count) {
+        final TreeMap<Long, Field> fieldByOffset = new TreeMap<>();
+        for (Field f : klass.getDeclaredFields()) {
+            if (f.getName().matches(Pattern.quote(prefix) + "[0-9]+") && (f.getModifiers() & Modifier.STATIC) == 0) {
+                final long offset = UNSAFE.objectFieldOffset(f);
+                if (fieldByOffset.put(offset, f) != null) {
+                    throw new IllegalStateException("Multiple fields seem to share a single offset " + offset);
+                }
+            }
+        }
+
+        if (fieldByOffset.size() != count) {
+            throw new IllegalStateException("Expected " + count + " " + prefix + " fields, got " + fieldByOffset.size());
+        }
+
+        final Iterator<Map.Entry<Long, Field>> it = fieldByOffset.entrySet().iterator();
+        final long firstOffset = it.next().getKey();
+        long lastOffset = firstOffset;
+        while (it.hasNext()) {
+            final Map.Entry<Long, Field> e = it.next();
+            final long offset = e.getKey();
+            if (offset != lastOffset + stride) {
+                throw new IllegalStateException("Expected fields to be contiguous in memory but " + e.getValue() + " is at " + offset + " and the last one was at " + lastOffset);
+            }
+
+            lastOffset = offset;
+        }
+
+        return firstOffset;
+    }
+
     public int size;
 
+    // Set on nodes which may be reachable from more than one map (see BTreeMap.clone()), and so must be copied rather
+    // than mutated in place. Nodes only reachable through a shared node are implicitly shared too, even if not marked.
+    public boolean shared;
+
+    /** The least number of entries or children this node may hold, unless it is the root */
+    public abstract int minFanout();
+
+    /** The most entries or children this node can hold */
+    public final int maxFanout() {
+        return 2 * minFanout() - 1;
+    }
+
     @Override
     public abstract AbstractNode clone();
-    public abstract AbstractNode clone(int depth);
 }
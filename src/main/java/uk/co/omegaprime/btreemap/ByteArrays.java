@@ -0,0 +1,34 @@
+package uk.co.omegaprime.btreemap;
+
+// The natural order of the keys of a BytesBTreeMap. This is the portable version: when running on Java 17 or later,
+// the Multi-Release jar swaps in the one from src/main/java17, which leaves the work to the JDK's intrinsics.
+final class ByteArrays {
+    private ByteArrays() {}
+
+    /** Compares the arrays lexicographically, treating each byte as unsigned, with a proper prefix coming first */
+    public static int compareUnsigned(byte[] x, byte[] y) {
+        final int n = Math.min(x.length, y.length);
+        for (int i = 0; i < n; i++) {
+            if (x[i] != y[i]) {
+                return (x[i] & 0xFF) - (y[i] & 0xFF);
+            }
+        }
+
+        return x.length - y.length;
+    }
+
+    /**
+     * Returns the first 8 bytes of the array as a big-endian long, padded with zeroes if it's shorter than that. Comparing
+     * two of these with {@link Long#compareUnsigned(long, long)} gives the same answer as {@link #compareUnsigned(byte[], byte[])}
+     * on the arrays themselves, unless they turn out to be equal, in which case the arrays may still differ.
+     */
+    public static long head(byte[] x) {
+        final int n = Math.min(x.length, 8);
+        long result = 0;
+        for (int i = 0; i < n; i++) {
+            result |= (x[i] & 0xFFL) << (56 - 8 * i);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,18 @@
+package uk.co.omegaprime.btreemap;
+
+import java.util.Collections;
+import java.util.Comparator;
+
+// The JDK's comparators for the natural order and its reverse are singletons, so we can recognise them when a map is
+// created, and search with loops that compare the keys directly instead of calling the comparator for each one.
+class Comparators {
+    private Comparators() {}
+
+    /** Returned by {@link Comparator#naturalOrder()} whatever the type of the keys */
+    @SuppressWarnings("rawtypes")
+    public static final Comparator NATURAL = Comparator.<Integer>naturalOrder();
+
+    /** Returned by {@link Collections#reverseOrder()}, {@link Comparator#reverseOrder()} and {@code NATURAL.reversed()} */
+    @SuppressWarnings("rawtypes")
+    public static final Comparator REVERSE = Collections.reverseOrder();
+}
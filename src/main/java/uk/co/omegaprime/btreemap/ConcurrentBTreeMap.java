@@ -0,0 +1,1308 @@
+package uk.co.omegaprime.btreemap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import static uk.co.omegaprime.btreemap.AbstractNode.MAX_FANOUT;
+import static uk.co.omegaprime.btreemap.AbstractNode.MIN_FANOUT;
+
+/**
+ * A thread-safe B-tree based {@link ConcurrentNavigableMap}, intended as a drop-in replacement for
+ * {@link java.util.concurrent.ConcurrentSkipListMap}.
+ * <p>
+ * To get started, call {@link #create()}.
+ * <p>
+ * The tree is shaped like that of {@link BTreeMap}, but has nodes of its own, each of which carries a version word. Readers
+ * never take locks or write to shared memory: they traverse the tree optimistically and then check that the version of
+ * every node they looked at is unchanged, retrying if it isn't. Writers latch only the leaf they modify, plus the nodes
+ * they split to make room for an insertion, or unlink from the tree once a removal has emptied them. This means that
+ * read throughput scales with the number of cores.
+ * <p>
+ * Unlike {@code BTreeMap}, nodes are not merged with their siblings when they become underfull, only removed once they
+ * are empty. So a map from which most (but not all) of the entries have been removed may use rather more space than
+ * one built from just those that remain.
+ * <p>
+ * As with {@code ConcurrentSkipListMap}, null keys and values are not permitted, iterators are weakly consistent, the
+ * result of {@code size()} may be inaccurate if the map is being concurrently modified, and bulk operations such as
+ * {@code putAll} and {@code clear} are not atomic. {@code Entry} instances returned by this class are immutable snapshots.
+ */
+public class ConcurrentBTreeMap<K, V> implements ConcurrentNavigableMap<K, V> {
+    private static final AtomicLongFieldUpdater<Node> VERSION = AtomicLongFieldUpdater.newUpdater(Node.class, "version");
+
+    /** Returns the version of the node once no writer has it latched */
+    private static long awaitUnlatched(Node node) {
+        long version;
+        // Latches are only ever held briefly, so spinning is cheaper than parking
+        while (((version = node.version) & 1) != 0) ;
+        return version;
+    }
+
+    /** True if the node has not been latched since we observed the given version, i.e. everything we read from it since is consistent */
+    private static boolean validate(Node node, long version) {
+        // Stop the plain reads of node contents we made before validating from floating down past the version check
+        Fences.loadFence();
+        return node.version == version;
+    }
+
+    /** Latch a node, but only if it hasn't changed since we observed the given (unlatched) version */
+    private static boolean tryLatch(Node node, long version) {
+        return VERSION.compareAndSet(node, version, version + 1);
+    }
+
+    private static void unlatch(Node node) {
+        // Only the holder of the latch writes to the version, so this needn't be atomic
+        node.version = node.version + 1;
+    }
+
+    // We don't use the nodes of BTreeMap, which keep subtree counts and a flag for copy-on-write sharing that we would
+    // never look at, and have no version word
+    private abstract static class Node {
+        // The low bit is set while a writer has the node latched, and every write bumps it, so it doubles as a version
+        // number for optimistic readers
+        volatile long version;
+        int size;
+    }
+
+    private static final class Leaf<K, V> extends Node {
+        final Object[] keys   = new Object[MAX_FANOUT];
+        final Object[] values = new Object[MAX_FANOUT];
+
+        @SuppressWarnings("unchecked")
+        K getKey(int i) {
+            return (K)keys[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        V getValue(int i) {
+            return (V)values[i];
+        }
+
+        void setKey(int i, K x) {
+            keys[i] = x;
+        }
+
+        void setValue(int i, V x) {
+            values[i] = x;
+        }
+    }
+
+    // Holds size children, separated by size - 1 keys
+    private static final class Internal<K> extends Node {
+        final Object[] keys     = new Object[MAX_FANOUT - 1];
+        final Node[]   children = new Node[MAX_FANOUT];
+
+        @SuppressWarnings("unchecked")
+        K getKey(int i) {
+            return (K)keys[i];
+        }
+
+        void setKey(int i, K x) {
+            keys[i] = x;
+        }
+    }
+
+    // The root node and the depth of the tree must be read atomically, so they are kept together in one immutable object
+    private static final class Root {
+        private final Node node;
+        private final int depth; // Number of levels of internal nodes in the tree
+
+        public Root(Node node, int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
+    }
+
+    /** Create an empty {@code ConcurrentBTreeMap} that uses the natural order of the keys */
+    public static <K extends Comparable<? super K>, V> ConcurrentBTreeMap<K, V> create() {
+        return new ConcurrentBTreeMap<K, V>(null);
+    }
+
+    /**
+     * Create an empty {@code ConcurrentBTreeMap} that uses a custom comparator on the keys.
+     *
+     * @param comparator If null, the natural order of the keys will be used
+     */
+    public static <K, V> ConcurrentBTreeMap<K, V> create(Comparator<? super K> comparator) {
+        return new ConcurrentBTreeMap<K, V>(comparator);
+    }
+
+    /** Create a new map that contains the same entries as the specified {@code SortedMap}, and also shares a key ordering with it */
+    public static <K, V> ConcurrentBTreeMap<K, V> create(SortedMap<K, ? extends V> that) {
+        final ConcurrentBTreeMap<K, V> result = new ConcurrentBTreeMap<K, V>(that.comparator());
+        result.putAll(that);
+        return result;
+    }
+
+    /** Create a new map that contains the same entries as the specified {@code Map}, and uses the natural ordering on the keys */
+    public static <K, V> ConcurrentBTreeMap<K, V> create(Map<? extends K, ? extends V> that) {
+        final ConcurrentBTreeMap<K, V> result = new ConcurrentBTreeMap<K, V>(null);
+        result.putAll(that);
+        return result;
+    }
+
+    private final Comparator<? super K> comparator;
+    private volatile Root root = new Root(new Leaf<K, V>(), 0);
+    private final LongAdder size = new LongAdder();
+
+    private ConcurrentBTreeMap(Comparator<? super K> comparator) {
+        this.comparator = comparator;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(K x, Object y) {
+        return comparator == null ? ((Comparable<Object>)x).compareTo(y) : comparator.compare(x, (K)y);
+    }
+
+    // All of the methods below that read nodes without holding a latch may observe them mid-update. Such reads are only
+    // acted upon after a successful validate(), and the searches return INCONSISTENT if a torn read leaves them unable to
+    // continue (e.g. because they hit a null key that a concurrent writer has only just cleared).
+    private static final int INCONSISTENT = Integer.MIN_VALUE;
+
+    /**
+     * Returns the index of the child of an internal node whose subtree may contain the key, or INCONSISTENT.
+     *
+     * @param below If true, we want to find the greatest key strictly less than this one, so a separator equal to it sends us left
+     */
+    private int childIndex(Internal<K> internal, Object key, boolean below) {
+        final int size = internal.size;
+        for (int i = 0; i < size - 1; i++) {
+            final K separator = internal.getKey(i);
+            if (separator == null) {
+                return INCONSISTENT;
+            }
+
+            final int cmp = compare(separator, key);
+            if (cmp > 0 || (below && cmp == 0)) {
+                return i;
+            }
+        }
+
+        return size > 0 ? size - 1 : INCONSISTENT;
+    }
+
+    /** As {@link Arrays#binarySearch(Object[], Object)}, except that it may also return INCONSISTENT */
+    private int leafIndex(Leaf<K, V> leaf, Object key) {
+        final int size = leaf.size;
+        for (int i = 0; i < size; i++) {
+            final K checkKey = leaf.getKey(i);
+            if (checkKey == null) {
+                return INCONSISTENT;
+            }
+
+            final int cmp = compare(checkKey, key);
+            if (cmp == 0) {
+                return i;
+            } else if (cmp > 0) {
+                return -(i + 1);
+            }
+        }
+
+        return -(size + 1);
+    }
+
+    private static Node getChild(Internal<?> internal, int index) {
+        return index < 0 ? null : internal.children[index];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Objects.requireNonNull(key);
+
+        restart: while (true) {
+            final Root root = this.root;
+            Node node = root.node;
+            long version = awaitUnlatched(node);
+            if (this.root != root) continue;
+
+            for (int depth = root.depth; depth > 0; depth--) {
+                final Internal<K> internal = (Internal<K>)node;
+                final Node child = getChild(internal, childIndex(internal, key, false));
+                if (child == null || !validate(internal, version)) continue restart;
+
+                // Must revalidate the parent after reading the child version, or the child might have been split in
+                // the meantime, and the key we're looking for moved to a sibling
+                final long childVersion = awaitUnlatched(child);
+                if (!validate(internal, version)) continue restart;
+
+                node = child;
+                version = childVersion;
+            }
+
+            final Leaf<K, V> leaf = (Leaf<K, V>)node;
+            final int index = leafIndex(leaf, key);
+            final V result = index >= 0 ? leaf.getValue(index) : null;
+            if (index == INCONSISTENT || !validate(leaf, version)) continue;
+
+            return result;
+        }
+    }
+
+    // A snapshot of consecutive entries from one leaf, in the direction of travel
+    private static final class Batch {
+        private final Object[] keys, values;
+        private int size;
+        // Lower bound (upper bound if descending) on the keys of the leaf following this one in the direction of
+        // travel, or null if there is no such leaf
+        private Object next;
+
+        public Batch(int capacity) {
+            this.keys = new Object[capacity];
+            this.values = new Object[capacity];
+        }
+    }
+
+    /**
+     * Fills the batch with entries from the leaf that would contain the key, starting from the first one greater than
+     * it (less than it if descending), or equal to it if inclusive. A null key means start from the first (last) entry.
+     * <p>
+     * The batch will not contain any entries if the leaf does not contain any beyond the key, but in that case the
+     * search may be continued from {@code batch.next}.
+     */
+    @SuppressWarnings("unchecked")
+    private void read(Object key, boolean inclusive, boolean descending, Batch batch) {
+        final boolean below = descending && !inclusive;
+
+        restart: while (true) {
+            final Root root = this.root;
+            Node node = root.node;
+            long version = awaitUnlatched(node);
+            if (this.root != root) continue;
+
+            Object next = null;
+            for (int depth = root.depth; depth > 0; depth--) {
+                final Internal<K> internal = (Internal<K>)node;
+                final int size = internal.size;
+                final int index = key == null ? (descending ? size - 1 : 0) : childIndex(internal, key, below);
+                final Node child = getChild(internal, index);
+                final Object fence = child == null ? null
+                                   : descending ? (index > 0 ? internal.getKey(index - 1) : null)
+                                                : (index < size - 1 ? internal.getKey(index) : null);
+                if (child == null || !validate(internal, version)) continue restart;
+
+                final long childVersion = awaitUnlatched(child);
+                if (!validate(internal, version)) continue restart;
+
+                // The innermost fence is the tightest one
+                if (fence != null) next = fence;
+                node = child;
+                version = childVersion;
+            }
+
+            final Leaf<K, V> leaf = (Leaf<K, V>)node;
+            final int size = leaf.size;
+            final int start;
+            if (key == null) {
+                start = descending ? size - 1 : 0;
+            } else {
+                final int index = leafIndex(leaf, key);
+                if (index == INCONSISTENT) continue;
+
+                if (index >= 0) {
+                    start = inclusive ? index : descending ? index - 1 : index + 1;
+                } else {
+                    final int insertionPoint = -(index + 1);
+                    start = descending ? insertionPoint - 1 : insertionPoint;
+                }
+            }
+
+            int n = 0;
+            for (int i = start; i >= 0 && i < size && n < batch.keys.length; i += descending ? -1 : 1) {
+                final Object k = leaf.getKey(i), v = leaf.getValue(i);
+                if (k == null || v == null) continue restart;
+
+                batch.keys[n] = k;
+                batch.values[n] = v;
+                n++;
+            }
+
+            if (!validate(leaf, version)) continue;
+
+            batch.size = n;
+            batch.next = next;
+            return;
+        }
+    }
+
+    /** Returns the first entry beyond the key in the given direction, or the first entry in that direction if the key is null */
+    @SuppressWarnings("unchecked")
+    private Entry<K, V> find(Object key, boolean inclusive, boolean descending) {
+        final Batch batch = new Batch(1);
+        while (true) {
+            read(key, inclusive, descending, batch);
+            if (batch.size > 0) {
+                return new AbstractMap.SimpleImmutableEntry<>((K)batch.keys[0], (V)batch.values[0]);
+            } else if (batch.next == null) {
+                return null;
+            }
+
+            // The fence key is a lower bound on the next leaf when ascending, but a strict upper bound when descending
+            key = batch.next;
+            inclusive = !descending;
+        }
+    }
+
+    /**
+     * Returns the leaf that should contain the key, latched. If we are going to insert the key, we eagerly split any
+     * full nodes we meet on the way down, so that there is always room for the insertion (and there is always room in
+     * the parent of a node we split for the new separator).
+     */
+    @SuppressWarnings("unchecked")
+    private Leaf<K, V> latchLeaf(Object key, boolean forInsert) {
+        restart: while (true) {
+            final Root root = this.root;
+            Node node = root.node;
+            long version = awaitUnlatched(node);
+            if (this.root != root) continue;
+
+            Internal<K> parent = null;
+            long parentVersion = 0;
+            int parentIndex = 0;
+            for (int depth = root.depth; ; depth--) {
+                if (forInsert && node.size == MAX_FANOUT) {
+                    // If we manage to latch the node at the version we started reading it at, the size we saw was accurate.
+                    // Likewise if we latch the root at that version then it is still the root, since a new root is only
+                    // installed while the old one is latched.
+                    if (parent != null && !tryLatch(parent, parentVersion)) continue restart;
+                    if (!tryLatch(node, version)) {
+                        if (parent != null) unlatch(parent);
+                        continue restart;
+                    }
+
+                    split(root, parent, parentIndex, node, depth);
+
+                    unlatch(node);
+                    if (parent != null) unlatch(parent);
+                    continue restart;
+                }
+
+                if (depth == 0) {
+                    if (!tryLatch(node, version)) continue restart;
+                    return (Leaf<K, V>)node;
+                }
+
+                final Internal<K> internal = (Internal<K>)node;
+                final int index = childIndex(internal, key, false);
+                final Node child = getChild(internal, index);
+                if (child == null || !validate(internal, version)) continue restart;
+
+                final long childVersion = awaitUnlatched(child);
+                if (!validate(internal, version)) continue restart;
+
+                parent = internal;
+                parentVersion = version;
+                parentIndex = index;
+                node = child;
+                version = childVersion;
+            }
+        }
+    }
+
+    /**
+     * Splits a full node in two, adding the new right-hand node to the parent (or to a new root if it has no parent).
+     * The caller must hold the latches on both the node and its parent.
+     */
+    @SuppressWarnings("unchecked")
+    private void split(Root root, Internal<K> parent, int parentIndex, Node node, int depth) {
+        final int size = node.size;
+        final Node right;
+        final K separator;
+        if (depth == 0) {
+            final Leaf<K, V> leaf = (Leaf<K, V>)node, rightLeaf = new Leaf<>();
+            rightLeaf.size = size - MIN_FANOUT;
+            System.arraycopy(leaf.keys,   MIN_FANOUT, rightLeaf.keys,   0, rightLeaf.size);
+            System.arraycopy(leaf.values, MIN_FANOUT, rightLeaf.values, 0, rightLeaf.size);
+
+            leaf.size = MIN_FANOUT;
+            for (int i = MIN_FANOUT; i < size; i++) {
+                leaf.setKey(i, null);
+                leaf.setValue(i, null);
+            }
+
+            separator = rightLeaf.getKey(0);
+            right = rightLeaf;
+        } else {
+            final Internal<K> internal = (Internal<K>)node, rightInternal = new Internal<>();
+            rightInternal.size = size - MIN_FANOUT;
+            System.arraycopy(internal.keys, MIN_FANOUT, rightInternal.keys, 0, rightInternal.size - 1);
+            System.arraycopy(internal.children, MIN_FANOUT, rightInternal.children, 0, rightInternal.size);
+
+            separator = internal.getKey(MIN_FANOUT - 1);
+            internal.size = MIN_FANOUT;
+            for (int i = MIN_FANOUT; i < size; i++) {
+                internal.setKey(i - 1, null);
+                internal.children[i] = null;
+            }
+
+            right = rightInternal;
+        }
+
+        if (parent == null) {
+            final Internal<K> newRoot = new Internal<>();
+            newRoot.size = 2;
+            newRoot.setKey(0, separator);
+            newRoot.children[0] = node;
+            newRoot.children[1] = right;
+            this.root = new Root(newRoot, root.depth + 1);
+        } else {
+            final int parentSize = parent.size;
+            System.arraycopy(parent.keys, parentIndex, parent.keys, parentIndex + 1, parentSize - parentIndex - 1);
+            System.arraycopy(parent.children, parentIndex + 1, parent.children, parentIndex + 2, parentSize - parentIndex - 1);
+            parent.setKey(parentIndex, separator);
+            parent.children[parentIndex + 1] = right;
+            parent.size = parentSize + 1;
+        }
+    }
+
+    private V putInternal(K key, V value, boolean onlyIfAbsent) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        // Make sure the key is of a sensible type even if the map is empty, like TreeMap does
+        compare(key, key);
+
+        final Leaf<K, V> leaf = latchLeaf(key, true);
+        try {
+            final int index = leafIndex(leaf, key);
+            if (index >= 0) {
+                final V result = leaf.getValue(index);
+                if (!onlyIfAbsent) {
+                    leaf.setValue(index, value);
+                }
+                return result;
+            }
+
+            final int insertionPoint = -(index + 1);
+            final int size = leaf.size;
+            System.arraycopy(leaf.keys,   insertionPoint, leaf.keys,   insertionPoint + 1, size - insertionPoint);
+            System.arraycopy(leaf.values, insertionPoint, leaf.values, insertionPoint + 1, size - insertionPoint);
+            leaf.setKey  (insertionPoint, key);
+            leaf.setValue(insertionPoint, value);
+            leaf.size = size + 1;
+            this.size.increment();
+            return null;
+        } finally {
+            unlatch(leaf);
+        }
+    }
+
+    /** Removes the key if it is present, and either {@code expected} is null or equal to the current value */
+    private V removeInternal(Object key, Object expected) {
+        Objects.requireNonNull(key);
+
+        final Leaf<K, V> leaf = latchLeaf(key, false);
+        final V result;
+        final boolean emptied;
+        try {
+            final int index = leafIndex(leaf, key);
+            if (index < 0) {
+                return null;
+            }
+
+            result = leaf.getValue(index);
+            if (expected != null && !expected.equals(result)) {
+                return null;
+            }
+
+            final int size = leaf.size - 1;
+            System.arraycopy(leaf.keys,   index + 1, leaf.keys,   index, size - index);
+            System.arraycopy(leaf.values, index + 1, leaf.values, index, size - index);
+            leaf.setKey  (size, null);
+            leaf.setValue(size, null);
+            leaf.size = size;
+            this.size.decrement();
+            emptied = size == 0;
+        } finally {
+            unlatch(leaf);
+        }
+
+        // Otherwise every search that reaches the leaf would have to start again from the root to get past it
+        if (emptied) {
+            unlinkEmptyLeaf(key);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the leaf that should contain the key from the tree if it is (still) empty, along with any ancestors of
+     * which it is the only descendant. If that leaves the root with just one child, the child becomes the new root.
+     */
+    @SuppressWarnings("unchecked")
+    private void unlinkEmptyLeaf(Object key) {
+        restart: while (true) {
+            final Root root = this.root;
+            if (root.depth == 0) {
+                // An empty root leaf is just an empty map
+                return;
+            }
+
+            // path[i + 1] is child number indexes[i] of path[i], and we observed it at versions[i + 1]
+            final Node[] path = new Node[root.depth + 1];
+            final long[] versions = new long[root.depth + 1];
+            final int[] indexes = new int[root.depth];
+            path[0] = root.node;
+            versions[0] = awaitUnlatched(root.node);
+            if (this.root != root) continue;
+
+            for (int i = 0; i < root.depth; i++) {
+                final Internal<K> internal = (Internal<K>)path[i];
+                final int index = childIndex(internal, key, false);
+                final Node child = getChild(internal, index);
+                if (child == null || !validate(internal, versions[i])) continue restart;
+
+                final long childVersion = awaitUnlatched(child);
+                if (!validate(internal, versions[i])) continue restart;
+
+                indexes[i] = index;
+                path[i + 1] = child;
+                versions[i + 1] = childVersion;
+            }
+
+            // The sizes we read here are only trustworthy once we've latched the nodes at the versions we observed
+            if (path[root.depth].size != 0) return;
+            int top = root.depth - 1;
+            while (top >= 0 && path[top].size == 1) top--;
+
+            // We remove a child from path[top], or if there is no such node, everything on the path is empty
+            final int first = Math.max(top, 0);
+            for (int i = first; i <= root.depth; i++) {
+                if (!tryLatch(path[i], versions[i])) {
+                    for (int j = first; j < i; j++) unlatch(path[j]);
+                    continue restart;
+                }
+            }
+
+            if (top < 0) {
+                this.root = new Root(path[root.depth], 0);
+            } else {
+                final Internal<K> parent = (Internal<K>)path[top];
+                removeChild(parent, indexes[top]);
+                if (top == 0 && parent.size == 1) {
+                    this.root = new Root(parent.children[0], root.depth - 1);
+                }
+            }
+
+            // Bumping the versions of the unlinked nodes sends anyone still looking at them back to the root
+            for (int i = first; i <= root.depth; i++) unlatch(path[i]);
+            return;
+        }
+    }
+
+    /** Removes a child, and a separator next to it, from an internal node with at least two. The caller must hold its latch. */
+    private static <K> void removeChild(Internal<K> internal, int index) {
+        final int size = internal.size;
+        final int keyIndex = index == 0 ? 0 : index - 1;
+        System.arraycopy(internal.keys, keyIndex + 1, internal.keys, keyIndex, size - keyIndex - 2);
+        System.arraycopy(internal.children, index + 1, internal.children, index, size - index - 1);
+        internal.setKey(size - 2, null);
+        internal.children[size - 1] = null;
+        internal.size = size - 1;
+    }
+
+    /** The number of nodes in the tree, which is only meaningful if it isn't being modified concurrently */
+    int nodeCount() {
+        return nodeCount(root.node, root.depth);
+    }
+
+    private static int nodeCount(Node node, int depth) {
+        int result = 1;
+        if (depth > 0) {
+            final Internal<?> internal = (Internal<?>)node;
+            for (int i = 0; i < internal.size; i++) {
+                result += nodeCount(internal.children[i], depth - 1);
+            }
+        }
+        return result;
+    }
+
+    /** Replaces the value for the key if it is present, and either {@code expected} is null or equal to the current value */
+    private V replaceInternal(K key, Object expected, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+
+        final Leaf<K, V> leaf = latchLeaf(key, false);
+        try {
+            final int index = leafIndex(leaf, key);
+            if (index < 0) {
+                return null;
+            }
+
+            final V result = leaf.getValue(index);
+            if (expected != null && !expected.equals(result)) {
+                return null;
+            }
+
+            leaf.setValue(index, value);
+            return result;
+        } finally {
+            unlatch(leaf);
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return putInternal(key, value, false);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putInternal(key, value, true);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return removeInternal(key, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        Objects.requireNonNull(key);
+        return value != null && removeInternal(key, value) != null;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        return replaceInternal(key, oldValue, newValue) != null;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return replaceInternal(key, null, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> that) {
+        for (Map.Entry<? extends K, ? extends V> e : that.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public void clear() {
+        clear(firstIterator());
+    }
+
+    private static void clear(Iterator<?> it) {
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    @Override
+    public int size() {
+        final long size = this.size.sum();
+        return size < 0 ? 0 : size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        // Unlike size(), this is exact in the absence of concurrent modification
+        return firstEntry() == null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return containsValue(firstIterator(), value);
+    }
+
+    private static boolean containsValue(Iterator<? extends Entry<?, ?>> it, Object value) {
+        Objects.requireNonNull(value);
+        while (it.hasNext()) {
+            if (value.equals(it.next().getValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    @Override
+    public String toString() {
+        return Iterables.toMapString(this.entrySet());
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return SortedMaps.equals(this, that);
+    }
+
+    @Override
+    public int hashCode() {
+        return Iterables.hashCode(entrySet());
+    }
+
+    private static <K> K getEntryKey(Entry<K, ?> e) {
+        return e == null ? null : e.getKey();
+    }
+
+    private static <K> K getEntryKeyOrThrow(Entry<K, ?> e) {
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+
+        return e.getKey();
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        return find(Objects.requireNonNull(key), false, true);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return getEntryKey(lowerEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        return find(Objects.requireNonNull(key), true, true);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return getEntryKey(floorEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+        return find(Objects.requireNonNull(key), true, false);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return getEntryKey(ceilingEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        return find(Objects.requireNonNull(key), false, false);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return getEntryKey(higherEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> firstEntry() {
+        return find(null, true, false);
+    }
+
+    @Override
+    public Entry<K, V> lastEntry() {
+        return find(null, true, true);
+    }
+
+    @Override
+    public K firstKey() {
+        return getEntryKeyOrThrow(firstEntry());
+    }
+
+    @Override
+    public K lastKey() {
+        return getEntryKeyOrThrow(lastEntry());
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry() {
+        return poll(this, false);
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry() {
+        return poll(this, true);
+    }
+
+    private static <K, V> Entry<K, V> poll(NavigableMap<K, V> map, boolean last) {
+        while (true) {
+            final Entry<K, V> e = last ? map.lastEntry() : map.firstEntry();
+            // If we lose a race with another thread to remove the entry, just try again
+            if (e == null || map.remove(e.getKey(), e.getValue())) {
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new NavigableMapKeySet<>(this);
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new MapValueCollection<>(this);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new MapEntrySet<>(this, this::firstIterator);
+    }
+
+    private Iterator<Entry<K, V>> firstIterator() {
+        return new EntryIterator(null, true, null, true, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> descendingMap() {
+        return new SubMap<>(this, null, false, null, false, true);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, Objects.requireNonNull(fromKey), fromInclusive, Objects.requireNonNull(toKey), toInclusive, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, null, false, Objects.requireNonNull(toKey), inclusive, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, Objects.requireNonNull(fromKey), inclusive, null, false, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    // Weakly consistent: works a leaf at a time, so it will reflect all modifications made before it reached a leaf
+    // and none made after, but beyond that it makes no promises
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Object to; // Null if unbounded
+        private final boolean toInclusive;
+        private final boolean descending;
+        private final Batch batch = new Batch(MAX_FANOUT);
+        private int index;
+        private Entry<K, V> lastReturned;
+
+        public EntryIterator(Object from, boolean fromInclusive, Object to, boolean toInclusive, boolean descending) {
+            this.to = to;
+            this.toInclusive = toInclusive;
+            this.descending = descending;
+            read(from, fromInclusive, descending, batch);
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean inBounds(Object key) {
+            if (to == null) {
+                return true;
+            }
+
+            final int cmp = compare((K)key, to);
+            return (descending ? cmp > 0 : cmp < 0) || (cmp == 0 && toInclusive);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index == batch.size && batch.next != null) {
+                read(batch.next, !descending, descending, batch);
+                index = 0;
+            }
+
+            return index < batch.size && inBounds(batch.keys[index]);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            lastReturned = new AbstractMap.SimpleImmutableEntry<>((K)batch.keys[index], (V)batch.values[index]);
+            index++;
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+
+            ConcurrentBTreeMap.this.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+    }
+
+    // A view of the keys between lo and hi (either of which may be null to indicate that it is unbounded), which may be
+    // presented in descending order. Bounds are always in terms of the ordering of the underlying map.
+    private static final class SubMap<K, V> implements ConcurrentNavigableMap<K, V> {
+        private final ConcurrentBTreeMap<K, V> m;
+        private final K lo, hi;
+        private final boolean loInclusive, hiInclusive;
+        private final boolean descending;
+
+        public SubMap(ConcurrentBTreeMap<K, V> m, K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+            if (lo != null && hi != null && m.compare(lo, hi) > 0) {
+                throw new IllegalArgumentException("inconsistent range");
+            }
+
+            this.m = m;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending = descending;
+        }
+
+        private boolean tooLow(Object key) {
+            if (lo == null) {
+                return false;
+            }
+
+            final int cmp = m.compare(lo, key);
+            return cmp > 0 || (cmp == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(Object key) {
+            if (hi == null) {
+                return false;
+            }
+
+            final int cmp = m.compare(hi, key);
+            return cmp < 0 || (cmp == 0 && !hiInclusive);
+        }
+
+        private boolean inRange(Object key) {
+            return !tooLow(Objects.requireNonNull(key)) && !tooHigh(key);
+        }
+
+        private void checkInRange(Object key) {
+            if (!inRange(key)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+        }
+
+        // The next four methods navigate in the order of the underlying map, regardless of this.descending
+
+        private Entry<K, V> lowest() {
+            final Entry<K, V> e = m.find(lo, loInclusive, false);
+            return e == null || tooHigh(e.getKey()) ? null : e;
+        }
+
+        private Entry<K, V> highest() {
+            final Entry<K, V> e = m.find(hi, hiInclusive, true);
+            return e == null || tooLow(e.getKey()) ? null : e;
+        }
+
+        private Entry<K, V> above(Object key, boolean inclusive) {
+            if (tooLow(Objects.requireNonNull(key))) {
+                return lowest();
+            }
+
+            final Entry<K, V> e = m.find(key, inclusive, false);
+            return e == null || tooHigh(e.getKey()) ? null : e;
+        }
+
+        private Entry<K, V> below(Object key, boolean inclusive) {
+            if (tooHigh(Objects.requireNonNull(key))) {
+                return highest();
+            }
+
+            final Entry<K, V> e = m.find(key, inclusive, true);
+            return e == null || tooLow(e.getKey()) ? null : e;
+        }
+
+        private Iterator<Entry<K, V>> firstIterator() {
+            return descending ? m.new EntryIterator(hi, hiInclusive, lo, loInclusive, true)
+                              : m.new EntryIterator(lo, loInclusive, hi, hiInclusive, false);
+        }
+
+        @Override
+        public V get(Object key) {
+            return inRange(key) ? m.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return inRange(key) && m.containsKey(key);
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            return ConcurrentBTreeMap.containsValue(firstIterator(), value);
+        }
+
+        @Override
+        public V put(K key, V value) {
+            checkInRange(key);
+            return m.put(key, value);
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            checkInRange(key);
+            return m.putIfAbsent(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return inRange(key) ? m.remove(key) : null;
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            return inRange(key) && m.remove(key, value);
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            checkInRange(key);
+            return m.replace(key, oldValue, newValue);
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            checkInRange(key);
+            return m.replace(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends K, ? extends V> that) {
+            for (Map.Entry<? extends K, ? extends V> e : that.entrySet()) {
+                put(e.getKey(), e.getValue());
+            }
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentBTreeMap.clear(firstIterator());
+        }
+
+        @Override
+        public int size() {
+            long size = 0;
+            for (Iterator<Entry<K, V>> it = firstIterator(); it.hasNext(); it.next()) {
+                size++;
+            }
+
+            return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return lowest() == null;
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return descending ? Collections.reverseOrder(m.comparator) : m.comparator;
+        }
+
+        @Override
+        public String toString() {
+            return Iterables.toMapString(this.entrySet());
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return SortedMaps.equals(this, that);
+        }
+
+        @Override
+        public int hashCode() {
+            return Iterables.hashCode(entrySet());
+        }
+
+        @Override
+        public Entry<K, V> lowerEntry(K key) {
+            return descending ? above(key, false) : below(key, false);
+        }
+
+        @Override
+        public K lowerKey(K key) {
+            return getEntryKey(lowerEntry(key));
+        }
+
+        @Override
+        public Entry<K, V> floorEntry(K key) {
+            return descending ? above(key, true) : below(key, true);
+        }
+
+        @Override
+        public K floorKey(K key) {
+            return getEntryKey(floorEntry(key));
+        }
+
+        @Override
+        public Entry<K, V> ceilingEntry(K key) {
+            return descending ? below(key, true) : above(key, true);
+        }
+
+        @Override
+        public K ceilingKey(K key) {
+            return getEntryKey(ceilingEntry(key));
+        }
+
+        @Override
+        public Entry<K, V> higherEntry(K key) {
+            return descending ? below(key, false) : above(key, false);
+        }
+
+        @Override
+        public K higherKey(K key) {
+            return getEntryKey(higherEntry(key));
+        }
+
+        @Override
+        public Entry<K, V> firstEntry() {
+            return descending ? highest() : lowest();
+        }
+
+        @Override
+        public Entry<K, V> lastEntry() {
+            return descending ? lowest() : highest();
+        }
+
+        @Override
+        public K firstKey() {
+            return getEntryKeyOrThrow(firstEntry());
+        }
+
+        @Override
+        public K lastKey() {
+            return getEntryKeyOrThrow(lastEntry());
+        }
+
+        @Override
+        public Entry<K, V> pollFirstEntry() {
+            return poll(this, false);
+        }
+
+        @Override
+        public Entry<K, V> pollLastEntry() {
+            return poll(this, true);
+        }
+
+        @Override
+        public NavigableSet<K> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> navigableKeySet() {
+            return new NavigableMapKeySet<>(this);
+        }
+
+        @Override
+        public NavigableSet<K> descendingKeySet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public Collection<V> values() {
+            return new MapValueCollection<>(this);
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new MapEntrySet<>(this, this::firstIterator);
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, V> descendingMap() {
+            return new SubMap<>(m, lo, loInclusive, hi, hiInclusive, !descending);
+        }
+
+        /** Arguments are in the order of this view, and null bounds are inherited from this view */
+        private SubMap<K, V> restrict(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            if (descending) {
+                final K key = fromKey;
+                fromKey = toKey;
+                toKey = key;
+
+                final boolean inclusive = fromInclusive;
+                fromInclusive = toInclusive;
+                toInclusive = inclusive;
+            }
+
+            if (fromKey == null) {
+                fromKey = lo;
+                fromInclusive = loInclusive;
+            } else if (lo != null) {
+                final int cmp = m.compare(fromKey, lo);
+                if (cmp < 0 || (cmp == 0 && !loInclusive && fromInclusive)) {
+                    throw new IllegalArgumentException("key out of range");
+                }
+            }
+
+            if (toKey == null) {
+                toKey = hi;
+                toInclusive = hiInclusive;
+            } else if (hi != null) {
+                final int cmp = m.compare(toKey, hi);
+                if (cmp > 0 || (cmp == 0 && !hiInclusive && toInclusive)) {
+                    throw new IllegalArgumentException("key out of range");
+                }
+            }
+
+            return new SubMap<>(m, fromKey, fromInclusive, toKey, toInclusive, descending);
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            return restrict(Objects.requireNonNull(fromKey), fromInclusive, Objects.requireNonNull(toKey), toInclusive);
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+            return restrict(null, false, Objects.requireNonNull(toKey), inclusive);
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+            return restrict(Objects.requireNonNull(fromKey), inclusive, null, false);
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+            return tailMap(fromKey, true);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package uk.co.omegaprime.btreemap;
+
+// Java 8 still has a fully working Unsafe, so we make use of it. The Multi-Release jar replaces this class with the
+// one in src/main/java17 on later JVMs.
+final class DefaultNodeLayout {
+    private DefaultNodeLayout() {}
+
+    static final NodeLayout VALUE = NodeLayout.FIELDS;
+}
@@ -0,0 +1,13 @@
+package uk.co.omegaprime.btreemap;
+
+// Memory fences, for the optimistic readers of ConcurrentBTreeMap. Java 8 has no public API for these, so this version
+// borrows the Unsafe instance that AbstractNode already holds: when running on Java 17 or later, the Multi-Release jar
+// swaps in the one from src/main/java17, which uses VarHandle instead.
+final class Fences {
+    private Fences() {}
+
+    /** Stops loads before the fence from being reordered with loads and stores after it */
+    public static void loadFence() {
+        AbstractNode.UNSAFE.loadFence();
+    }
+}
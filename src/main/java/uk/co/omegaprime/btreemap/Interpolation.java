@@ -0,0 +1,14 @@
+package uk.co.omegaprime.btreemap;
+
+// Shared by the interpolating searches of leaf and internal nodes, with both int and long keys (see SearchStrategy)
+final class Interpolation {
+    private Interpolation() {}
+
+    /** Where key would be in [low, high] if lowKey <= key <= highKey and the keys in between were evenly spread */
+    static int guess(int low, int high, double lowKey, double highKey, double key) {
+        // The differences between long keys may not fit in a long, but rounding the keys to doubles can't make
+        // key - lowKey the bigger one, so the guess never goes past high
+        final double range = highKey - lowKey;
+        return range == 0 ? low : low + (int)((high - low) * ((key - lowKey) / range));
+    }
+}
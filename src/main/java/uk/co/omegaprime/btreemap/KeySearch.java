@@ -0,0 +1,26 @@
+package uk.co.omegaprime.btreemap;
+
+// Searches within the sorted keys of a node, for those key types where we can do better than a plain loop: so far just
+// int (see the Java 17 version for why not long). This is the portable version, which just uses a plain loop: when running on Java 17 or later, the Multi-Release jar swaps in
+// the one from src/main/java17, which can use the Vector API instead.
+final class KeySearch {
+    private KeySearch() {}
+
+    /** Whether searches are done with vector instructions. Never true for this version of the class. */
+    // Not a constant expression, or javac would copy it into the classes that use it, which then wouldn't see the value
+    // from the Java 17 version
+    public static final boolean VECTORIZED = Boolean.FALSE.booleanValue();
+
+    /** Returns the number of the first n keys that are less than or equal to the key */
+    public static int countLessOrEqual(int[] keys, int n, int key) {
+        int i;
+        for (i = 0; i < n; i++) {
+            if (keys[i] > key) {
+                break;
+            }
+        }
+
+        return i;
+    }
+
+}
@@ -1,14 +1,21 @@
 package uk.co.omegaprime.btreemap;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 class MapEntrySet<K, V> implements Set<Map.Entry<K, V>> {
     private final Map<K, V> that;
     private final Iterable<Map.Entry<K, V>> iterable;
+    private final Supplier<Spliterator<Map.Entry<K, V>>> spliterator; // Null to use the default spliterator
 
     public MapEntrySet(Map<K, V> that, Iterable<Map.Entry<K, V>> iterable) {
+        this(that, iterable, null);
+    }
+
+    public MapEntrySet(Map<K, V> that, Iterable<Map.Entry<K, V>> iterable, Supplier<Spliterator<Map.Entry<K, V>>> spliterator) {
         this.that = that;
         this.iterable = iterable;
+        this.spliterator = spliterator;
     }
 
     @Override
@@ -155,4 +162,9 @@ class MapEntrySet<K, V> implements Set<Map.Entry<K, V>> {
     public Iterator<Map.Entry<K, V>> iterator() {
         return iterable.iterator();
     }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return spliterator == null ? Spliterators.spliterator(this, Spliterator.DISTINCT) : spliterator.get();
+    }
 }
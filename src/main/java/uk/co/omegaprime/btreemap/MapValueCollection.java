@@ -93,6 +93,11 @@ class MapValueCollection<V> implements Collection<V> {
         };
     }
 
+    @Override
+    public Spliterator<V> spliterator() {
+        return Spliterators2.values(that.entrySet().spliterator());
+    }
+
     @Override
     public Object[] toArray() {
         final Object[] result = new Object[size()];
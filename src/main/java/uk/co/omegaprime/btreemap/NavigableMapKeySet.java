@@ -200,6 +200,11 @@ class NavigableMapKeySet<K> implements NavigableSet<K> {
         return new NavigableMapKeySet<>(that.descendingMap()).iterator();
     }
 
+    @Override
+    public Spliterator<K> spliterator() {
+        return Spliterators2.keys(that.entrySet().spliterator(), comparator());
+    }
+
     @Override
     public Comparator<? super K> comparator() {
         return that.comparator();
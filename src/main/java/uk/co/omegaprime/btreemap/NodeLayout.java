@@ -0,0 +1,32 @@
+package uk.co.omegaprime.btreemap;
+
+import java.util.Locale;
+
+/** The ways in which a leaf node can store its keys and values */
+public enum NodeLayout {
+    /**
+     * Keys and values live in numbered fields of the node itself, which are accessed by offset using sun.misc.Unsafe.
+     * This saves the indirection (and object headers) of separate arrays, but relies on an API that newer JDKs are
+     * removing.
+     */
+    FIELDS,
+    /** Keys and values live in a pair of arrays belonging to the node. This uses no unsupported APIs at all. */
+    ARRAYS;
+
+    /** The system property which, if set to the name of a layout, overrides the default for the JVM */
+    public static final String PROPERTY = "btreemap.nodeLayout";
+
+    /** The layout that leaves use unless the system property says otherwise (see DefaultNodeLayout) */
+    static NodeLayout requested() {
+        final String name = System.getProperty(PROPERTY);
+        return name == null ? DefaultNodeLayout.VALUE : valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * As {@link #requested()}, but for leaves whose keys {@link KeySearch} can search with vector instructions: if it
+     * can, ARRAYS is the default whatever the JVM, because only array leaves can be searched that way.
+     */
+    static NodeLayout requestedForVectorSearch() {
+        return System.getProperty(PROPERTY) == null && KeySearch.VECTORIZED ? ARRAYS : requested();
+    }
+}
@@ -0,0 +1,38 @@
+package uk.co.omegaprime.btreemap;
+
+/**
+ * The ways in which a map can look for a key within each node it visits, chosen when the map is built.
+ * <p>
+ * {@link #INTERPOLATION} and {@link #ADAPTIVE} only make sense for {@code int} and {@code long} keys in their natural
+ * order. For any other map they behave like {@link #BINARY} and {@link #LINEAR} respectively.
+ */
+public enum SearchStrategy {
+    /**
+     * Compares the key sought against each key in the node in turn. Nodes are small enough that this is usually the
+     * fastest way: it was about 20% faster than binary search with a minimum fanout of 8, and 45% faster with 16.
+     */
+    LINEAR,
+    /** Bisects the keys in the node */
+    BINARY,
+    /**
+     * Guesses where the key should be by assuming that the keys in the node are evenly spread between the first and
+     * the last of them, and then does the same for whichever side of the guess the key turns out to be on. If they
+     * really are evenly spread (e.g. sequence numbers, or hashes) then the first guess is usually right or nearly so,
+     * but if they are clustered this can take more comparisons than linear search.
+     */
+    INTERPOLATION,
+    /**
+     * Makes one guess as {@link #INTERPOLATION} does, and then searches linearly from there. This beats both of them
+     * for evenly spread keys, and suffers much less than interpolation does when the keys are clustered.
+     */
+    ADAPTIVE;
+
+    /** The strategy to use instead of this one if the keys can't be interpolated between */
+    SearchStrategy withoutInterpolation() {
+        switch (this) {
+            case INTERPOLATION: return BINARY;
+            case ADAPTIVE:      return LINEAR;
+            default:            return this;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package uk.co.omegaprime.btreemap;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+class Spliterators2 {
+    private Spliterators2() {}
+
+    /** The keys of a spliterator over map entries: these are distinct, and sorted by the comparator if the entries were sorted */
+    public static <K> Spliterator<K> keys(Spliterator<? extends Map.Entry<K, ?>> entries, Comparator<? super K> comparator) {
+        return map(entries, Map.Entry::getKey, entries.characteristics() | Spliterator.DISTINCT, comparator);
+    }
+
+    /** The values of a spliterator over map entries, which are neither sorted nor distinct */
+    public static <V> Spliterator<V> values(Spliterator<? extends Map.Entry<?, V>> entries) {
+        return map(entries, Map.Entry::getValue, entries.characteristics() & ~(Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL), null);
+    }
+
+    private static <T, U> Spliterator<U> map(Spliterator<T> that, Function<? super T, ? extends U> f, int characteristics, Comparator<? super U> comparator) {
+        return new Spliterator<U>() {
+            @Override
+            public boolean tryAdvance(Consumer<? super U> action) {
+                return that.tryAdvance(x -> action.accept(f.apply(x)));
+            }
+
+            @Override
+            public void forEachRemaining(Consumer<? super U> action) {
+                that.forEachRemaining(x -> action.accept(f.apply(x)));
+            }
+
+            @Override
+            public Spliterator<U> trySplit() {
+                final Spliterator<T> prefix = that.trySplit();
+                return prefix == null ? null : map(prefix, f, characteristics, comparator);
+            }
+
+            @Override
+            public long estimateSize() {
+                return that.estimateSize();
+            }
+
+            @Override
+            public int characteristics() {
+                return characteristics;
+            }
+
+            @Override
+            public Comparator<? super U> getComparator() {
+                if ((characteristics & Spliterator.SORTED) == 0) {
+                    throw new IllegalStateException();
+                }
+
+                return comparator;
+            }
+        };
+    }
+}
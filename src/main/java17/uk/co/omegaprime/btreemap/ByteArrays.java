@@ -0,0 +1,37 @@
+package uk.co.omegaprime.btreemap;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// The Java 17+ version of ByteArrays (see src/main/java for the portable one it replaces). Arrays.compareUnsigned
+// finds the first mismatch a word or vector at a time, and the view VarHandle reads a head with a single load.
+final class ByteArrays {
+    private ByteArrays() {}
+
+    private static final VarHandle LONG_BIG_ENDIAN = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /** Compares the arrays lexicographically, treating each byte as unsigned, with a proper prefix coming first */
+    public static int compareUnsigned(byte[] x, byte[] y) {
+        return Arrays.compareUnsigned(x, y);
+    }
+
+    /**
+     * Returns the first 8 bytes of the array as a big-endian long, padded with zeroes if it's shorter than that. Comparing
+     * two of these with {@link Long#compareUnsigned(long, long)} gives the same answer as {@link #compareUnsigned(byte[], byte[])}
+     * on the arrays themselves, unless they turn out to be equal, in which case the arrays may still differ.
+     */
+    public static long head(byte[] x) {
+        if (x.length >= 8) {
+            return (long)LONG_BIG_ENDIAN.get(x, 0);
+        }
+
+        long result = 0;
+        for (int i = 0; i < x.length; i++) {
+            result |= (x[i] & 0xFFL) << (56 - 8 * i);
+        }
+
+        return result;
+    }
+}
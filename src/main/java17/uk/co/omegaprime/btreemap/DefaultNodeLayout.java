@@ -0,0 +1,11 @@
+package uk.co.omegaprime.btreemap;
+
+// From JDK 24, the JVM warns the first time sun.misc.Unsafe's memory access methods are used, as a step towards removing
+// them (JEP 471 and JEP 498), so there we use arrays. On earlier JVMs we stick with fields: LookupBenchmark shows the
+// extra indirection costs more than we gain by searching array leaves with vector instructions,
+// except for int keys (see NodeLayout.requestedForVectorSearch).
+final class DefaultNodeLayout {
+    private DefaultNodeLayout() {}
+
+    static final NodeLayout VALUE = Runtime.version().feature() >= 24 ? NodeLayout.ARRAYS : NodeLayout.FIELDS;
+}
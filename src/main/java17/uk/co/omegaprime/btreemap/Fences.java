@@ -0,0 +1,13 @@
+package uk.co.omegaprime.btreemap;
+
+import java.lang.invoke.VarHandle;
+
+// The Java 17+ version of Fences (see src/main/java for the portable one it replaces), which needs no Unsafe at all
+final class Fences {
+    private Fences() {}
+
+    /** Stops loads before the fence from being reordered with loads and stores after it */
+    public static void loadFence() {
+        VarHandle.acquireFence();
+    }
+}
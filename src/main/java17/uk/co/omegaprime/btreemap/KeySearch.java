@@ -0,0 +1,32 @@
+package uk.co.omegaprime.btreemap;
+
+// The Java 17+ version of KeySearch (see src/main/java for the portable one it replaces). The Vector API is still an
+// incubator module, so is only there if the JVM was started with "--add-modules jdk.incubator.vector": if it isn't, we
+// stick to plain loops. VectorKeySearch is only loaded once we know it can be.
+//
+// We only do this for int keys. A vector holds half as many long keys, and with them LookupBenchmark.getLong did 3.3M
+// gets/s against 4.2M for the plain loop on JDK 17, so long-keyed nodes keep the loop until vectors do better.
+final class KeySearch {
+    private KeySearch() {}
+
+    /** Whether searches are done with vector instructions. Set the system property btreemap.vectorSearch to false to prevent it. */
+    public static final boolean VECTORIZED = Boolean.parseBoolean(System.getProperty("btreemap.vectorSearch", "true")) &&
+                                             ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    /** Returns the number of the first n keys that are less than or equal to the key */
+    public static int countLessOrEqual(int[] keys, int n, int key) {
+        if (VECTORIZED) {
+            return VectorKeySearch.countLessOrEqual(keys, n, key);
+        }
+
+        int i;
+        for (i = 0; i < n; i++) {
+            if (keys[i] > key) {
+                break;
+            }
+        }
+
+        return i;
+    }
+
+}
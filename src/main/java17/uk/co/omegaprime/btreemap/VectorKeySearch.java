@@ -0,0 +1,39 @@
+package uk.co.omegaprime.btreemap;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Compares the key against a whole vector's worth of node keys at a time. Because the keys are sorted, the number of
+// them less than or equal to the key is just the number of lanes for which the comparison holds, and we can stop at
+// the first vector for which it doesn't hold in every lane.
+//
+// Rather than doing a masked load for the last, partial, vector (which isn't always intrinsified), we load the last full
+// vector's worth of keys instead. This overlaps with keys we already know are less than or equal to the key, which is
+// harmless. Nodes with fewer keys than fit in a vector get a plain loop.
+final class VectorKeySearch {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    private VectorKeySearch() {}
+
+    public static int countLessOrEqual(int[] keys, int n, int key) {
+        final int width = INTS.length();
+        if (n < width) {
+            int i;
+            for (i = 0; i < n; i++) {
+                if (keys[i] > key) break;
+            }
+            return i;
+        }
+
+        for (int i = 0; i <= n - width; i += width) {
+            final int count = IntVector.fromArray(INTS, keys, i).compare(VectorOperators.LE, key).trueCount();
+            if (count < width) {
+                return i + count;
+            }
+        }
+
+        return n - width + IntVector.fromArray(INTS, keys, n - width).compare(VectorOperators.LE, key).trueCount();
+    }
+
+}
@@ -1,15 +1,13 @@
 package uk.co.omegaprime.btreemap;
 
 import java.util.*;
-
-import static uk.co.omegaprime.btreemap.Node.BINARY_SEARCH;
-import static uk.co.omegaprime.btreemap.Node.MAX_FANOUT;
-import static uk.co.omegaprime.btreemap.Node.MIN_FANOUT;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
 /**
  * A B-tree based {@link NavigableMap} implementation for {{K.erased}} keys and {{V.erased}} values.
  * <p>
- * To get started, call {@link #create()}.
+ * To get started, call {@link #create()}, or {@link #builder()} to tune the map.
  * <p>
  * All values in the map are stored at leaf nodes, and all leaf nodes are at the same depth. This ensures that accesses
  * to the map via e.g. {@code get}, {@code put} and {@code remove} all take log(n) time. In contrast to a balanced binary
@@ -18,6 +16,9 @@ import static uk.co.omegaprime.btreemap.Node.MIN_FANOUT;
  * <p>
  * The map is sorted either according to the Comparable method of the key type, or via a user-supplied {@code Comparator}.
  * This ordering should be consistent with {@code equals}.
+{% if K.isBytes() %}
+ * The natural order of {@code byte[]} keys is {@link BytesComparator#UNSIGNED}: lexicographic, treating each byte as unsigned.
+{% endif %}
  * <p>
  * The implementation is unsynchronized, and there are no guarantees as to what will happen if you make use of iterator
  * that was created before some operation that modified the map.
@@ -27,7 +28,7 @@ import static uk.co.omegaprime.btreemap.Node.MIN_FANOUT;
 public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$> {
     /** Create as empty {@code BTreeMap} that uses the natural order of the keys */
     public static <$K$ extends Comparable<? super $K$>, $V$> BTreeMap<$K$, $V$> create() {
-        return new BTreeMap<$K$, $V$>(null);
+        return new BTreeMap<$K$, $V$>(null, AbstractNode.MIN_FANOUT, AbstractNode.MIN_FANOUT, SearchStrategy.LINEAR);
     }
 
     /**
@@ -36,40 +37,185 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
      * @param comparator If null, the natural order of the keys will be used
      */
     public static <$K$, $V$> BTreeMap<$K$, $V$> create(Comparator/* wait for it.. */<? super @Boxed $K$> comparator) {
-        return new BTreeMap<$K$, $V$>({% if K.isObject() %}comparator{% else %}{{K_}}Comparator.unbox(comparator){% endif %});
+        return new BTreeMap<$K$, $V$>({% if K.isSpecialized() %}{{K_}}Comparator.unbox(comparator){% else %}comparator{% endif %}, AbstractNode.MIN_FANOUT, AbstractNode.MIN_FANOUT, SearchStrategy.LINEAR);
     }
 
-    {% if K.isPrimitive %}
+    {% if K.isSpecialized() %}
     /**
      * Create an empty {@code BTreeMap} that uses a custom comparator on the keys.
      *
      * @param comparator If null, the natural order of the keys will be used
      */
     public static <$K$, $V$> BTreeMap<$K$, $V$> create(Comparator<$K$> comparator) {
-        return new BTreeMap<$K$, $V$>(comparator);
+        return new BTreeMap<$K$, $V$>(comparator, AbstractNode.MIN_FANOUT, AbstractNode.MIN_FANOUT, SearchStrategy.LINEAR);
     }
     {% endif %}
 
     /** Create a new map that contains the same entries as the specified {@code SortedMap}, and also shares a key ordering with it */
     public static <$K$, $V$> BTreeMap<$K$, $V$> create(SortedMap<@Boxed $K$, ? extends @Boxed $V$> that) {
+        return create(that, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Create a new map that contains the same entries as the specified {@code SortedMap}, and also shares a key ordering with it.
+     * <p>
+     * Because the entries arrive in sorted order, the tree is built bottom-up in linear time rather than by repeated insertion.
+     * The fill factor controls how full each node is: 1.0 packs them as tightly as possible, which minimises memory usage
+     * and the height of the tree, while lower values leave room for later insertions to be made without splitting nodes.
+     *
+     * @param fillFactor a number greater than 0 and at most 1. Nodes are never less than half full, so values below 0.5 are treated as 0.5.
+     */
+    public static <$K$, $V$> BTreeMap<$K$, $V$> create(SortedMap<@Boxed $K$, ? extends @Boxed $V$> that, double fillFactor) {
         final BTreeMap<$K$, $V$> result = create(that.comparator());
-        result.putAll(that);
+        result.bulkLoad(that.entrySet().iterator(), fillFactor);
         return result;
     }
 
     /** Create a new map that contains the same entries as the specified {@code Map}, and uses the natural ordering on the keys */
     public static <$K$, $V$> BTreeMap<$K$, $V$> create(Map<? extends @Boxed $K$, ? extends @Boxed $V$> that) {
-        final BTreeMap<$K$, $V$> result = new BTreeMap<$K$, $V$>(null);
+        final BTreeMap<$K$, $V$> result = new BTreeMap<$K$, $V$>(null, AbstractNode.MIN_FANOUT, AbstractNode.MIN_FANOUT, SearchStrategy.LINEAR);
         result.putAll(that);
         return result;
     }
 
-    // Internal nodes and leaf nodes are both represented by an instance of the Node class. A Node is essentially
+    /**
+     * Returns a builder for an empty {@code BTreeMap} with settings other than the defaults, used like so:
+     * <pre>{@code
+     * BTreeMap.builder().comparator(comparator).fanout(32).build()
+     * }</pre>
+     */
+    public static <$K$, $V$> Builder<$K$, $V$> builder() {
+        return new Builder<$K$, $V$>();
+    }
+
+    /**
+     * The way in which maps of this class store their entries. This is decided once, when the class is loaded:
+     * normally by the JVM version and the system property named by {@link NodeLayout#PROPERTY}, but if the JVM
+     * doesn't lay out objects in the way that {@link NodeLayout#FIELDS} requires, we use {@link NodeLayout#ARRAYS}
+     * whatever was asked for.{% if K.name == "Int" %}
+     * <p>
+     * If the property isn't set, and nodes can be searched with vector instructions, the default is
+     * {@link NodeLayout#ARRAYS}, since those instructions can only load keys from an array. That needs Java 17 or later,
+     * started with {@code --add-modules jdk.incubator.vector}, and without {@code -Dbtreemap.vectorSearch=false}.{% endif %}
+     */
+    public static NodeLayout nodeLayout() {
+        return {{KV_}}LeafNode.LAYOUT;
+    }
+
+    /** Collects the settings for a new {@code BTreeMap}: see {@link #builder()} */
+    public static final class Builder<$K$, $V$> {
+        private Comparator<? super $K$> comparator;
+        private int leafFanout = AbstractNode.MIN_FANOUT, internalFanout = AbstractNode.MIN_FANOUT;
+        private SearchStrategy searchStrategy = SearchStrategy.LINEAR;
+        {% if K.isGeneric() %}
+        private ToLongFunction<? super $K$> keyPrefix;
+        {% endif %}
+
+        private {{KV_}}Builder() {}
+
+        /** @param comparator If null (the default), the natural order of the keys will be used */
+        public Builder<$K$, $V$> comparator(Comparator/* wait for it.. */<? super @Boxed $K$> comparator) {
+            this.comparator = {% if K.isSpecialized() %}{{K_}}Comparator.unbox(comparator){% else %}comparator{% endif %};
+            return this;
+        }
+
+        {% if K.isSpecialized() %}
+        /** @param comparator If null (the default), the natural order of the keys will be used */
+        public Builder<$K$, $V$> comparator(Comparator<$K$> comparator) {
+            this.comparator = comparator;
+            return this;
+        }
+        {% endif %}
+
+        /**
+         * Sets the least number of entries (or, for internal nodes, children) that each node but the root may hold. Nodes
+         * hold at most one less than twice this. The default is 16.
+         * <p>
+         * Smaller nodes make insertions and removals cheaper since there is less to shift around, while bigger ones make
+         * for a shallower tree, and so fewer cache misses and comparisons per lookup in a large map.
+         *
+         * @param fanout one of 8, 16, 32 or 64
+         */
+        public Builder<$K$, $V$> fanout(int fanout) {
+            return leafFanout(fanout).internalFanout(fanout);
+        }
+
+        /**
+         * As {@link #fanout(int)}, but just for the leaves. Wider leaves suit workloads dominated by iteration and range
+         * queries, since they put more entries next to each other in memory.
+         */
+        public Builder<$K$, $V$> leafFanout(int fanout) {
+            this.leafFanout = checkFanout(fanout);
+            return this;
+        }
+
+        /** As {@link #fanout(int)}, but just for the internal nodes */
+        public Builder<$K$, $V$> internalFanout(int fanout) {
+            this.internalFanout = checkFanout(fanout);
+            return this;
+        }
+
+        /**
+         * Sets how the map looks for a key within each node. The default, {@link SearchStrategy#LINEAR}, is usually the
+         * fastest, but {@link SearchStrategy#INTERPOLATION} or {@link SearchStrategy#ADAPTIVE} can beat it for
+         * {@code int} or {@code long} keys that are spread roughly evenly, especially with a large fanout.
+        {% if K.isGeneric() %}
+         * <p>
+         * A map with a {@link #keyPrefix(ToLongFunction) key prefix function} always compares the prefixes one by one,
+         * whatever the strategy.
+        {% endif %}
+         */
+        public Builder<$K$, $V$> searchStrategy(SearchStrategy searchStrategy) {
+            this.searchStrategy = Objects.requireNonNull(searchStrategy);
+            return this;
+        }
+
+        {% if K.isGeneric() %}
+        /**
+         * Makes the map store a {@code long} "prefix" of each key alongside it, so that searching a node need only look
+         * at the keys themselves (which probably means a cache miss, and then a call to {@code compareTo}) when their
+         * prefixes are the same as that of the key sought. This can make lookups several times faster.
+         * <p>
+         * The function must be consistent with the ordering of the map: if {@code x <= y} then
+         * {@code keyPrefix.applyAsLong(x) <= keyPrefix.applyAsLong(y)}. It works best if few keys share a prefix. For
+         * example, if the keys are strings in their natural order, then the first three characters will do, taking 16 of
+         * the low 48 bits each (so that the result is never negative) with zeroes in place of any that are missing.
+         *
+         * @param keyPrefix If null (the default), no prefixes are stored
+         */
+        public Builder<$K$, $V$> keyPrefix(ToLongFunction<? super $K$> keyPrefix) {
+            this.keyPrefix = keyPrefix;
+            return this;
+        }
+
+        {% endif %}
+        private static int checkFanout(int fanout) {
+            if (Arrays.binarySearch(AbstractNode.FANOUTS, fanout) < 0) {
+                throw new IllegalArgumentException("Unsupported fanout " + fanout + ", should be one of " + Arrays.toString(AbstractNode.FANOUTS));
+            }
+
+            return fanout;
+        }
+
+        public BTreeMap<$K$, $V$> build() {
+            {% if K.isGeneric() %}
+            final BTreeMap<$K$, $V$> result = new BTreeMap<$K$, $V$>(comparator, leafFanout, internalFanout, searchStrategy);
+            result.keyPrefix = keyPrefix;
+            return result;
+            {% else %}
+            return new BTreeMap<$K$, $V$>(comparator, leafFanout, internalFanout, searchStrategy);
+            {% endif %}
+        }
+    }
+
+    // Internal nodes and leaf nodes used to both be represented by an instance of the Node class. A Node was essentially
     // an Object[MAX_FANOUT * 2] with a size. For an internal node:
     //   - The first MAX_FANOUT - 1 elements of this will refer to keys
     //   - The next MAX_FANOUT elements will hold references to the Object[] of child nodes
     //   - The final element will hold a reference to a int[] of child node sizes
     //
+    // (The child node sizes later moved to a separate counts array, and came to count entries rather than children.)
+    //
     // For a leaf node:
     //   - The first MAX_FANOUT elements will refer to keys
     //   - The next MAX_FANOUT elements will refer to values
@@ -78,31 +224,87 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     // This was sort of fine but incurred more indirections & was fiddly to program against. Replacing it with this scheme
     // (such that the size and Objects are stored contiguously) sped up my get benchmark from 4.8M ops/sec to 5.3M ops/sec.
     //
-    // FIXME: the single element at the end of each internal node is unused. What to do about this? Use for parent link -- might help us avoid allocation in iterator?
+    // Leaves and internal nodes are now separate classes, LeafNode and InternalNode, so that each can have its own fanout.
+    // An internal node has only as many key fields as it needs, and keeps its children in an AbstractNode[] next to the
+    // counts, which means there's no longer a wasted slot at the end of it, nor a cast whenever we fetch a child.
+    //
+    // A split node that still has to be inserted into its parent. Each map reuses a single one of these (see bubble()) so
+    // that a split allocates nothing beyond the one new node it actually needs. It is pending while rightObjects is non-null.
     private static class BubbledInsertion<$K$> {
-        private final AbstractNode leftObjects, rightObjects;
-        private final $K$ separator; // The seperator key is <= all keys in the right and > all keys in the left
+        private AbstractNode leftObjects, rightObjects;
+        private $K$ separator; // The seperator key is <= all keys in the right and > all keys in the left
+        private int leftCount, rightCount; // Number of entries in the subtrees rooted at leftObjects/rightObjects
 
-        private {{K_}}BubbledInsertion(AbstractNode leftObjects, AbstractNode rightObjects, $K$ separator) {
+        private void set(AbstractNode leftObjects, AbstractNode rightObjects, $K$ separator, int leftCount, int rightCount) {
             this.leftObjects = leftObjects;
             this.rightObjects = rightObjects;
             this.separator = separator;
+            this.leftCount = leftCount;
+            this.rightCount = rightCount;
+        }
+
+        private boolean isPending() {
+            return rightObjects != null;
+        }
+
+        /** Marks the insertion as consumed, dropping the references to the nodes to avoid memory leaks */
+        private void clear() {
+            leftObjects = rightObjects = null;
+            {% if K.isObject %}
+            separator = null;
+            {% endif %}
         }
     }
 
     private static class Leaf {
         private Leaf() {}
 
-        public static <$K$, $V$> int find(Node<$K$, $V$> repr, @Erased $K$ key, {{K_}}Comparator comparator) {
+        public static <$K$, $V$> int find(LeafNode<$K$, $V$> repr, @Erased $K$ key, {{K_}}Comparator comparator, SearchStrategy searchStrategy) {
             final int size = repr.size;
-            if (BINARY_SEARCH) {
+            {% if K.isGeneric() %}
+            if (repr.prefixes != null) {
+                return repr.findByPrefix(key, comparator);
+            }
+
+            {% endif %}
+            if (searchStrategy == SearchStrategy.BINARY) {
                 return repr.binarySearch(0, size, key, comparator);
+            {% if K.name == "Int" or K.name == "Long" %}
+            } else if (searchStrategy == SearchStrategy.INTERPOLATION) {
+                // The map only lets us get here with the natural order
+                return repr.interpolationSearch(0, size, key);
+            } else if (searchStrategy == SearchStrategy.ADAPTIVE) {
+                return repr.interpolationScan(0, size, key);
+            {% endif %}
+            {% if K.name == "Int" %}
+            } else if (comparator == null && {{KV_}}LeafNode.LAYOUT == NodeLayout.ARRAYS) {
+                // The keys are in a real array, so KeySearch can compare a whole vector of them at a time
+                final @Erased $K$[] keys = (({{KV_}}LeafNode.ArrayLeafNode<$K$, $V$>)repr).keys;
+                final int i = KeySearch.countLessOrEqual(keys, size, key);
+                return i > 0 && keys[i - 1] == key ? i - 1 : -i - 1;
+            {% endif %}
+            {% if K.isString() %}
+            } else if (comparator == null) {
+                // Only compares the suffixes of the keys, as stored. A comparator has to see the whole keys, though.
+                return repr.find((String)key);
+            {% elseif K.isBytes() %}
+            } else if (comparator == null) {
+                return repr.find(key);
+            {% else %}
             } else if (comparator == null) {
                 // Tried not exiting early (improves branch prediction) but significantly worse.
                 int i;
                 for (i = 0; i < size; i++) {
                     final $K$ checkKey = repr.getKey(i);
-                    {% if K.isPrimitive %}
+                    {% if K.isFloating() %}
+                    // Unlike == and >, this agrees with the boxed type's compareTo about where NaN and -0.0 go
+                    final int cmp = {{K.boxed}}.compare(checkKey, key);
+                    if (cmp == 0) {
+                        return i;
+                    } else if (cmp > 0) {
+                        return -i - 1;
+                    }
+                    {% elseif K.isPrimitive %}
                     // It's very much worth avoiding casting a primitive to Comparable (50% speedup)
                     if (checkKey == key) {
                         return i;
@@ -120,12 +322,58 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                 }
 
                 return -size - 1;
+            {% endif %}
+            {% if K.isPrimitive() or K.isGeneric() %}
+            } else if (comparator == {% if K.isPrimitive() %}{{K_}}Comparator.REVERSE{% else %}Comparators.REVERSE{% endif %}) {
+                // Just like the natural order, but the other way round. Saves an interface call per key.
+                int i;
+                for (i = 0; i < size; i++) {
+                    final $K$ checkKey = repr.getKey(i);
+                    {% if K.isFloating() %}
+                    final int cmp = {{K.boxed}}.compare(key, checkKey);
+                    if (cmp == 0) {
+                        return i;
+                    } else if (cmp > 0) {
+                        return -i - 1;
+                    }
+                    {% elseif K.isPrimitive %}
+                    if (checkKey == key) {
+                        return i;
+                    } else if (checkKey < key) {
+                        return -i - 1;
+                    }
+                    {% else %}
+                    final int cmp = ((Comparable)key).compareTo(checkKey);
+                    if (cmp == 0) {
+                        return i;
+                    } else if (cmp > 0) {
+                        return -i - 1;
+                    }
+                    {% endif %}
+                }
+
+                return -size - 1;
+            {% endif %}
+            {% if K.name == "Int" or K.name == "Long" %}
+            } else if (comparator == {{K_}}Comparator.UNSIGNED) {
+                int i;
+                for (i = 0; i < size; i++) {
+                    final $K$ checkKey = repr.getKey(i);
+                    if (checkKey == key) {
+                        return i;
+                    } else if ({{K.boxed}}.compareUnsigned(checkKey, key) > 0) {
+                        return -i - 1;
+                    }
+                }
+
+                return -size - 1;
+            {% endif %}
             } else {
                 // Tried not exiting early (improves branch prediction) but significantly worse.
                 int i;
                 for (i = 0; i < size; i++) {
                     final $K$ checkKey = repr.getKey(i);
-                    final int cmp = comparator.compare{% if K.isPrimitive %}{{K.name}}{% endif %}(checkKey, key);
+                    final int cmp = comparator.compare{% if K.isSpecialized() %}{{K.name}}{% endif %}(checkKey, key);
                     if (cmp == 0) {
                         return i;
                     } else if (cmp > 0) {
@@ -137,20 +385,20 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
             }
         }
 
-        public static <$K$, $V$> $K$ getKey(Node<$K$, $V$> keysValues, int index) {
+        public static <$K$, $V$> $K$ getKey(LeafNode<$K$, $V$> keysValues, int index) {
             return keysValues.getKey(index);
         }
 
-        public static <$K$, $V$> $V$ getValue(Node<$K$, $V$> keysValues, int index) {
+        public static <$K$, $V$> $V$ getValue(LeafNode<$K$, $V$> keysValues, int index) {
             return keysValues.getValue(index);
         }
 
-        public static boolean canPutAtIndex(int size, int index) {
-            return index >= 0 || size < MAX_FANOUT;
+        public static <$K$, $V$> boolean canPutAtIndex(LeafNode<$K$, $V$> keysValues, int index) {
+            return index >= 0 || keysValues.size < keysValues.maxFanout();
         }
 
         /** @param index must be the index of existing key in the leaf */
-        public static <$K$, $V$> $V$ putOverwriteIndex(Node<$K$, $V$> keysValues, int index, $K$ key, $V$ value) {
+        public static <$K$, $V$> $V$ putOverwriteIndex(LeafNode<$K$, $V$> keysValues, int index, $K$ key, $V$ value) {
             assert index >= 0;
 
             final $V$ result = keysValues.getValue(index);
@@ -159,81 +407,164 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         }
 
         /** @param index must be the insertion point in the leaf, using same convention as Arrays.binarySearch */
-        public static <$K$, $V$> void putInsertIndex(Node<$K$, $V$> keysValues, int index, $K$ key, $V$ value) {
-            assert index < 0 && keysValues.size < MAX_FANOUT;
+        public static <$K$, $V$> void putInsertIndex(LeafNode<$K$, $V$> keysValues, int index, $K$ key, $V$ value) {
+            assert index < 0 && keysValues.size < keysValues.maxFanout();
 
             final int size = keysValues.size;
             final int insertionPoint = -(index + 1);
-            assert size < MAX_FANOUT && insertionPoint <= size;
+            assert insertionPoint <= size;
 
-            {{KV_}}Node.arraycopyKey  (keysValues, insertionPoint, keysValues, insertionPoint + 1, size - insertionPoint);
-            {{KV_}}Node.arraycopyValue(keysValues, insertionPoint, keysValues, insertionPoint + 1, size - insertionPoint);
+            {{KV_}}LeafNode.arraycopyKey  (keysValues, insertionPoint, keysValues, insertionPoint + 1, size - insertionPoint);
+            {{KV_}}LeafNode.arraycopyValue(keysValues, insertionPoint, keysValues, insertionPoint + 1, size - insertionPoint);
             keysValues.size = size + 1;
 
             keysValues.setKey(insertionPoint, key);
             keysValues.setValue(insertionPoint, value);
         }
 
-        private static <$K$, $V$> void copy(Node<$K$, $V$> srcKeysValues, int srcIndex, Node<? super $K$, ? super $V$> dstKeysValues, int dstIndex, int size) {
-            {{KV_}}Node.arraycopyKey  (srcKeysValues, srcIndex, dstKeysValues, dstIndex, size);
-            {{KV_}}Node.arraycopyValue(srcKeysValues, srcIndex, dstKeysValues, dstIndex, size);
+        private static <$K$, $V$> void copy(LeafNode<$K$, $V$> srcKeysValues, int srcIndex, LeafNode<? super $K$, ? super $V$> dstKeysValues, int dstIndex, int size) {
+            {{KV_}}LeafNode.arraycopyKey  (srcKeysValues, srcIndex, dstKeysValues, dstIndex, size);
+            {{KV_}}LeafNode.arraycopyValue(srcKeysValues, srcIndex, dstKeysValues, dstIndex, size);
         }
 
-        // This splits the leaf (of size MAX_FANOUT == 2 * MIN_FANOUT - 1) plus one extra item into two new
-        // leaves, each of size MIN_FANOUT.
-        public static <$K$, $V$> BubbledInsertion<$K$> bubblePutAtIndex(Node<$K$, $V$> keysValues, int index, $K$ key, $V$ value) {
-            assert !canPutAtIndex(keysValues.size, index);
-            assert keysValues.size == MAX_FANOUT; // i.e. implies index < 0
+        // This splits the leaf (of size maxFanout == 2 * minFanout - 1) plus one extra item into two leaves, each
+        // of size minFanout. The left one is the existing leaf, truncated in place, so only the right one is new.
+        public static <$K$, $V$> void bubblePutAtIndex(LeafNode<$K$, $V$> keysValues, int index, $K$ key, $V$ value, BubbledInsertion<$K$> toBubble) {
+            final int minFanout = keysValues.minFanout(), maxFanout = keysValues.maxFanout();
+            assert !canPutAtIndex(keysValues, index);
+            assert keysValues.size == maxFanout; // i.e. implies index < 0
 
             int insertionPoint = -(index + 1);
-            final Node<$K$, $V$> l = new Node<$K$, $V$>(), r = new Node<$K$, $V$>();
-            l.size = r.size = MIN_FANOUT;
+            final LeafNode<$K$, $V$> r = keysValues.newNode();
+            r.size = minFanout;
 
-            if (insertionPoint < MIN_FANOUT) {
-                copy(keysValues, 0,                           l, 0,                  insertionPoint);
-                copy(keysValues, insertionPoint,              l, insertionPoint + 1, MIN_FANOUT - insertionPoint - 1);
-                copy(keysValues, MIN_FANOUT - 1,              r, 0,                  MIN_FANOUT);
+            if (insertionPoint < minFanout) {
+                copy(keysValues, minFanout - 1,              r,          0,                  minFanout);
+                copy(keysValues, insertionPoint,              keysValues, insertionPoint + 1, minFanout - insertionPoint - 1);
 
-                l.setKey  (insertionPoint, key);
-                l.setValue(insertionPoint, value);
+                keysValues.setKey  (insertionPoint, key);
+                keysValues.setValue(insertionPoint, value);
             } else {
-                insertionPoint -= MIN_FANOUT;
+                insertionPoint -= minFanout;
 
-                copy(keysValues, 0,                           l, 0,                  MIN_FANOUT);
-                copy(keysValues, MIN_FANOUT,                  r, 0,                  insertionPoint);
-                copy(keysValues, MIN_FANOUT + insertionPoint, r, insertionPoint + 1, MIN_FANOUT - insertionPoint - 1);
+                copy(keysValues, minFanout,                  r,          0,                  insertionPoint);
+                copy(keysValues, minFanout + insertionPoint, r,          insertionPoint + 1, minFanout - insertionPoint - 1);
 
                 r.setKey  (insertionPoint, key);
                 r.setValue(insertionPoint, value);
             }
 
-            return new BubbledInsertion<$K$>(l, r, r.getKey(0));
+            keysValues.size = minFanout;
+            {% if K.isObject() or V.isObject() %}
+            // Avoid memory leaks
+            for (int i = minFanout; i < maxFanout; i++) {
+                {% if K.isObject() %}keysValues.setKey  (i, null);{% endif %}
+                {% if V.isObject() %}keysValues.setValue(i, null);{% endif %}
+            }
+            {% endif %}
+
+            {% if K.isString() %}
+            // The two halves probably have longer prefixes in common than the whole did
+            keysValues.lengthenPrefix();
+            r.lengthenPrefix();
+
+            {% endif %}
+            toBubble.set(keysValues, r, r.getKey(0), minFanout, minFanout);
         }
     }
 
     private static class Internal {
         private Internal() {}
 
-        private static <$K$> $K$ getKey(Node<$K$, AbstractNode> repr, int index) {
+        private static <$K$> $K$ getKey(InternalNode<$K$> repr, int index) {
             return repr.getKey(index);
         }
 
-        private static <$K$> AbstractNode getNode(Node<$K$, AbstractNode> repr, int index) {
-            return (AbstractNode)repr.getValue(index);
+        private static <$K$> AbstractNode getNode(InternalNode<$K$> repr, int index) {
+            return repr.children[index];
+        }
+
+        /** As getNode, but first replaces the child with a private copy if it is shared with another map */
+        private static <$K$> AbstractNode getNodeForWrite(InternalNode<$K$> repr, int index, int childDepth) {
+            final AbstractNode node = getNode(repr, index);
+            if (!node.shared) {
+                return node;
+            }
+
+            final AbstractNode result = unshare(node, childDepth);
+            repr.children[index] = result;
+            return result;
+        }
+
+        private static <$K$> void setNode(InternalNode<$K$> repr, int index, AbstractNode node, int count) {
+            repr.children[index] = node;
+            repr.counts[index] = count;
+        }
+
+        /** Copies child node references along with their subtree entry counts */
+        private static <$K$> void arraycopyNode(InternalNode<$K$> src, int srcIndex, InternalNode<$K$> dst, int dstIndex, int size) {
+            System.arraycopy(src.children, srcIndex, dst.children, dstIndex, size);
+            System.arraycopy(src.counts,   srcIndex, dst.counts,   dstIndex, size);
+        }
+
+        /** The total number of entries in the subtree rooted at this internal node */
+        private static <$K$> int count(InternalNode<$K$> repr) {
+            final int[] counts = repr.counts;
+            int result = 0;
+            for (int i = 0; i < repr.size; i++) {
+                result += counts[i];
+            }
+            return result;
         }
 
         /** Always returns a valid index into the nodes array. Keys in the node indicated in the index will be >= key */
-        public static <$K$> int find(Node<$K$, AbstractNode> repr, @Erased $K$ key, {{K_}}Comparator comparator) {
+        public static <$K$> int find(InternalNode<$K$> repr, @Erased $K$ key, {{K_}}Comparator comparator, SearchStrategy searchStrategy) {
             final int size = repr.size;
-            if (BINARY_SEARCH) {
+            {% if K.isGeneric() %}
+            if (repr.prefixes != null) {
+                return repr.findByPrefix(key, comparator);
+            }
+
+            {% endif %}
+            if (searchStrategy == SearchStrategy.BINARY) {
                 final int index = repr.binarySearch(0, size - 1, key, comparator);
                 return index < 0 ? -(index + 1) : index + 1;
+            {% if K.name == "Int" or K.name == "Long" %}
+            } else if (searchStrategy == SearchStrategy.INTERPOLATION) {
+                // The map only lets us get here with the natural order
+                final int index = repr.interpolationSearch(0, size - 1, key);
+                return index < 0 ? -(index + 1) : index + 1;
+            } else if (searchStrategy == SearchStrategy.ADAPTIVE) {
+                final int index = repr.interpolationScan(0, size - 1, key);
+                return index < 0 ? -(index + 1) : index + 1;
+            {% endif %}
+            {% if K.name == "Int" %}
+            } else if (comparator == null) {
+                // Compares a whole vector of keys at a time, where the JVM lets us
+                return KeySearch.countLessOrEqual(repr.keys, size - 1, key);
+            {% elseif K.isBytes() %}
+            } else if (comparator == null) {
+                // Only looks at the keys themselves when their first 8 bytes don't settle it
+                final long head = ByteArrays.head(key);
+                int i;
+                for (i = 0; i < size - 1; i++) {
+                    final int cmp = Long.compareUnsigned(repr.heads[i], head);
+                    if (cmp > 0 || (cmp == 0 && ByteArrays.compareUnsigned(repr.getKey(i), key) > 0)) {
+                        return i;
+                    }
+                }
+
+                return i;
+            {% else %}
             } else if (comparator == null) {
                 // Tried not exiting early (improves branch prediction) but significantly worse.
                 int i;
                 for (i = 0; i < size - 1; i++) {
                     final $K$ checkKey = repr.getKey(i);
-                    {% if K.isPrimitive %}
+                    {% if K.isFloating() %}
+                    // Unlike >, this agrees with the boxed type's compareTo about where NaN and -0.0 go
+                    if ({{K.boxed}}.compare(checkKey, key) > 0) {
+                    {% elseif K.isPrimitive %}
                     // Avoiding the cast to Comparable is EXTREMELY IMPORTANT for speed (worth 10x)
                     if (checkKey > key) {
                     {% else %}
@@ -244,12 +575,43 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                 }
 
                 return i;
+            {% endif %}
+            {% if K.isPrimitive() or K.isGeneric() %}
+            } else if (comparator == {% if K.isPrimitive() %}{{K_}}Comparator.REVERSE{% else %}Comparators.REVERSE{% endif %}) {
+                // Just like the natural order, but the other way round. Saves an interface call per key.
+                int i;
+                for (i = 0; i < size - 1; i++) {
+                    final $K$ checkKey = repr.getKey(i);
+                    {% if K.isFloating() %}
+                    if ({{K.boxed}}.compare(key, checkKey) > 0) {
+                    {% elseif K.isPrimitive %}
+                    if (checkKey < key) {
+                    {% else %}
+                    if (((Comparable)key).compareTo(checkKey) > 0) {
+                    {% endif %}
+                        return i;
+                    }
+                }
+
+                return i;
+            {% endif %}
+            {% if K.name == "Int" or K.name == "Long" %}
+            } else if (comparator == {{K_}}Comparator.UNSIGNED) {
+                int i;
+                for (i = 0; i < size - 1; i++) {
+                    if ({{K.boxed}}.compareUnsigned(repr.getKey(i), key) > 0) {
+                        return i;
+                    }
+                }
+
+                return i;
+            {% endif %}
             } else {
                 // Tried not exiting early (improves branch prediction) but significantly worse.
                 int i;
                 for (i = 0; i < size - 1; i++) {
                     final $K$ checkKey = repr.getKey(i);
-                    if (comparator.compare{% if K.isPrimitive %}{{K.name}}{% endif %}(checkKey, key) > 0) {
+                    if (comparator.compare{% if K.isSpecialized() %}{{K.name}}{% endif %}(checkKey, key) > 0) {
                         return i;
                     }
                 }
@@ -258,12 +620,12 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
             }
         }
 
-        public static boolean canPutAtIndex(int size) {
-            return size < MAX_FANOUT;
+        public static <$K$> boolean canPutAtIndex(InternalNode<$K$> repr) {
+            return repr.size < repr.maxFanout();
         }
 
-        public static <$K$> void putAtIndex(Node<$K$, AbstractNode> repr, int index, BubbledInsertion<$K$> toBubble) {
-            assert canPutAtIndex(repr.size);
+        public static <$K$> void putAtIndex(InternalNode<$K$> repr, int index, BubbledInsertion<$K$> toBubble) {
+            assert canPutAtIndex(repr);
 
             // Tree:         Bubbled input:
             //  Key   0 1     Key    S
@@ -273,28 +635,29 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
             //  Node 0 1A 1B 2
 
             final int size = repr.size++;
-            {{KObject_}}Node.arraycopyKey  (repr,  index,     repr,  index + 1, size - index - 1);
-            {{KObject_}}Node.arraycopyValue(repr,  index + 1, repr,  index + 2, size - index - 1);
+            {{K_}}InternalNode.arraycopyKey  (repr,  index,     repr,  index + 1, size - index - 1);
+            arraycopyNode                  (repr,  index + 1, repr,  index + 2, size - index - 1);
 
-            repr.setKey  (index    , toBubble.separator);
-            repr.setValue(index    , toBubble.leftObjects);
-            repr.setValue(index + 1, toBubble.rightObjects);
+            repr.setKey(index, toBubble.separator);
+            setNode    (repr, index,     toBubble.leftObjects,  toBubble.leftCount);
+            setNode    (repr, index + 1, toBubble.rightObjects, toBubble.rightCount);
         }
 
-        private static <$K$> void deleteAtIndex(Node<$K$, AbstractNode> node, int index) {
+        private static <$K$> void deleteAtIndex(InternalNode<$K$> node, int index) {
             final int size = --node.size;
-            {{KObject_}}Node.arraycopyKey  (node, index,     node, index - 1, size - index);
-            {{KObject_}}Node.arraycopyValue(node, index + 1, node, index,     size - index);
+            {{K_}}InternalNode.arraycopyKey  (node, index,     node, index - 1, size - index);
+            arraycopyNode                  (node, index + 1, node, index,     size - index);
 
             // Avoid memory leaks
             {% if K.isObject %}
             node.setKey  (size - 1, null);
             {% endif %}
-            node.setValue(size,     null);
+            setNode(node, size, null, 0);
         }
 
-        public static <$K$> BubbledInsertion<$K$> bubblePutAtIndex(Node<$K$, AbstractNode> repr, int nodeIndex, BubbledInsertion<$K$> toBubble) {
-            assert !canPutAtIndex(repr.size); // i.e. size == MAX_FANOUT
+        public static <$K$> void bubblePutAtIndex(InternalNode<$K$> repr, int nodeIndex, BubbledInsertion<$K$> toBubble) {
+            final int minFanout = repr.minFanout(), maxFanout = repr.maxFanout();
+            assert !canPutAtIndex(repr); // i.e. size == maxFanout
 
             // Tree:         Bubbled input:
             //  Key   0 1     Key    S
@@ -306,60 +669,226 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
             // Left bubbled:  Right bubbled:
             //  Key   0        Key    1
             //  Node 0 1A      Node 1B 2
+            //
+            // The left half is built in place in repr, so only the right half needs a new node. We always move
+            // things out of repr into the right half before shuffling what remains of the left half.
 
-            final Node<$K$, AbstractNode> l = new Node<$K$, AbstractNode>(), r = new Node<$K$, AbstractNode>();
-            l.size = r.size = MIN_FANOUT;
+            final InternalNode<$K$> r = repr.newNode();
+            r.size = minFanout;
 
             final $K$ separator;
-            if (nodeIndex == MIN_FANOUT - 1) {
+            if (nodeIndex == minFanout - 1) {
                 separator = toBubble.separator;
 
-                {{KObject_}}Node.arraycopyKey(repr, 0,              l, 0, MIN_FANOUT - 1);
-                {{KObject_}}Node.arraycopyKey(repr, MIN_FANOUT - 1, r, 0, MIN_FANOUT - 1);
+                {{K_}}InternalNode.arraycopyKey(repr, minFanout - 1, r, 0, minFanout - 1);
+                arraycopyNode(repr,  minFanout, r,      1, minFanout - 1);
 
-                {{KObject_}}Node.arraycopyValue(repr,  0,          l,      0, MIN_FANOUT - 1);
-                {{KObject_}}Node.arraycopyValue(repr,  MIN_FANOUT, r,      1, MIN_FANOUT - 1);
+                setNode(repr, minFanout - 1, toBubble.leftObjects,  toBubble.leftCount);
+                setNode(r,    0,              toBubble.rightObjects, toBubble.rightCount);
+            } else if (nodeIndex < minFanout) {
+                separator = getKey(repr, minFanout - 2);
 
-                l.setValue(MIN_FANOUT - 1, toBubble.leftObjects);
-                r.setValue(0,              toBubble.rightObjects);
-            } else if (nodeIndex < MIN_FANOUT) {
-                separator = getKey(repr, MIN_FANOUT - 2);
+                {{K_}}InternalNode.arraycopyKey(repr, minFanout - 1, r,    0,             minFanout - 1);
+                {{K_}}InternalNode.arraycopyKey(repr, nodeIndex,      repr, nodeIndex + 1, minFanout - nodeIndex - 2);
 
-                {{KObject_}}Node.arraycopyKey(repr, 0,              l, 0,             nodeIndex);
-                {{KObject_}}Node.arraycopyKey(repr, nodeIndex,      l, nodeIndex + 1, MIN_FANOUT - nodeIndex - 2);
-                {{KObject_}}Node.arraycopyKey(repr, MIN_FANOUT - 1, r, 0,             MIN_FANOUT - 1);
+                arraycopyNode(repr,  minFanout - 1, r,      0,             minFanout);
+                arraycopyNode(repr,  nodeIndex + 1,  repr,   nodeIndex + 2, minFanout - nodeIndex - 2);
 
-                {{KObject_}}Node.arraycopyValue(repr,  0,              l,      0,             nodeIndex);
-                {{KObject_}}Node.arraycopyValue(repr,  nodeIndex + 1,  l,      nodeIndex + 2, MIN_FANOUT - nodeIndex - 2);
-                {{KObject_}}Node.arraycopyValue(repr,  MIN_FANOUT - 1, r,      0,             MIN_FANOUT);
-
-                l.setKey  (nodeIndex,     toBubble.separator);
-                l.setValue(nodeIndex,     toBubble.leftObjects);
-                l.setValue(nodeIndex + 1, toBubble.rightObjects);
+                repr.setKey(nodeIndex, toBubble.separator);
+                setNode    (repr, nodeIndex,     toBubble.leftObjects,  toBubble.leftCount);
+                setNode    (repr, nodeIndex + 1, toBubble.rightObjects, toBubble.rightCount);
             } else {
-                nodeIndex -= MIN_FANOUT;
-                // i.e. 0 <= nodeIndex < MIN_FANOUT - 1
+                nodeIndex -= minFanout;
+                // i.e. 0 <= nodeIndex < minFanout - 1
+
+                separator = getKey(repr, minFanout - 1);
+
+                {{K_}}InternalNode.arraycopyKey(repr, minFanout,             r, 0,             nodeIndex);
+                {{K_}}InternalNode.arraycopyKey(repr, minFanout + nodeIndex, r, nodeIndex + 1, minFanout - nodeIndex - 2);
+
+                arraycopyNode(repr, minFanout,                 r, 0,             nodeIndex);
+                arraycopyNode(repr, minFanout + nodeIndex + 1, r, nodeIndex + 2, minFanout - nodeIndex - 2);
+
+                r.setKey(nodeIndex, toBubble.separator);
+                setNode (r, nodeIndex,     toBubble.leftObjects,  toBubble.leftCount);
+                setNode (r, nodeIndex + 1, toBubble.rightObjects, toBubble.rightCount);
+            }
+
+            // Avoid memory leaks
+            for (int i = minFanout; i < maxFanout; i++) {
+                {% if K.isObject %}
+                repr.setKey(i - 1, null);
+                {% endif %}
+                setNode(repr, i, null, 0);
+            }
+            repr.size = minFanout;
+
+            toBubble.set(repr, r, separator, count(repr), count(r));
+        }
+    }
 
-                separator = getKey(repr, MIN_FANOUT - 1);
+    // A tree in its own right, as consumed and produced by split and join. The root is subject to the same
+    // invariants as the root of a map (though an empty tree is always represented by a null root).
+    private static final class Tree {
+        private static final Tree EMPTY = new Tree(null, 0, 0);
+
+        private final AbstractNode root;
+        private final int depth; // Number of levels of internal nodes in the tree
+        private final int size;  // Number of entries in the tree
+
+        public Tree(AbstractNode root, int depth, int size) {
+            this.root = size == 0 ? null : root;
+            this.depth = size == 0 ? 0 : depth;
+            this.size = size;
+        }
+    }
+
+    // Builds a tree bottom-up from entries supplied in strictly ascending key order. Leaves are filled left to right,
+    // and then each level of internal nodes is built from the one below it. Compared to repeated calls to put, this
+    // avoids all the root-to-leaf descents and node splits.
+    private static class BulkLoader<$K$, $V$> {
+        private final int leafFanout, internalFanout;
+        {% if K.isGeneric() %}
+        private final ToLongFunction<? super $K$> keyPrefix;
+        {% elseif K.isString() %}
+        private final Comparator<? super $K$> comparator;
+        {% endif %}
+        private final int leafSize, internalSize; // The number of entries per leaf, and children per internal node, that we aim for
+
+        // The nodes on the level currently being built, along with the smallest key in, and number of entries in, each one
+        private AbstractNode[] nodes = new AbstractNode[16];
+        private @Erased $K$[] minKeys = {{K.newErasedArray("16")}};
+        private int[] counts = new int[16];
+        private int nodeCount;
+
+        private LeafNode<$K$, $V$> leaf;
+
+        // Only valid once finish() has been called
+        private AbstractNode root;
+        private int depth, size;
+
+        public {{KV_}}BulkLoader(int leafFanout, int internalFanout, {% if K.isGeneric() %}ToLongFunction<? super $K$> keyPrefix, {% elseif K.isString() %}Comparator<? super $K$> comparator, {% endif %}double fillFactor) {
+            if (!(fillFactor > 0 && fillFactor <= 1)) {
+                throw new IllegalArgumentException("Fill factor must lie in the range (0, 1], but was " + fillFactor);
+            }
+
+            this.leafFanout = leafFanout;
+            this.internalFanout = internalFanout;
+            {% if K.isGeneric() %}
+            this.keyPrefix = keyPrefix;
+            {% elseif K.isString() %}
+            this.comparator = comparator;
+            {% endif %}
+            this.leafSize = nodeSize(leafFanout, fillFactor);
+            this.internalSize = nodeSize(internalFanout, fillFactor);
+        }
+
+        private static int nodeSize(int minFanout, double fillFactor) {
+            final int maxFanout = 2 * minFanout - 1;
+            return Math.max(minFanout, Math.min(maxFanout, (int)Math.ceil(fillFactor * maxFanout)));
+        }
+
+        public void add($K$ key, $V$ value) {
+            if (leaf == null || leaf.size == leafSize) {
+                leaf = {{KV_}}LeafNode.create(leafFanout{% if K.isGeneric() %}, keyPrefix{% elseif K.isString() %}, comparator{% endif %});
+                addNode(leaf, key);
+            }
+
+            final int index = leaf.size++;
+            leaf.setKey  (index, key);
+            leaf.setValue(index, value);
+            counts[nodeCount - 1]++;
+            size++;
+        }
+
+        private void addNode(AbstractNode node, $K$ minKey) {
+            if (nodeCount == nodes.length) {
+                nodes   = Arrays.copyOf(nodes,   nodeCount * 2);
+                minKeys = Arrays.copyOf(minKeys, nodeCount * 2);
+                counts  = Arrays.copyOf(counts,  nodeCount * 2);
+            }
+
+            nodes[nodeCount] = node;
+            minKeys[nodeCount] = minKey;
+            nodeCount++;
+        }
+
+        public void finish() {
+            if (nodeCount == 0) {
+                return;
+            }
+
+            // Every leaf is full except perhaps the last one, which might need topping up from its predecessor
+            if (nodeCount > 1 && leaf.size < leafFanout) {
+                final LeafNode<$K$, $V$> pred = (LeafNode<$K$, $V$>)nodes[nodeCount - 2];
+                if (pred.size + leaf.size <= leaf.maxFanout()) {
+                    Leaf.copy(leaf, 0, pred, pred.size, leaf.size);
+                    pred.size += leaf.size;
+                    counts[nodeCount - 2] += leaf.size;
+                    nodeCount--;
+                } else {
+                    final int toMove = leafFanout - leaf.size;
+                    Leaf.copy(leaf, 0,                    leaf, toMove, leaf.size);
+                    Leaf.copy(pred, pred.size - toMove,   leaf, 0,      toMove);
+                    pred.size -= toMove;
+                    leaf.size += toMove;
+
+                    // Avoid memory leaks
+                    for (int i = pred.size; i < pred.size + toMove; i++) {
+                        {% if K.isObject() %}pred.setKey  (i, null);{% endif %}
+                        {% if V.isObject() %}pred.setValue(i, null);{% endif %}
+                    }
+
+                    counts[nodeCount - 2] -= toMove;
+                    counts[nodeCount - 1] += toMove;
+                    minKeys[nodeCount - 1] = leaf.getKey(0);
+                }
+            }
 
-                {{KObject_}}Node.arraycopyKey(repr, 0,                      l, 0,             MIN_FANOUT - 1);
-                {{KObject_}}Node.arraycopyKey(repr, MIN_FANOUT,             r, 0,             nodeIndex);
-                {{KObject_}}Node.arraycopyKey(repr, MIN_FANOUT + nodeIndex, r, nodeIndex + 1, MIN_FANOUT - nodeIndex - 2);
+            int depth = 0;
+            while (nodeCount > 1) {
+                // Distribute the children as evenly as possible between the parents. If there are too few children to give
+                // each parent internalSize of them then we make do with fewer parents, which is safe so long as they have at
+                // least internalFanout children each. (The root is the exception: it can have as few as 2.)
+                final int parents = nodeCount <= 2 * internalFanout - 1 ? 1 : Math.min((nodeCount + internalSize - 1) / internalSize, nodeCount / internalFanout);
+
+                int j = 0;
+                for (int p = 0; p < parents; p++) {
+                    final int children = (nodeCount - j) / (parents - p);
+                    final InternalNode<$K$> internal = {{K_}}InternalNode.create(internalFanout{% if K.isGeneric() %}, keyPrefix{% endif %});
+                    internal.size = children;
+                    for (int c = 0; c < children; c++) {
+                        if (c > 0) {
+                            internal.setKey(c - 1, ($K$)minKeys[j + c]);
+                        }
+                        Internal.setNode(internal, c, nodes[j + c], counts[j + c]);
+                    }
 
-                {{KObject_}}Node.arraycopyValue(repr, 0,                          l, 0,             MIN_FANOUT);
-                {{KObject_}}Node.arraycopyValue(repr, MIN_FANOUT,                 r, 0,             nodeIndex);
-                {{KObject_}}Node.arraycopyValue(repr, MIN_FANOUT + nodeIndex + 1, r, nodeIndex + 2, MIN_FANOUT - nodeIndex - 2);
+                    // Safe to overwrite in place since p <= j
+                    nodes[p] = internal;
+                    minKeys[p] = minKeys[j];
+                    counts[p] = Internal.count(internal);
+                    j += children;
+                }
 
-                r.setKey  (nodeIndex,     toBubble.separator);
-                r.setValue(nodeIndex,     toBubble.leftObjects);
-                r.setValue(nodeIndex + 1, toBubble.rightObjects);
+                nodeCount = parents;
+                depth++;
             }
 
-            return new BubbledInsertion<$K$>(l, r, separator);
+            this.root = nodes[0];
+            this.depth = depth;
         }
     }
 
+    // If you ask for a fresh map to be built from sorted data, you probably aren't about to do lots of insertions into it
+    private static final double DEFAULT_FILL_FACTOR = 1.0;
+
     private final Comparator<? super $K$> comparator;
+    private final int leafFanout, internalFanout; // The minimum fanouts of the nodes we create: each one of AbstractNode.FANOUTS
+    private final SearchStrategy searchStrategy;
+    {% if K.isGeneric() %}
+    private ToLongFunction<? super $K$> keyPrefix; // Given to the nodes we create: see Builder.keyPrefix
+    {% endif %}
 
     // Allocate these lazily to optimize allocation of lots of empty BTreeMaps
     private AbstractNode rootObjects;
@@ -367,43 +896,94 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     private int depth; // Number of levels of internal nodes in the tree
     private int size;
 
-    private {{KV_}}BTreeMap(Comparator<? super $K$> comparator) {
+    private {{KV_}}BTreeMap(Comparator<? super $K$> comparator, int leafFanout, int internalFanout, SearchStrategy searchStrategy) {
+        {% if K.isBytes() %}
+        // Leaf.find and Internal.find have a faster path for the natural order, which they recognise by the null
+        this.comparator = comparator == {{K_}}Comparator.UNSIGNED ? null : comparator;
+        {% elseif K.isPrimitive() %}
         this.comparator = comparator;
+        {% else %}
+        // Leaf.find and Internal.find are faster for the natural order, which they recognise by the null
+        this.comparator = comparator == Comparators.NATURAL ? null : comparator;
+        {% endif %}
+        this.leafFanout = leafFanout;
+        this.internalFanout = internalFanout;
+        {% if K.name == "Int" or K.name == "Long" %}
+        // Leaf.find and Internal.find only know how to interpolate between keys in their natural order
+        this.searchStrategy = this.comparator == null ? searchStrategy : searchStrategy.withoutInterpolation();
+        {% else %}
+        this.searchStrategy = searchStrategy.withoutInterpolation();
+        {% endif %}
     }
 
+    /**
+     * Returns a copy of this map, in O(1) time.
+     * <p>
+     * The two maps share all their nodes until one of them is modified, at which point that map copies just the nodes
+     * on the path to the modification (i.e. O(log n) of them) before making the change.
+     */
     @Override
     public {{KV_}}BTreeMap clone() {
-        final {{KV_}}BTreeMap result = new {{KV_}}BTreeMap(this.comparator);
+        final {{KV_}}BTreeMap result = new {{KV_}}BTreeMap(this.comparator, this.leafFanout, this.internalFanout, this.searchStrategy);
+        {% if K.isGeneric() %}
+        result.keyPrefix = this.keyPrefix;
+        {% endif %}
         result.depth = this.depth;
         result.size = this.size;
-        result.rootObjects = this.rootObjects == null ? null : this.rootObjects.clone(this.depth);
+        result.rootObjects = this.rootObjects;
+        if (this.rootObjects != null) {
+            this.rootObjects.shared = true;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a node with the same contents as the given one that only the caller holds a reference to, copying it if
+     * it is shared. Since the children of a copied node then have two parents, they are marked as shared in turn.
+     */
+    private static <$K$> AbstractNode unshare(AbstractNode repr, int depth) {
+        if (!repr.shared) {
+            return repr;
+        }
+
+        final AbstractNode result = repr.clone();
+        if (depth > 0) {
+            final InternalNode<$K$> internal = (InternalNode<$K$>)result;
+            for (int i = 0; i < internal.size; i++) {
+                Internal.getNode(internal, i).shared = true;
+            }
+        }
+
         return result;
     }
 
     void checkAssumingKeysNonNull() {
         if (rootObjects != null) {
-            checkCore(rootObjects, depth, null, null, Bound.MISSING, Bound.MISSING);
+            final int size = checkCore(rootObjects, depth, null, null, Bound.MISSING, Bound.MISSING);
+            assert size == this.size;
         }
     }
 
     private void checkInRange(@Boxed $K$ k, @Boxed $K$ min, @Boxed $K$ max, Bound minBound, Bound maxBound) {
-        assert minBound.lt(min, k, comparator) && maxBound.lt(k, max, comparator);
+        assert minBound.lt(min, k, comparator()) && maxBound.lt(k, max, comparator());
     }
 
-    private void checkCore(AbstractNode repr, int depth, @Boxed $K$ min, @Boxed $K$ max, Bound minBound, Bound maxBound) {
+    /** Returns the number of entries in the subtree */
+    private int checkCore(AbstractNode repr, int depth, @Boxed $K$ min, @Boxed $K$ max, Bound minBound, Bound maxBound) {
         final int size = repr.size; // FIXME: decide what to do here -- base class, or push into branches?
-        assert size <= Node.MAX_FANOUT;
+        assert repr.minFanout() == (depth == 0 ? leafFanout : internalFanout);
+        assert size <= repr.maxFanout();
         if (depth == this.depth) {
             // The root node may be smaller than others
             if (depth > 0) {
                 assert size >= 2;
             }
         } else {
-            assert size >= Node.MIN_FANOUT;
+            assert size >= repr.minFanout();
         }
 
         if (depth == 0) {
-            final Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
+            final LeafNode<$K$, $V$> leaf = (LeafNode<$K$, $V$>)repr;
 
             int i;
             for (i = 0; i < size; i++) {
@@ -412,10 +992,15 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                 {% if K.isObject %}
                 assert k != null;
                 {% endif %}
+                {% if K.isGeneric() %}
+                assert leaf.prefixes == null || leaf.prefixes[i] == keyPrefix.applyAsLong(k);
+                {% elseif K.isBytes() %}
+                assert leaf.heads[i] == ByteArrays.head(k);
+                {% endif %}
             }
 
             // To avoid memory leaks
-            for (; i < Node.MAX_FANOUT; i++) {
+            for (; i < repr.maxFanout(); i++) {
                 {% if K.isObject %}
                 assert Leaf.getKey(leaf, i) == null;
                 {% endif %}
@@ -423,8 +1008,10 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                 assert Leaf.getValue(leaf, i) == null;
                 {% endif %}
             }
+
+            return size;
         } else {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
+            final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
 
             {
                 int i;
@@ -434,28 +1021,38 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                     {% if K.isObject %}
                     assert k != null;
                     {% endif %}
+                    {% if K.isGeneric() %}
+                    assert internal.prefixes == null || internal.prefixes[i] == keyPrefix.applyAsLong(k);
+                    {% elseif K.isBytes() %}
+                    assert internal.heads[i] == ByteArrays.head(k);
+                    {% endif %}
                 }
 
                 {% if K.isObject %}
                 // To avoid memory leaks
-                for (; i < Node.MAX_FANOUT - 1; i++) {
+                for (; i < repr.maxFanout() - 1; i++) {
                     assert Internal.getKey(internal, i) == null;
                 }
                 {% endif %}
             }
 
             {
+                final int[] counts = new int[size];
                 int i;
-                checkCore    (Internal.getNode(internal, 0),        depth - 1, min,                             Internal.getKey(internal, 0), minBound,        Bound.EXCLUSIVE);
+                counts[0]            = checkCore(Internal.getNode(internal, 0),        depth - 1, min,                             Internal.getKey(internal, 0), minBound,        Bound.EXCLUSIVE);
                 for (i = 1; i < size - 1; i++) {
-                    checkCore(Internal.getNode(internal, i),        depth - 1, Internal.getKey(internal, i - 1),    Internal.getKey(internal, i), Bound.INCLUSIVE, Bound.EXCLUSIVE);
+                    counts[i]        = checkCore(Internal.getNode(internal, i),        depth - 1, Internal.getKey(internal, i - 1),    Internal.getKey(internal, i), Bound.INCLUSIVE, Bound.EXCLUSIVE);
                 }
-                checkCore    (Internal.getNode(internal, size - 1), depth - 1, Internal.getKey(internal, size - 2), max,                      Bound.INCLUSIVE, maxBound);
+                counts[size - 1]     = checkCore(Internal.getNode(internal, size - 1), depth - 1, Internal.getKey(internal, size - 2), max,                      Bound.INCLUSIVE, maxBound);
+
+                assert Arrays.equals(counts, Arrays.copyOf(internal.counts, size));
 
                 // To avoid memory leaks
-                for (i = size; i < Node.MAX_FANOUT; i++) {
+                for (i = size; i < repr.maxFanout(); i++) {
                     assert Internal.getNode(internal, i) == null;
                 }
+
+                return Internal.count(internal);
             }
         }
     }
@@ -469,13 +1066,33 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
     @Override
     public Comparator<? super $K$> comparator() {
+        {% if K.isBytes() %}
+        // Unlike other keys, byte[] has no natural order that a null could stand for
+        return comparator == null ? {{K_}}Comparator.UNSIGNED : comparator;
+        {% else %}
         return comparator;
+        {% endif %}
     }
 
     @Override
     public void putAll(Map<? extends @Boxed $K$, ? extends @Boxed $V$> that) {
         if (that instanceof SortedMap && Objects.equals(this.comparator(), ((SortedMap)that).comparator())) {
-            // TODO: fastpath? (Even faster if that instanceof {{KV_}}BTreeMap)
+            if (that instanceof {{KV_}}BTreeMap) {
+                final {{KV_}}BTreeMap thatMap = ({{KV_}}BTreeMap)that;
+                // Splicing shares that's nodes with us, so they had better be the same shape as our own
+                if (thatMap.leafFanout == leafFanout && thatMap.internalFanout == internalFanout{% if K.isGeneric() %} && thatMap.keyPrefix == keyPrefix{% endif %} && trySplice(thatMap)) {
+                    return;
+                }
+
+                // Merging costs O(n + m) whereas individual puts cost O(m log n), so it's only worth it if that isn't tiny
+                if ((long)thatMap.size * 16 >= size) {
+                    merge(thatMap);
+                    return;
+                }
+            } else if (size == 0) {
+                bulkLoad(that.entrySet().iterator(), DEFAULT_FILL_FACTOR);
+                return;
+            }
         }
 
         for (Map.Entry<? extends @Boxed $K$, ? extends @Boxed $V$> e : that.entrySet()) {
@@ -484,26 +1101,120 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     }
 
 
-    @Override
-    public @Boxed $V$ get(Object key) {
-        return getOrDefault(key, null);
-    }
-
-    {% if V.isPrimitive() %}
+    /** Replaces the contents of this map with the entries from the iterator, which must be in strictly ascending key order */
+    private void bulkLoad(Iterator<? extends Entry<? extends @Boxed $K$, ? extends @Boxed $V$>> it, double fillFactor) {
+        final BulkLoader<$K$, $V$> loader = new BulkLoader<$K$, $V$>(leafFanout, internalFanout, {% if K.isGeneric() %}keyPrefix, {% elseif K.isString() %}comparator, {% endif %}fillFactor);
+        while (it.hasNext()) {
+            final Entry<? extends @Boxed $K$, ? extends @Boxed $V$> e = it.next();
+            loader.add(($K$)e.getKey(), ($V$)e.getValue());
+        }
+        loader.finish();
 
-    /** Gets the value at the given key. If no such value was found, returns the most negative {@code {{V}}} value. */
-    public $V$ get{{V.name}}(Object key) {
-        return getOrDefault{{V.name}}(key, {{V.dfault}});
+        this.rootObjects = loader.root;
+        this.depth = loader.depth;
+        this.size = loader.size;
     }
 
-    {% endif %}
+    /**
+     * If the keys in that (which must share our comparator) all lie strictly to one side of our own, adds a copy of that
+     * to this map wholesale by joining the trees together, and returns true. Otherwise returns false.
+     */
+    private boolean trySplice({{KV_}}BTreeMap that) {
+        final Tree thisTree = tree(), thatTree = that.tree();
+        if (thatTree.root == null) {
+            return true;
+        } else if (thisTree.root == null || compare(lastKey(thisTree), firstKey(thatTree)) < 0) {
+            setTree(join(thisTree, firstKey(thatTree), that.clone().tree()));
+            return true;
+        } else if (compare(lastKey(thatTree), firstKey(thisTree)) < 0) {
+            setTree(join(that.clone().tree(), firstKey(thisTree), thisTree));
+            return true;
+        } else {
+            return false;
+        }
+    }
 
-    {% if K.isPrimitive() %}
+    /** Replaces the contents of this map with its union with that (which must share our comparator), preferring the values in that */
+    private void merge({{KV_}}BTreeMap that) {
+        final ArrayList<LeafNode<$K$, $V$>> theseLeaves = leaves(), thoseLeaves = that.leaves();
+        final BulkLoader<$K$, $V$> loader = new BulkLoader<$K$, $V$>(leafFanout, internalFanout, {% if K.isGeneric() %}keyPrefix, {% elseif K.isString() %}comparator, {% endif %}DEFAULT_FILL_FACTOR);
 
-    /** Gets the value at the given key. If no such value was found, returns null. */
-    public @Boxed $V$ get($K$ key) {
-        return getOrDefault(key, null);
-    }
+        int i = 0, ii = 0, j = 0, jj = 0;
+        while (i < theseLeaves.size() && j < thoseLeaves.size()) {
+            final LeafNode<$K$, $V$> thisLeaf = theseLeaves.get(i), thatLeaf = thoseLeaves.get(j);
+            final $K$ thisKey = thisLeaf.getKey(ii), thatKey = thatLeaf.getKey(jj);
+
+            final int cmp = compare(thisKey, thatKey);
+            if (cmp < 0) {
+                loader.add(thisKey, thisLeaf.getValue(ii));
+            } else {
+                loader.add(thatKey, thatLeaf.getValue(jj));
+                if (++jj == thatLeaf.size) { j++; jj = 0; }
+            }
+
+            if (cmp <= 0) {
+                if (++ii == thisLeaf.size) { i++; ii = 0; }
+            }
+        }
+
+        addAll(loader, theseLeaves, i, ii);
+        addAll(loader, thoseLeaves, j, jj);
+        loader.finish();
+
+        this.rootObjects = loader.root;
+        this.depth = loader.depth;
+        this.size = loader.size;
+    }
+
+    private static <$K$, $V$> void addAll(BulkLoader<$K$, $V$> loader, ArrayList<LeafNode<$K$, $V$>> leaves, int i, int ii) {
+        for (; i < leaves.size(); i++, ii = 0) {
+            final LeafNode<$K$, $V$> leaf = leaves.get(i);
+            for (; ii < leaf.size; ii++) {
+                loader.add(leaf.getKey(ii), leaf.getValue(ii));
+            }
+        }
+    }
+
+    /** All the leaves of the tree, in key order */
+    private ArrayList<LeafNode<$K$, $V$>> leaves() {
+        final ArrayList<LeafNode<$K$, $V$>> result = new ArrayList<>();
+        if (rootObjects != null) {
+            leaves(rootObjects, depth, result);
+        }
+        return result;
+    }
+
+    private static <$K$, $V$> void leaves(AbstractNode repr, int depth, ArrayList<LeafNode<$K$, $V$>> result) {
+        if (depth == 0) {
+            result.add((LeafNode<$K$, $V$>)repr);
+        } else {
+            final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+            for (int i = 0; i < internal.size; i++) {
+                leaves(Internal.getNode(internal, i), depth - 1, result);
+            }
+        }
+    }
+
+    @Override
+    public @Boxed $V$ get(Object key) {
+        return getOrDefault(key, null);
+    }
+
+    {% if V.isPrimitive() %}
+
+    /** Gets the value at the given key. If no such value was found, returns the most negative {@code {{V}}} value. */
+    public $V$ get{{V.name}}(Object key) {
+        return getOrDefault{{V.name}}(key, {{V.dfault}});
+    }
+
+    {% endif %}
+
+    {% if K.isPrimitive() %}
+
+    /** Gets the value at the given key. If no such value was found, returns null. */
+    public @Boxed $V$ get($K$ key) {
+        return getOrDefault(key, null);
+    }
 
     {% endif %}
 
@@ -517,22 +1228,24 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     {% endif %}
 
 
-    private Node<$K$, $V$> findLeaf(@Erased $K$ key) {
-        AbstractNode nextObjects = rootObjects;
-        int depth = this.depth;
-
-        if (nextObjects == null) {
+    private LeafNode<$K$, $V$> findLeaf(@Erased $K$ key) {
+        if (rootObjects == null) {
             return null;
         }
 
+        return findLeaf(rootObjects, depth, key);
+    }
+
+    /** Returns the leaf that would contain the key, out of those in the subtree rooted at the node of the given depth */
+    private LeafNode<$K$, $V$> findLeaf(AbstractNode nextObjects, int depth, @Erased $K$ key) {
         final Comparator<? super @Boxed $K$> comparator = this.comparator;
         while (depth-- > 0) {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)nextObjects;
-            final int ix = Internal.find(internal, key, comparator);
+            final InternalNode<$K$> internal = (InternalNode<$K$>)nextObjects;
+            final int ix = Internal.find(internal, key, comparator, searchStrategy);
             nextObjects = Internal.getNode(internal, ix);
         }
 
-        return (Node<$K$, $V$>)nextObjects;
+        return (LeafNode<$K$, $V$>)nextObjects;
     }
 
     @Override
@@ -541,11 +1254,11 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         if (!(key instanceof @Boxed $K$)) return dflt;
         return getOrDefault(($K$)key, dflt);
         {% else %}
-        final Node<$K$, $V$> leaf = findLeaf(key);
+        final LeafNode<$K$, $V$> leaf = findLeaf(({{K.erased}})key);
 
         if (leaf == null) return dflt;
 
-        final int ix = Leaf.find(leaf, ({{K.erased}})key, this.comparator);
+        final int ix = Leaf.find(leaf, ({{K.erased}})key, this.comparator, searchStrategy);
         if (ix < 0) {
             return dflt;
         } else {
@@ -558,11 +1271,11 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
     /** Gets the value at the given key. If no such value was found, returns the specified default. */
     public @Boxed $V$ getOrDefault($K$ key, @Boxed $V$ dflt) {
-        final Node<$K$, $V$> leaf = findLeaf(key);
+        final LeafNode<$K$, $V$> leaf = findLeaf(key);
 
         if (leaf == null) return dflt;
 
-        final int ix = Leaf.find(leaf, key, this.comparator);
+        final int ix = Leaf.find(leaf, key, this.comparator, searchStrategy);
         if (ix < 0) {
             return dflt;
         } else {
@@ -580,11 +1293,11 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         if (!(key instanceof @Boxed $K$)) return dflt;
         return getOrDefault{{V.name}}(($K$)key, dflt);
         {% else %}
-        final Node<$K$, $V$> leaf = findLeaf(key);
+        final LeafNode<$K$, $V$> leaf = findLeaf(({{K.erased}})key);
 
         if (leaf == null) return dflt;
 
-        final int ix = Leaf.find(leaf, key, this.comparator);
+        final int ix = Leaf.find(leaf, key, this.comparator, searchStrategy);
         if (ix < 0) {
             return dflt;
         } else {
@@ -599,11 +1312,11 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
     /** Gets the value at the given key. If no such value was found, returns the specified default. */
     public $V$ getOrDefault{{V.name}}($K$ key, $V$ dflt) {
-        final Node<$K$, $V$> leaf = findLeaf(key);
+        final LeafNode<$K$, $V$> leaf = findLeaf(key);
 
         if (leaf == null) return dflt;
 
-        final int ix = Leaf.find(leaf, key, this.comparator);
+        final int ix = Leaf.find(leaf, key, this.comparator, searchStrategy);
         if (ix < 0) {
             return dflt;
         } else {
@@ -620,10 +1333,10 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         if (!(key instanceof @Boxed $K$)) return false;
         return containsKey(($K$)key);
         {% else %}
-        final Node<$K$, $V$> leaf = findLeaf(key);
+        final LeafNode<$K$, $V$> leaf = findLeaf(({{K.erased}})key);
         if (leaf == null) return false;
 
-        final int ix = Leaf.find(leaf, key, comparator);
+        final int ix = Leaf.find(leaf, ({{K.erased}})key, comparator, searchStrategy);
         return ix >= 0;
         {% endif %}
     }
@@ -632,10 +1345,10 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
     /** Returns true iff an entry exists in the map with the supplied key. */
     public boolean containsKey($K$ key) {
-        final Node<$K$, $V$> leaf = findLeaf(key);
+        final LeafNode<$K$, $V$> leaf = findLeaf(key);
         if (leaf == null) return false;
 
-        final int ix = Leaf.find(leaf, key, comparator);
+        final int ix = Leaf.find(leaf, key, comparator, searchStrategy);
         return ix >= 0;
     }
 
@@ -653,14 +1366,12 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
             return null;
         }
 
-        final @Erased @Boxed $V$[] resultBox = new @Erased @Boxed $V$[1];
-        final BubbledInsertion<$K$> toBubble = putInternal(key, value, rootObjects, this.depth, resultBox);
-        if (toBubble == null) {
-            return (@Boxed $V$)resultBox[0];
-        } else {
-            finishBubbling(toBubble);
-            return null;
-        }
+        rootObjects = unshare(rootObjects, depth);
+
+        final int size = this.size;
+        final $V$ result = putInternal(key, value, rootObjects, this.depth);
+        finishBubbling();
+        return size == this.size ? (@Boxed $V$)result : null;
     }
 
     {% if V.isPrimitive() %}
@@ -670,15 +1381,11 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
             return {{V.dfault}};
         }
 
-        final $V$[] resultBox = new $V$[1];
-        resultBox[0] = {{V.dfault}};
-        final BubbledInsertion<$K$> toBubble = putInternal{{V.name}}(key, value, rootObjects, this.depth, resultBox);
-        if (toBubble == null) {
-            return resultBox[0];
-        } else {
-            finishBubbling(toBubble);
-            return {{V.dfault}};
-        }
+        rootObjects = unshare(rootObjects, depth);
+
+        final $V$ result = putInternal(key, value, rootObjects, this.depth);
+        finishBubbling();
+        return result;
     }
     {% endif %}
 
@@ -704,7 +1411,7 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         if (rootObjects != null) {
             return false;
         } else {
-            final Node<$K$, $V$> leaf = new Node<$K$, $V$>();
+            final LeafNode<$K$, $V$> leaf = {{KV_}}LeafNode.create(leafFanout{% if K.isGeneric() %}, keyPrefix{% elseif K.isString() %}, comparator{% endif %});
             leaf.setKey(0, key);
             leaf.setValue(0, value);
             leaf.size = 1;
@@ -715,82 +1422,81 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         }
     }
 
-    private void finishBubbling(BubbledInsertion<$K$> toBubble) {
-        final Node<$K$, AbstractNode> internal = new Node<$K$, AbstractNode>();
-        internal.size = 2;
-        internal.setKey  (0, toBubble.separator);
-        internal.setValue(0, toBubble.leftObjects);
-        internal.setValue(1, toBubble.rightObjects);
+    // Allocated on the first split, so that empty and small maps don't pay for it
+    private BubbledInsertion<$K$> bubble;
 
-        this.rootObjects = internal;
-        this.depth++;
+    private BubbledInsertion<$K$> bubble() {
+        if (bubble == null) {
+            bubble = new BubbledInsertion<$K$>();
+        }
+        return bubble;
     }
 
-    private BubbledInsertion<$K$> putInternal($K$ key, $V$ value, AbstractNode nextObjects, int depth, @Erased @Boxed $V$[] resultBox) {
-        if (depth == 0) {
-            final Node<$K$, $V$> leaf = (Node<$K$, $V$>)nextObjects;
-            final int nodeIndex = Leaf.find(leaf, key, comparator);
-            if (nodeIndex < 0) this.size++;
-
-            if (Leaf.canPutAtIndex(leaf.size, nodeIndex)) {
-                if (nodeIndex >= 0) {
-                    resultBox[0] = Leaf.putOverwriteIndex(leaf, nodeIndex, key, value);
-                } else {
-                    Leaf.putInsertIndex(leaf, nodeIndex, key, value);
-                }
-
-                return null;
-            }
+    /** If the root was split, grows the tree by one level to hold the two halves */
+    private void finishBubbling() {
+        final BubbledInsertion<$K$> toBubble = this.bubble;
+        if (toBubble == null || !toBubble.isPending()) {
+            return;
+        }
 
-            return Leaf.bubblePutAtIndex(leaf, nodeIndex, key, value);
-        } else {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)nextObjects;
-            final int nodeIndex = Internal.find(internal, key, comparator);
+        final InternalNode<$K$> internal = {{K_}}InternalNode.create(internalFanout{% if K.isGeneric() %}, keyPrefix{% endif %});
+        internal.size = 2;
+        internal.setKey(0, toBubble.separator);
+        Internal.setNode(internal, 0, toBubble.leftObjects,  toBubble.leftCount);
+        Internal.setNode(internal, 1, toBubble.rightObjects, toBubble.rightCount);
+        toBubble.clear();
 
-            final BubbledInsertion<$K$> toBubble = putInternal(key, value, Internal.getNode(internal, nodeIndex), depth - 1, resultBox);
-            return putInternalFinishInternal(internal, nodeIndex, toBubble);
-        }
+        this.rootObjects = internal;
+        this.depth++;
     }
 
-    {% if V.isPrimitive() %}
-    private BubbledInsertion<$K$> putInternal{{V.name}}($K$ key, $V$ value, AbstractNode nextObjects, int depth, $V$[] resultBox) {
+    /**
+     * Returns the value the key was previously mapped to, or {{V.dfault}} if it was newly inserted (in which case
+     * size is incremented). If the node had to be split, the split is left pending in the bubble() for the caller.
+     */
+    private $V$ putInternal($K$ key, $V$ value, AbstractNode nextObjects, int depth) {
         if (depth == 0) {
-            final Node<$K$, $V$> leaf = (Node<$K$, $V$>)nextObjects;
-            final int nodeIndex = Leaf.find(leaf, key, comparator);
-            if (nodeIndex < 0) this.size++;
-
-            if (Leaf.canPutAtIndex(leaf.size, nodeIndex)) {
-                if (nodeIndex >= 0) {
-                    resultBox[0] = Leaf.putOverwriteIndex(leaf, nodeIndex, key, value);
-                } else {
-                    Leaf.putInsertIndex(leaf, nodeIndex, key, value);
-                }
+            final LeafNode<$K$, $V$> leaf = (LeafNode<$K$, $V$>)nextObjects;
+            final int nodeIndex = Leaf.find(leaf, key, comparator, searchStrategy);
+            if (nodeIndex >= 0) {
+                return Leaf.putOverwriteIndex(leaf, nodeIndex, key, value);
+            }
 
-                return null;
+            this.size++;
+            if (Leaf.canPutAtIndex(leaf, nodeIndex)) {
+                Leaf.putInsertIndex(leaf, nodeIndex, key, value);
+            } else {
+                Leaf.bubblePutAtIndex(leaf, nodeIndex, key, value, bubble());
             }
 
-            return Leaf.bubblePutAtIndex(leaf, nodeIndex, key, value);
+            return {{V.dfault}};
         } else {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)nextObjects;
-            final int nodeIndex = Internal.find(internal, key, comparator);
+            final InternalNode<$K$> internal = (InternalNode<$K$>)nextObjects;
+            final int nodeIndex = Internal.find(internal, key, comparator, searchStrategy);
 
-            final BubbledInsertion<$K$> toBubble = putInternal{{V.name}}(key, value, Internal.getNode(internal, nodeIndex), depth - 1, resultBox);
-            return putInternalFinishInternal(internal, nodeIndex, toBubble);
+            final int size = this.size;
+            final $V$ result = putInternal(key, value, Internal.getNodeForWrite(internal, nodeIndex, depth - 1), depth - 1);
+            putInternalFinishInternal(internal, nodeIndex, this.size - size);
+            return result;
         }
     }
-    {% endif %}
-
-    private BubbledInsertion<$K$> putInternalFinishInternal(Node<$K$, AbstractNode> internal, int nodeIndex, BubbledInsertion<$K$> toBubble) {
-        if (toBubble == null) {
-            return null;
-        }
 
-        if (Internal.canPutAtIndex(internal.size)) {
+    /**
+     * Inserts any pending split of the child at nodeIndex into the internal node, leaving a split of the internal node
+     * itself pending if it overflows.
+     *
+     * @param inserted the number of entries that were added to the child at nodeIndex
+     */
+    private void putInternalFinishInternal(InternalNode<$K$> internal, int nodeIndex, int inserted) {
+        final BubbledInsertion<$K$> toBubble = this.bubble;
+        if (toBubble == null || !toBubble.isPending()) {
+            internal.counts[nodeIndex] += inserted;
+        } else if (Internal.canPutAtIndex(internal)) {
             Internal.putAtIndex(internal, nodeIndex, toBubble);
-            return null;
+            toBubble.clear();
+        } else {
+            Internal.bubblePutAtIndex(internal, nodeIndex, toBubble);
         }
-
-        return Internal.bubblePutAtIndex(internal, nodeIndex, toBubble);
     }
 
     @Override
@@ -803,6 +1509,68 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         return size == 0;
     }
 
+    /**
+     * Returns the number of entries in the map whose keys are strictly less than {@code key}. If the key is present
+     * in the map, this is the index of its entry in iteration order.
+     * <p>
+     * Runs in log(n) time, as does {@code headMap(key).size()}.
+     */
+    public int rank($K$ key) {
+        return rank(key, false);
+    }
+
+    /** As {@link #rank}, but if {@code inclusive} then also counts the entry for {@code key} itself, if present */
+    int rank($K$ key, boolean inclusive) {
+        AbstractNode repr = rootObjects;
+        if (repr == null) {
+            return 0;
+        }
+
+        int result = 0;
+        for (int depth = this.depth; depth > 0; depth--) {
+            final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+            final int index = Internal.find(internal, key, comparator, searchStrategy);
+            final int[] counts = internal.counts;
+            for (int i = 0; i < index; i++) {
+                result += counts[i];
+            }
+            repr = Internal.getNode(internal, index);
+        }
+
+        final int index = Leaf.find((LeafNode<$K$, $V$>)repr, key, comparator, searchStrategy);
+        return result + (index >= 0 ? (inclusive ? index + 1 : index) : -(index + 1));
+    }
+
+    /**
+     * Returns the entry at the given (zero-based) index in iteration order. This is the inverse of {@link #rank}.
+     * <p>
+     * Runs in log(n) time.
+     *
+     * @throws IndexOutOfBoundsException if the index is negative or not less than {@link #size()}
+     */
+    public Entry<@Boxed $K$, @Boxed $V$> entryAtIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for map of size " + size);
+        }
+
+        AbstractNode repr = rootObjects;
+        for (int depth = this.depth; depth > 0; depth--) {
+            final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+            final int[] counts = internal.counts;
+            int i = 0;
+            while (index >= counts[i]) {
+                index -= counts[i++];
+            }
+            repr = Internal.getNode(internal, i);
+        }
+
+        final LeafNode<$K$, $V$> leaf = (LeafNode<$K$, $V$>)repr;
+        return new AbstractMap.SimpleImmutableEntry<>(
+            Leaf.getKey  (leaf, index),
+            Leaf.getValue(leaf, index)
+        );
+    }
+
     public boolean containsValue(Object value) {
         return values().stream().anyMatch(v -> Objects.equals(v, value));
     }
@@ -828,8 +1596,9 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
     private static <$K$, $V$> String toStringInternal(AbstractNode repr, int depth) {
         if (depth == 0) {
-            final Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
-            final StringBuilder sb = new StringBuilder();
+            final LeafNode<$K$, $V$> leaf = (LeafNode<$K$, $V$>)repr;
+            // Qualified because StringBTreeMap has a nested Builder class of its own, called StringBuilder
+            final java.lang.StringBuilder sb = new java.lang.StringBuilder();
             for (int i = 0; i < leaf.size; i++) {
                 if (sb.length() != 0) sb.append(", ");
                 sb.append(Leaf.getKey(leaf, i)).append(": ").append(Leaf.getValue(leaf, i));
@@ -837,8 +1606,8 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
             return sb.toString();
         } else {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-            final StringBuilder sb = new StringBuilder();
+            final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+            final java.lang.StringBuilder sb = new java.lang.StringBuilder();
             for (int i = 0; i < internal.size; i++) {
                 if (sb.length() != 0) {
                     sb.append(" |").append(Internal.getKey(internal, i - 1)).append("| ");
@@ -852,354 +1621,199 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     }
 
 
-    {% if K.isPrimitive() %}
-    static <$K$, $V$> $K$ getEntryKey{{K.name}}(Entry<@Boxed $K$, @Boxed $V$> e) {
-        return e == null ? {{K.dfault}} : ($K$)e.getKey();
-    }
-    {% endif %}
-
     static <K, V> K getEntryKey(Entry<K, V> e) {
         return e == null ? null : e.getKey();
     }
 
 
-    {% for keyMethod in ["lower", "higher", "floor", "ceiling"] %}
+    // The four searches share a body, which we instantiate three times for each of them, differing only in whether
+    // they return the whole entry or just its key or value. This lets callers that don't want an Entry avoid allocating one.
+    {% for method in ["lower", "floor", "ceiling", "higher"] %}
+    {% set descending = method == "lower" or method == "floor" %}
+    {% for result in ["Entry", "Key", "Value"] %}
 
+    {% if result == "Entry" %}
     {% if K.isPrimitive() %}
     /**
      * {@inheritDoc}
      *
-     * @throws NullPointerException if the key is null
+     * @throws NullPointerException if key is null
      */
     @Override
-    public @Boxed $K$ {{keyMethod}}Key(@Boxed $K$ key) {
-        return {{keyMethod}}Key(($K$)key);
-    }
-
-    /** Returns the key of the entry returned by {@link #{{keyMethod}}Entry}, or the most negative {@code {{K}}} value if no such entry exists */
-    public $K$ {{keyMethod}}Key{{K.name}}($K$ key) {
-        return getEntryKey{{K.name}}({{keyMethod}}Entry(key));
+    public Entry<@Boxed $K$, @Boxed $V$> {{method}}Entry(@Boxed $K$ key) {
+        return {{method}}Entry(($K$)key);
     }
 
-    /** Returns the key of the entry returned by {@link #{{keyMethod}}Entry}, or null if no such entry exists */
+    /** Returns the entry with {% if method == "lower" %}largest key strictly less than{% elseif method == "floor" %}largest key less than or equal to{% elseif method == "ceiling" %}smallest key greater than or equal to{% else %}smallest key strictly greater than{% endif %} {@code key}, or null if no such entry exists */
+    public Entry<@Boxed $K$, @Boxed $V$> {{method}}Entry($K$ key) {
     {% else %}
     @Override
+    public Entry<@Boxed $K$, @Boxed $V$> {{method}}Entry($K$ key) {
     {% endif %}
-    public @Boxed $K$ {{keyMethod}}Key($K$ key) {
-        return getEntryKey({{keyMethod}}Entry(key));
-    }
-
-    {% endfor %}
-
-
+    {% elseif result == "Key" %}
     {% if K.isPrimitive() %}
     /**
      * {@inheritDoc}
      *
-     * @throws NullPointerException if key is null
+     * @throws NullPointerException if the key is null
      */
     @Override
-    public Entry<@Boxed $K$, @Boxed $V$> lowerEntry(@Boxed $K$ key) {
-        return lowerEntry(($K$)key);
+    public @Boxed $K$ {{method}}Key(@Boxed $K$ key) {
+        return {{method}}Key(($K$)key);
+    }
+
+    /** Returns the key of the entry returned by {@link #{{method}}Entry}, or null if no such entry exists */
+    public @Boxed $K$ {{method}}Key($K$ key) {
+        return getEntryKey({{method}}Entry(key));
     }
 
-    /** Returns the entry with largest key strictly less than {@code key}, or null if no such entry exists */
-    public Entry<@Boxed $K$, @Boxed $V$> lowerEntry($K$ key) {
+    /** Returns the key of the entry returned by {@link #{{method}}Entry}, or the most negative {@code {{K}}} value if no such entry exists */
+    public $K$ {{method}}Key{{K.name}}($K$ key) {
     {% else %}
     @Override
-    public Entry<@Boxed $K$, @Boxed $V$> lowerEntry($K$ key) {
+    public $K$ {{method}}Key($K$ key) {
+    {% endif %}
+    {% else %}
+    /** Returns the value of the entry returned by {@link #{{method}}Entry}, or {% if V.isPrimitive() %}the most negative {@code {{V}}} value{% else %}null{% endif %} if no such entry exists */
+    public $V$ {{method}}Value{% if V.isPrimitive() %}{{V.name}}{% endif %}($K$ key) {
     {% endif %}
         if (rootObjects == null) {
-            return null;
+            return {% if result == "Entry" %}null{% elseif result == "Key" %}{{K.dfault}}{% else %}{{V.dfault}}{% endif %};
         }
 
         final int depth = this.depth;
 
-        Node<$K$, AbstractNode> backtrackParent = null; // Deepest internal node on the path to "key" which has a child prior to the one we descended into
-        int backtrackIndex = -1;                  // Index of that prior child
+        InternalNode<$K$> backtrackParent = null; // Deepest internal node on the path to "key" which has a child {% if descending %}prior to{% else %}next to{% endif %} the one we descended into
+        int backtrackIndex = -1;                  // Index of that {% if descending %}prior{% else %}next{% endif %} child
         int backtrackDepth = -1;                  // Depth of that internal node
 
         AbstractNode repr = rootObjects;
         for (int i = 0; i < depth; i++) {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-            final int index = Internal.find(internal, key, comparator);
+            final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+            final int index = Internal.find(internal, key, comparator, searchStrategy);
+            {% if descending %}
             if (index > 0) {
                 backtrackParent = internal;
                 backtrackIndex = index - 1;
                 backtrackDepth = i;
             }
+            {% else %}
+            if (index < internal.size - 1) {
+                backtrackParent = internal;
+                backtrackIndex = index + 1;
+                backtrackDepth = i;
+            }
+            {% endif %}
             repr = Internal.getNode(internal, index);
         }
 
-        Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
-        final int leafIndex = Leaf.find(leaf, key, comparator);
-        final int insertionPoint = leafIndex >= 0 ? leafIndex : -(leafIndex + 1);
-        final int returnIndex;
-        if (insertionPoint > 0) {
-            returnIndex = insertionPoint - 1;
-        } else {
-            // insertionPoint == 0: we need to find the last item in the prior leaf node.
+        LeafNode<$K$, $V$> leaf = (LeafNode<$K$, $V$>)repr;
+        final int leafIndex = Leaf.find(leaf, key, comparator, searchStrategy);
+        {% if method == "lower" %}
+        int returnIndex = (leafIndex >= 0 ? leafIndex : -(leafIndex + 1)) - 1;
+        {% elseif method == "floor" %}
+        int returnIndex = leafIndex >= 0 ? leafIndex : -(leafIndex + 1) - 1;
+        {% elseif method == "ceiling" %}
+        int returnIndex = leafIndex >= 0 ? leafIndex : -(leafIndex + 1);
+        {% else %}
+        int returnIndex = leafIndex >= 0 ? leafIndex + 1 : -(leafIndex + 1);
+        {% endif %}
+        {% if descending %}
+        if (returnIndex < 0) {
+            // We need to find the last item in the prior leaf node.
             if (backtrackParent == null) {
                 // Oh -- that was the first leaf node
-                return null;
+        {% else %}
+        if (returnIndex >= leaf.size) {
+            // We need to find the first item in the next leaf node.
+            if (backtrackParent == null) {
+                // Oh -- that was the last leaf node
+        {% endif %}
+                return {% if result == "Entry" %}null{% elseif result == "Key" %}{{K.dfault}}{% else %}{{V.dfault}}{% endif %};
             }
 
             repr = backtrackParent;
             int index = backtrackIndex;
             for (int i = backtrackDepth; i < depth; i++) {
-                final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
+                final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
                 repr = Internal.getNode(internal, index);
-                index = repr.size - 1;
+                index = {% if descending %}repr.size - 1{% else %}0{% endif %};
             }
 
+            leaf = (LeafNode<$K$, $V$>)repr;
             returnIndex = index;
-            leaf = (Node<$K$, $V$>)repr;
         }
 
+        {% if result == "Entry" %}
         return new AbstractMap.SimpleImmutableEntry<>(
             Leaf.getKey  (leaf, returnIndex),
             Leaf.getValue(leaf, returnIndex)
         );
+        {% elseif result == "Key" %}
+        return Leaf.getKey(leaf, returnIndex);
+        {% else %}
+        return Leaf.getValue(leaf, returnIndex);
+        {% endif %}
     }
+    {% endfor %}
+    {% endfor %}
 
-    {% if K.isPrimitive() %}
-    /**
-     * {@inheritDoc}
-     *
-     * @throws NullPointerException if key is null
-     */
-    @Override
-    public Entry<@Boxed $K$, @Boxed $V$> floorEntry(@Boxed $K$ key) {
-        return floorEntry(($K$)key);
-    }
-
-    /** Returns entry with largest key less than or equal to {@code key}, or null if no such entry exists */
-    public Entry<@Boxed $K$, @Boxed $V$> floorEntry($K$ key) {
-    {% else %}
-    @Override
-    public Entry<@Boxed $K$, @Boxed $V$> floorEntry($K$ key) {
-    {% endif %}
+    /** The leaf holding the first entry, or null if the map is empty */
+    private LeafNode<$K$, $V$> firstLeaf() {
         if (rootObjects == null) {
             return null;
         }
 
-        final int depth = this.depth;
-
-        Node<$K$, AbstractNode> backtrackParent = null; // Deepest internal node on the path to "key" which has a child prior to the one we descended into
-        int backtrackIndex = -1;                  // Index of that prior child
-        int backtrackDepth = -1;                  // Depth of that internal node
-
         AbstractNode repr = rootObjects;
-        for (int i = 0; i < depth; i++) {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-            final int index = Internal.find(internal, key, comparator);
-            if (index > 0) {
-                backtrackParent = internal;
-                backtrackIndex = index - 1;
-                backtrackDepth = i;
-            }
-            repr = Internal.getNode(internal, index);
-        }
-
-        Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
-        final int leafIndex = Leaf.find(leaf, key, comparator);
-        final int returnIndex;
-        if (leafIndex >= 0) {
-            returnIndex = leafIndex;
-        } else {
-            final int insertionPoint = -(leafIndex + 1);
-            if (insertionPoint > 0) {
-                returnIndex = insertionPoint - 1;
-            } else {
-                // insertionPoint == 0: we need to find the last item in the prior leaf node.
-                if (backtrackParent == null) {
-                    // Oh -- that was the first leaf node
-                    return null;
-                }
-
-                repr = backtrackParent;
-                int index = backtrackIndex;
-                for (int i = backtrackDepth; i < depth; i++) {
-                    final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-                    repr = Internal.getNode(internal, index);
-                    index = repr.size - 1;
-                }
+        int depth = this.depth;
 
-                leaf = (Node<$K$, $V$>)repr;
-                returnIndex = index;
-            }
+        while (depth-- > 0) {
+            final int index = 0;
+            repr = Internal.getNode((InternalNode<$K$>)repr, index);
         }
 
-        return new AbstractMap.SimpleImmutableEntry<>(
-            Leaf.getKey  (leaf, returnIndex),
-            Leaf.getValue(leaf, returnIndex)
-        );
-    }
-
-    {% if K.isPrimitive() %}
-    /**
-     * {@inheritDoc}
-     *
-     * @throws NullPointerException if key is null
-     */
-    @Override
-    public Entry<@Boxed $K$, @Boxed $V$> ceilingEntry(@Boxed $K$ key) {
-        return ceilingEntry(($K$)key);
+        return repr.size == 0 ? null : (LeafNode<$K$, $V$>)repr;
     }
 
-    /** Returns the entry with smallest key greater than or equal to {@code key}, or null if no such entry exists */
-    public Entry<@Boxed $K$, @Boxed $V$> ceilingEntry($K$ key) {
-    {% else %}
-    @Override
-    public Entry<@Boxed $K$, @Boxed $V$> ceilingEntry($K$ key) {
-    {% endif %}
+    /** The leaf holding the last entry, or null if the map is empty */
+    private LeafNode<$K$, $V$> lastLeaf() {
         if (rootObjects == null) {
             return null;
         }
 
-        final int depth = this.depth;
-
-        Node<$K$, AbstractNode> backtrackParent = null; // Deepest internal node on the path to "key" which has a child next to the one we descended into
-        int backtrackIndex = -1;                  // Index of that next child
-        int backtrackDepth = -1;                  // Depth of that internal node
-
         AbstractNode repr = rootObjects;
-        for (int i = 0; i < depth; i++) {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-            final int index = Internal.find(internal, key, comparator);
-            if (index < internal.size - 1) {
-                backtrackParent = internal;
-                backtrackIndex = index + 1;
-                backtrackDepth = i;
-            }
-            repr = Internal.getNode(internal, index);
-        }
-
-        Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
-        final int leafIndex = Leaf.find(leaf, key, comparator);
-        final int returnIndex;
-        if (leafIndex >= 0) {
-            returnIndex = leafIndex;
-        } else {
-            final int insertionPoint = -(leafIndex + 1);
-            if (insertionPoint < leaf.size) {
-                returnIndex = insertionPoint;
-            } else {
-                // insertionPoint == repr.size: we need to find the first item in the next leaf node.
-                if (backtrackParent == null) {
-                    // Oh -- that was the last leaf node
-                    return null;
-                }
-
-                repr = backtrackParent;
-                int index = backtrackIndex;
-                for (int i = backtrackDepth; i < depth; i++) {
-                    final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-                    repr = Internal.getNode(internal, index);
-                    index = 0;
-                }
+        int depth = this.depth;
 
-                leaf = (Node<$K$, $V$>)repr;
-                returnIndex = index;
-            }
+        while (depth-- > 0) {
+            final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+            final int index = internal.size - 1;
+            repr = Internal.getNode(internal, index);
         }
 
-        return new AbstractMap.SimpleImmutableEntry<>(
-            Leaf.getKey  (leaf, returnIndex),
-            Leaf.getValue(leaf, returnIndex)
-        );
+        return repr.size == 0 ? null : (LeafNode<$K$, $V$>)repr;
     }
 
-    {% if K.isPrimitive() %}
-    /**
-     * {@inheritDoc}
-     *
-     * @throws NullPointerException if key is null
-     */
     @Override
-    public Entry<@Boxed $K$, @Boxed $V$> higherEntry(@Boxed $K$ key) {
-        return higherEntry(($K$)key);
+    public Entry<@Boxed $K$, @Boxed $V$> firstEntry() {
+        final LeafNode<$K$, $V$> leaf = firstLeaf();
+        if (leaf == null) {
+            return null;
+        } else {
+            final int index = 0;
+            return new AbstractMap.SimpleImmutableEntry<>(
+                Leaf.getKey  (leaf, index),
+                Leaf.getValue(leaf, index)
+            );
+        }
     }
 
-    /** Returns the entry with smallest key strictly greater than {@code key}, or null if no such entry exists */
-    public Entry<@Boxed $K$, @Boxed $V$> higherEntry($K$ key) {
-    {% else %}
     @Override
-    public Entry<@Boxed $K$, @Boxed $V$> higherEntry($K$ key) {
-    {% endif %}
-        if (rootObjects == null) {
-            return null;
-        }
-
-        final int depth = this.depth;
-
-        Node<$K$, AbstractNode> backtrackParent = null; // Deepest internal node on the path to "key" which has a child next to the one we descended into
-        int backtrackIndex = -1;                  // Index of that next child
-        int backtrackDepth = -1;                  // Depth of that internal node
-
-        AbstractNode repr = rootObjects;
-        for (int i = 0; i < depth; i++) {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-            final int index = Internal.find(internal, key, comparator);
-            if (index < internal.size - 1) {
-                backtrackParent = internal;
-                backtrackIndex = index + 1;
-                backtrackDepth = i;
-            }
-            repr = Internal.getNode(internal, index);
-        }
-
-        Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
-        final int leafIndex = Leaf.find(leaf, key, comparator);
-        final int insertionPoint = leafIndex >= 0 ? leafIndex + 1 : -(leafIndex + 1);
-        final int returnIndex;
-        if (insertionPoint < leaf.size) {
-            returnIndex = insertionPoint;
-        } else {
-            // insertionPoint == repr.size: we need to find the first item in the next leaf node.
-            if (backtrackParent == null) {
-                // Oh -- that was the last leaf node
-                return null;
-            }
-
-            repr = backtrackParent;
-            int index = backtrackIndex;
-            for (int i = backtrackDepth; i < depth; i++) {
-                final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-                repr = Internal.getNode(internal, index);
-                index = 0;
-            }
-
-            leaf = (Node<$K$, $V$>)repr;
-            returnIndex = index;
-        }
-
-        return new AbstractMap.SimpleImmutableEntry<>(
-            Leaf.getKey  (leaf, returnIndex),
-            Leaf.getValue(leaf, returnIndex)
-        );
-    }
-
-    @Override
-    public Entry<@Boxed $K$, @Boxed $V$> firstEntry() {
-        if (rootObjects == null) {
-            return null;
-        }
-
-        AbstractNode repr = rootObjects;
-        int depth = this.depth;
-
-        while (depth-- > 0) {
-            final int index = 0;
-            repr = Internal.getNode((Node<$K$, AbstractNode>)repr, index);
-        }
-
-        final Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
-        final int size = leaf.size;
-        if (size == 0) {
+    public Entry<@Boxed $K$, @Boxed $V$> lastEntry() {
+        final LeafNode<$K$, $V$> leaf = lastLeaf();
+        if (leaf == null) {
             return null;
         } else {
-            final int index = 0;
+            final int index = leaf.size - 1;
             return new AbstractMap.SimpleImmutableEntry<>(
                 Leaf.getKey  (leaf, index),
                 Leaf.getValue(leaf, index)
@@ -1208,53 +1822,61 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     }
 
     @Override
-    public Entry<@Boxed $K$, @Boxed $V$> lastEntry() {
-        if (rootObjects == null) {
+    public Entry<@Boxed $K$, @Boxed $V$> pollFirstEntry() {
+        if (size == 0) {
             return null;
         }
 
-        AbstractNode repr = rootObjects;
-        int depth = this.depth;
-
-        while (depth-- > 0) {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-            final int index = internal.size - 1;
-            repr = Internal.getNode(internal, index);
-        }
+        final @Boxed $V$ value = removeInternal({{K.dfault}}, REMOVE_FIRST);
+        return new AbstractMap.SimpleImmutableEntry<>(takePolledKey(), value);
+    }
 
-        final Node<$K$, $V$> leaf = (Node<$K$, $V$>)repr;
-        final int size = leaf.size;
+    @Override
+    public Entry<@Boxed $K$, @Boxed $V$> pollLastEntry() {
         if (size == 0) {
             return null;
-        } else {
-            final int index = size - 1;
-            return new AbstractMap.SimpleImmutableEntry<>(
-                Leaf.getKey  (leaf, index),
-                Leaf.getValue(leaf, index)
-            );
         }
+
+        final @Boxed $V$ value = removeInternal({{K.dfault}}, REMOVE_LAST);
+        return new AbstractMap.SimpleImmutableEntry<>(takePolledKey(), value);
     }
 
-    @Override
-    public Entry<@Boxed $K$, @Boxed $V$> pollFirstEntry() {
-        // TODO: fast path?
-        final Entry<@Boxed $K$, @Boxed $V$> e = firstEntry();
-        if (e != null) {
-            remove(e.getKey());
+    /**
+     * Removes the first entry from the map, returning its key. This does the same job as {@link #pollFirstEntry}, but
+     * without allocating an {@code Entry}.
+     *
+     * @throws NoSuchElementException if the map is empty
+     */
+    public $K$ pollFirstKey{{K.name}}() {
+        if (size == 0) {
+            throw new NoSuchElementException();
         }
 
-        return e;
+        removeInternal({{K.dfault}}, REMOVE_FIRST);
+        return takePolledKey();
     }
 
-    @Override
-    public Entry<@Boxed $K$, @Boxed $V$> pollLastEntry() {
-        // TODO: fast path?
-        final Entry<@Boxed $K$, @Boxed $V$> e = lastEntry();
-        if (e != null) {
-            remove(e.getKey());
+    /**
+     * Removes the last entry from the map, returning its key. This does the same job as {@link #pollLastEntry}, but
+     * without allocating an {@code Entry}.
+     *
+     * @throws NoSuchElementException if the map is empty
+     */
+    public $K$ pollLastKey{{K.name}}() {
+        if (size == 0) {
+            throw new NoSuchElementException();
         }
 
-        return e;
+        removeInternal({{K.dfault}}, REMOVE_LAST);
+        return takePolledKey();
+    }
+
+    private $K$ takePolledKey() {
+        final $K$ key = polledKey;
+        {% if K.isObject() %}
+        polledKey = null; // Avoid memory leaks
+        {% endif %}
+        return key;
     }
 
     @Override
@@ -1306,10 +1928,7 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
     @Override
     public @Boxed $K$ {{fl}}Key() {
-        final Entry<@Boxed $K$, @Boxed $V$> e = {{fl}}Entry();
-        if (e == null) throw new NoSuchElementException();
-
-        return e.getKey();
+        return {{fl}}Key{{K.name}}();
     }
 
     /**
@@ -1318,11 +1937,10 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
      * @throws NoSuchElementException if the map is empty
      */
     public $K$ {{fl}}Key{{K.name}}() {
-        final Entry<@Boxed $K$, @Boxed $V$> e = {{fl}}Entry();
-        if (e == null) throw new NoSuchElementException();
+        final LeafNode<$K$, $V$> leaf = {{fl}}Leaf();
+        if (leaf == null) throw new NoSuchElementException();
 
-        // TODO: fast path avoiding allocation of Entry?
-        return ($K$)e.getKey();
+        return Leaf.getKey(leaf, {% if fl == "first" %}0{% else %}leaf.size - 1{% endif %});
     }
 
     {% endfor %}
@@ -1337,374 +1955,395 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         return new MapValueCollection<>(this);
     }
 
+    // Iterators keep the path from the root down to the current leaf, and step through the entries of that leaf directly.
+    // Only when they run off the end of the leaf do they climb the path to find the next one: this is amortized O(1)
+    // per leaf, and doesn't need sibling links between leaves (which copy-on-write sharing of nodes would rule out).
+    //
+    // An iterator may also have a bound on the keys it returns, which it checks once per leaf against the last key in
+    // the leaf (or the first key, for descending iterators) rather than once per entry.
     private class EntryIterator implements Iterator<Entry<@Boxed $K$, @Boxed $V$>> {
-        // indexes[0] is an index into rootObjects.
-        // indexes[i] is an index into nodes[i - 1] (for i >= 1)
-        private final int[] indexes = new int[depth + 1];
+        // nodes[0] is rootObjects, and nodes[i + 1] is child indexes[i] of nodes[i]. The last of these is the parent of leaf.
+        private final int[] indexes = new int[depth];
         private final AbstractNode[] nodes = new AbstractNode[depth];
-        // If nextLevel >= 0:
-        //   1. indexes[nextLevel] < size - 1
-        //   2. There is no level l > nextLevel such that indexes[l] < size - 1
-        private int nextLevel;
-        private boolean hasNext;
+        // The leaf containing the next entry to return, and that entry's index within it
+        private LeafNode<$K$, $V$> leaf;
+        private int index;
+        // We may return entries of the leaf with indexes less than this. Usually the size of the leaf, but less if it
+        // is the leaf that contains the upper bound, in which case lastLeaf is set
+        private int end;
+        private boolean lastLeaf = true;
 
-        public void positionAtFirst() {
-            nextLevel = -1;
-            hasNext = false;
-            if (rootObjects != null) {
-                AbstractNode node = rootObjects;
-                for (int i = 0;; i++) {
-                    final int index = indexes[i] = 0;
-                    if (index < node.size - 1) {
-                        nextLevel = i;
-                    }
+        private final @Boxed $K$ max;
+        private final Bound maxBound;
 
-                    if (i >= nodes.length) {
-                        break;
-                    }
+        public EntryIterator() {
+            this(null, Bound.MISSING);
+        }
 
-                    node = nodes[i] = Internal.getNode((Node<$K$, AbstractNode>)node, index);
-                }
+        public EntryIterator(@Boxed $K$ max, Bound maxBound) {
+            this.max = max;
+            this.maxBound = maxBound;
+        }
 
-                hasNext = node.size > 0;
+        private boolean belowMax($K$ key) {
+            if (maxBound == Bound.MISSING) {
+                return true;
             }
+
+            final int cmp = compare(key, max);
+            return cmp < 0 || (cmp == 0 && maxBound == Bound.INCLUSIVE);
         }
 
-        private Node<$K$, $V$> findLeaf($K$ key) {
-            if (rootObjects == null) {
-                return null;
+        private void enterLeaf(LeafNode<$K$, $V$> leaf, int index) {
+            final int size = leaf.size;
+            this.leaf = leaf;
+            this.index = index;
+            if (size == 0 || belowMax(Leaf.getKey(leaf, size - 1))) {
+                end = size;
+                lastLeaf = false;
+            } else {
+                final int maxIndex = Leaf.find(leaf, max, comparator, searchStrategy);
+                end = maxIndex < 0 ? -(maxIndex + 1) : maxBound == Bound.INCLUSIVE ? maxIndex + 1 : maxIndex;
+                lastLeaf = true;
             }
+        }
 
-            AbstractNode repr = rootObjects;
-            for (int i = 0; i < nodes.length; i++) {
-                final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-                final int index = indexes[i] = Internal.find(internal, key, comparator);
-                if (index < internal.size - 1) {
-                    nextLevel = i;
-                    // backtrackParent == nextLevel == 0 ? rootObjects : nodes[nextLevel - 1]
-                    // backtrackIndex  == indexes[nextLevel] + 1
+        // Moves on to the start of the next leaf, returning false if there isn't one
+        private boolean nextLeaf() {
+            for (int i = nodes.length - 1; i >= 0; i--) {
+                final InternalNode<$K$> internal = (InternalNode<$K$>)nodes[i];
+                final int childIndex = indexes[i] + 1;
+                if (childIndex < internal.size) {
+                    indexes[i] = childIndex;
+                    AbstractNode repr = Internal.getNode(internal, childIndex);
+                    for (int j = i + 1; j < nodes.length; j++) {
+                        nodes[j] = repr;
+                        indexes[j] = 0;
+                        repr = Internal.getNode((InternalNode<$K$>)repr, 0);
+                    }
+
+                    enterLeaf((LeafNode<$K$, $V$>)repr, 0);
+                    return true;
                 }
-                repr = nodes[i] = Internal.getNode(internal, index);
             }
 
-            return (Node<$K$, $V$>)repr;
+            return false;
         }
 
-        private void findNextLevel() {
-            for (int i = indexes.length - 1; i >= 0; i--) {
-                final AbstractNode node = i == 0 ? rootObjects : nodes[i - 1];
-                if (indexes[i] < node.size - 1) {
-                    nextLevel = i;
-                    break;
-                }
+        public void positionAtFirst() {
+            if (rootObjects == null) {
+                return;
             }
-        }
 
-        private void positionAtIndex(AbstractNode repr, int returnIndex) {
-            if (returnIndex >= repr.size) {
-                // We need to find the first item in the next leaf node.
-                int i = nextLevel;
-                if (i < 0) {
-                    // Oh -- that was the last leaf node
-                    return;
-                }
-
-                repr = i == 0 ? rootObjects : nodes[i - 1];
-                int index = indexes[i] + 1;
-                for (; i < nodes.length; i++) {
-                    indexes[i] = index;
-                    repr = nodes[i] = Internal.getNode((Node<$K$, AbstractNode>)repr, index);
-                    index = 0;
-                }
-
-                returnIndex = index;
-                nextLevel = Integer.MIN_VALUE;
+            AbstractNode repr = rootObjects;
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = repr;
+                indexes[i] = 0;
+                repr = Internal.getNode((InternalNode<$K$>)repr, 0);
             }
 
-            hasNext = true;
-            indexes[nodes.length] = returnIndex;
+            enterLeaf((LeafNode<$K$, $V$>)repr, 0);
+        }
 
-            // Restore the nextLevel invariant
-            if (returnIndex < repr.size - 1) {
-                nextLevel = nodes.length;
-            } else if (nextLevel == Integer.MIN_VALUE) {
-                // We already "used up" backtrackDepth
-                findNextLevel();
+        private LeafNode<$K$, $V$> findLeaf($K$ key) {
+            AbstractNode repr = rootObjects;
+            for (int i = 0; i < nodes.length; i++) {
+                final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+                nodes[i] = internal;
+                repr = Internal.getNode(internal, indexes[i] = Internal.find(internal, key, comparator, searchStrategy));
             }
+
+            return (LeafNode<$K$, $V$>)repr;
         }
 
         public void positionAtCeiling($K$ key) {
-            nextLevel = -1;
-            hasNext = false;
-
-            final Node<$K$, $V$> leaf = findLeaf(key);
-            if (leaf == null) {
+            if (rootObjects == null) {
                 return;
             }
 
-            final int leafIndex = Leaf.find(leaf, key, comparator);
-            positionAtIndex(leaf, leafIndex >= 0 ? leafIndex : -(leafIndex + 1));
+            final LeafNode<$K$, $V$> leaf = findLeaf(key);
+            final int leafIndex = Leaf.find(leaf, key, comparator, searchStrategy);
+            enterLeaf(leaf, leafIndex >= 0 ? leafIndex : -(leafIndex + 1));
         }
 
         public void positionAtHigher($K$ key) {
-            nextLevel = -1;
-            hasNext = false;
+            if (rootObjects == null) {
+                return;
+            }
 
-            final Node<$K$, $V$> leaf = findLeaf(key);
-            if (leaf == null) {
+            final LeafNode<$K$, $V$> leaf = findLeaf(key);
+            final int leafIndex = Leaf.find(leaf, key, comparator, searchStrategy);
+            enterLeaf(leaf, leafIndex >= 0 ? leafIndex + 1 : -(leafIndex + 1));
+        }
+
+        public void positionAtRank(int rank) {
+            if (rootObjects == null) {
                 return;
             }
 
-            final int leafIndex = Leaf.find(leaf, key, comparator);
-            positionAtIndex(leaf, leafIndex >= 0 ? leafIndex + 1 : -(leafIndex + 1));
+            AbstractNode repr = rootObjects;
+            for (int i = 0; i < nodes.length; i++) {
+                final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+                final int[] counts = internal.counts;
+                int index = 0;
+                while (index < internal.size - 1 && rank >= counts[index]) {
+                    rank -= counts[index++];
+                }
+
+                nodes[i] = internal;
+                indexes[i] = index;
+                repr = Internal.getNode(internal, index);
+            }
+
+            enterLeaf((LeafNode<$K$, $V$>)repr, rank);
         }
 
         @Override
         public boolean hasNext() {
-            return hasNext;
+            while (index >= end) {
+                if (lastLeaf || !nextLeaf()) {
+                    lastLeaf = true;
+                    return false;
+                }
+            }
+
+            return true;
         }
 
         @Override
         public Entry<@Boxed $K$, @Boxed $V$> next() {
-            if (!hasNext) {
+            if (!hasNext()) {
                 throw new NoSuchElementException();
             }
 
-            final Entry<@Boxed $K$, @Boxed $V$> result;
-            {
-                final Node<$K$, $V$> leafNode = (Node<$K$, $V$>)(nodes.length == 0 ? rootObjects : nodes[nodes.length - 1]);
-                final int ix = indexes[indexes.length - 1];
-                result = new AbstractMap.SimpleImmutableEntry<@Boxed $K$, @Boxed $V$>(
-                        Leaf.getKey(leafNode, ix),
-                        Leaf.getValue(leafNode, ix)
-                );
+            final int ix = index++;
+            return new AbstractMap.SimpleImmutableEntry<@Boxed $K$, @Boxed $V$>(
+                    Leaf.getKey(leaf, ix),
+                    Leaf.getValue(leaf, ix)
+            );
+        }
+
+        @Override
+        public void remove() {
+            // FIXME
+            throw new UnsupportedOperationException("Iterator.remove() isn't supported yet, but I wouldn't be averse to adding it.");
+        }
+    }
+
+    /**
+     * A cursor over the entries of a {@code {{KV_}}BTreeMap} in ascending key order. Unlike iterating over the
+     * {@code entrySet()}, stepping through the map with a cursor does not allocate (or box) anything per entry.
+     * <p>
+     * A new cursor is positioned before the first entry: call {@link #advance()} to move it on to each entry in turn.
+     * As with iterators, there are no guarantees as to what will happen if the map is modified while a cursor is in use.
+     */
+    public final class Cursor {
+        private final EntryIterator it;
+        private LeafNode<$K$, $V$> leaf;
+        private int index;
+
+        private Cursor(EntryIterator it) {
+            this.it = it;
+        }
+
+        /** Moves to the next entry, returning false if there are no more entries (in which case the cursor is exhausted) */
+        public boolean advance() {
+            if (!it.hasNext()) {
+                leaf = null;
+                return false;
             }
 
-            if (nextLevel < 0) {
-                hasNext = false;
-            } else {
-                int index = ++indexes[nextLevel];
-                AbstractNode node = nextLevel == 0 ? rootObjects : nodes[nextLevel - 1];
-                assert index < node.size;
-                if (nextLevel < nodes.length) {
-                    // We stepped forward to a later item in an internal node: update all children
-                    for (int i = nextLevel; i < nodes.length;) {
-                        node = nodes[i++] = Internal.getNode((Node<$K$, AbstractNode>)node, index);
-                        index = indexes[i] = 0;
-                    }
+            leaf = it.leaf;
+            index = it.index++;
+            return true;
+        }
 
-                    nextLevel = nodes.length;
-                } else if (index == node.size - 1) {
-                    // We stepped forward to the last item in a leaf node: find parent we should step forward next
-                    assert nextLevel == nodes.length;
-                    nextLevel = -1;
-                    for (int i = nodes.length - 1; i >= 0; i--) {
-                        node = i == 0 ? rootObjects : nodes[i - 1];
-                        index = indexes[i];
-                        if (index < node.size - 1) {
-                            nextLevel = i;
-                            break;
-                        }
-                    }
-                }
+        private LeafNode<$K$, $V$> leaf() {
+            if (leaf == null) {
+                throw new IllegalStateException("Cursor is not positioned at an entry");
             }
 
-            return result;
+            return leaf;
         }
 
-        @Override
-        public void remove() {
-            // FIXME
-            throw new UnsupportedOperationException("Iterator.remove() isn't supported yet, but I wouldn't be averse to adding it.");
+        public @Boxed $K$ key() {
+            return Leaf.getKey(leaf(), index);
+        }
+
+        public @Boxed $V$ value() {
+            return Leaf.getValue(leaf(), index);
+        }
+        {% if K.isPrimitive %}
+
+        public $K$ key{{K.name}}() {
+            return Leaf.getKey(leaf(), index);
+        }
+        {% endif %}
+        {% if V.isPrimitive %}
+
+        public $V$ value{{V.name}}() {
+            return Leaf.getValue(leaf(), index);
         }
+        {% endif %}
     }
 
-    Iterator<Entry<@Boxed $K$, @Boxed $V$>> firstIterator() {
+    /** Returns a cursor that will step through every entry in the map in ascending key order */
+    public Cursor cursor() {
         final EntryIterator it = new EntryIterator();
         it.positionAtFirst();
-        return it;
+        return new Cursor(it);
     }
 
-    Iterator<Entry<@Boxed $K$, @Boxed $V$>> ceilingIterator($K$ k) {
+    /** Returns a cursor that will step through the entries with keys greater than or equal to the given one, in ascending key order */
+    public Cursor cursor($K$ fromKey) {
         final EntryIterator it = new EntryIterator();
-        it.positionAtCeiling(k);
-        return it;
+        it.positionAtCeiling(fromKey);
+        return new Cursor(it);
     }
 
-    Iterator<Entry<@Boxed $K$, @Boxed $V$>> higherIterator($K$ k) {
+    Iterator<Entry<@Boxed $K$, @Boxed $V$>> firstIterator() {
         final EntryIterator it = new EntryIterator();
-        it.positionAtHigher(k);
+        it.positionAtFirst();
         return it;
     }
 
     private class DescendingEntryIterator implements Iterator<Entry<@Boxed $K$, @Boxed $V$>> {
-        // indexes[0] is an index into rootObjects.
-        // indexes[i] is an index into nodes[i - 1] (for i >= 1)
-        private final int[] indexes = new int[depth + 1];
+        // nodes[0] is rootObjects, and nodes[i + 1] is child indexes[i] of nodes[i]. The last of these is the parent of leaf.
+        private final int[] indexes = new int[depth];
         private final AbstractNode[] nodes = new AbstractNode[depth];
-        // If nextLevel >= 0:
-        //   1. indexes[nextLevel] > 0
-        //   2. There is no level l > nextLevel such that indexes[l] > 0
-        private int nextLevel;
-        private boolean hasNext;
+        // The leaf containing the next entry to return, and that entry's index within it
+        private LeafNode<$K$, $V$> leaf;
+        private int index = -1;
+        // We may return entries of the leaf with indexes at least this. Usually 0, but more if it is the leaf that
+        // contains the lower bound, in which case firstLeaf is set
+        private int start;
+        private boolean firstLeaf = true;
 
-        public void positionAtLast() {
-            nextLevel = -1;
-            hasNext = false;
-            if (rootObjects != null) {
-                AbstractNode node = rootObjects;
-                for (int i = 0;; i++) {
-                    final int index = indexes[i] = node.size - 1;
-                    if (index > 0) {
-                        nextLevel = i;
-                    }
+        private final @Boxed $K$ min;
+        private final Bound minBound;
 
-                    if (i >= nodes.length) {
-                        break;
-                    }
+        public DescendingEntryIterator() {
+            this(null, Bound.MISSING);
+        }
 
-                    node = nodes[i] = Internal.getNode((Node<$K$, AbstractNode>)node, index);
-                }
+        public DescendingEntryIterator(@Boxed $K$ min, Bound minBound) {
+            this.min = min;
+            this.minBound = minBound;
+        }
 
-                hasNext = node.size > 0;
+        private boolean aboveMin($K$ key) {
+            if (minBound == Bound.MISSING) {
+                return true;
             }
+
+            final int cmp = compare(key, min);
+            return cmp > 0 || (cmp == 0 && minBound == Bound.INCLUSIVE);
         }
 
-        private Node<$K$, $V$> findLeaf($K$ key) {
-            if (rootObjects == null) {
-                return null;
+        private void enterLeaf(LeafNode<$K$, $V$> leaf, int index) {
+            this.leaf = leaf;
+            this.index = index;
+            if (leaf.size == 0 || aboveMin(Leaf.getKey(leaf, 0))) {
+                start = 0;
+                firstLeaf = false;
+            } else {
+                final int minIndex = Leaf.find(leaf, min, comparator, searchStrategy);
+                start = minIndex < 0 ? -(minIndex + 1) : minBound == Bound.INCLUSIVE ? minIndex : minIndex + 1;
+                firstLeaf = true;
             }
+        }
 
-            AbstractNode repr = rootObjects;
-            for (int i = 0; i < nodes.length; i++) {
-                final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-                final int index = indexes[i] = Internal.find(internal, key, comparator);
-                if (index > 0) {
-                    nextLevel = i;
+        // Moves on to the end of the previous leaf, returning false if there isn't one
+        private boolean prevLeaf() {
+            for (int i = nodes.length - 1; i >= 0; i--) {
+                final InternalNode<$K$> internal = (InternalNode<$K$>)nodes[i];
+                final int childIndex = indexes[i] - 1;
+                if (childIndex >= 0) {
+                    indexes[i] = childIndex;
+                    AbstractNode repr = Internal.getNode(internal, childIndex);
+                    for (int j = i + 1; j < nodes.length; j++) {
+                        nodes[j] = repr;
+                        indexes[j] = repr.size - 1;
+                        repr = Internal.getNode((InternalNode<$K$>)repr, repr.size - 1);
+                    }
+
+                    enterLeaf((LeafNode<$K$, $V$>)repr, repr.size - 1);
+                    return true;
                 }
-                repr = nodes[i] = Internal.getNode(internal, index);
             }
 
-            return (Node<$K$, $V$>)repr;
+            return false;
         }
 
-        private void positionAtIndex(int returnIndex) {
-            if (returnIndex < 0) {
-                // We need to find the last item in the prior leaf node.
-                int i = nextLevel;
-                if (i < 0) {
-                    // Oh -- that was the first leaf node
-                    return;
-                }
-
-                AbstractNode repr = i == 0 ? rootObjects : nodes[i - 1];
-                int index = indexes[i] - 1;
-                for (; i < nodes.length; i++) {
-                    final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)repr;
-                    indexes[i] = index;
-                    repr = nodes[i] = Internal.getNode(internal, index);
-                    index = repr.size - 1;
-                }
+        public void positionAtLast() {
+            if (rootObjects == null) {
+                return;
+            }
 
-                returnIndex = index;
-                nextLevel = Integer.MIN_VALUE;
+            AbstractNode repr = rootObjects;
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = repr;
+                indexes[i] = repr.size - 1;
+                repr = Internal.getNode((InternalNode<$K$>)repr, repr.size - 1);
             }
 
-            hasNext = true;
-            indexes[nodes.length] = returnIndex;
+            enterLeaf((LeafNode<$K$, $V$>)repr, repr.size - 1);
+        }
 
-            // Restore the nextLevel invariant
-            if (returnIndex > 0) {
-                nextLevel = nodes.length;
-            } else if (nextLevel == Integer.MIN_VALUE) {
-                // We already "used up" backtrackDepth
-                for (int i = indexes.length - 1; i >= 0; i--) {
-                    if (indexes[i] > 0) {
-                        nextLevel = i;
-                        break;
-                    }
-                }
+        private LeafNode<$K$, $V$> findLeaf($K$ key) {
+            AbstractNode repr = rootObjects;
+            for (int i = 0; i < nodes.length; i++) {
+                final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+                nodes[i] = internal;
+                repr = Internal.getNode(internal, indexes[i] = Internal.find(internal, key, comparator, searchStrategy));
             }
+
+            return (LeafNode<$K$, $V$>)repr;
         }
 
         public void positionAtFloor($K$ key) {
-            nextLevel = -1;
-            hasNext = false;
-
-            final Node<$K$, $V$> leaf = findLeaf(key);
-            if (leaf == null) {
+            if (rootObjects == null) {
                 return;
             }
 
-            final int leafIndex = Leaf.find(leaf, key, comparator);
-            positionAtIndex(leafIndex >= 0 ? leafIndex : -(leafIndex + 1) - 1);
+            final LeafNode<$K$, $V$> leaf = findLeaf(key);
+            final int leafIndex = Leaf.find(leaf, key, comparator, searchStrategy);
+            enterLeaf(leaf, leafIndex >= 0 ? leafIndex : -(leafIndex + 1) - 1);
         }
 
         public void positionAtLower($K$ key) {
-            nextLevel = -1;
-            hasNext = false;
-
-            final Node<$K$, $V$> leaf = findLeaf(key);
-            if (leaf == null) {
+            if (rootObjects == null) {
                 return;
             }
 
-            final int leafIndex = Leaf.find(leaf, key, comparator);
-            positionAtIndex(leafIndex >= 0 ? leafIndex - 1 : -(leafIndex + 1) - 1);
+            final LeafNode<$K$, $V$> leaf = findLeaf(key);
+            final int leafIndex = Leaf.find(leaf, key, comparator, searchStrategy);
+            enterLeaf(leaf, leafIndex >= 0 ? leafIndex - 1 : -(leafIndex + 1) - 1);
         }
 
         @Override
         public boolean hasNext() {
-            return hasNext;
+            while (index < start) {
+                if (firstLeaf || !prevLeaf()) {
+                    firstLeaf = true;
+                    return false;
+                }
+            }
+
+            return true;
         }
 
         @Override
         public Entry<@Boxed $K$, @Boxed $V$> next() {
-            if (!hasNext) {
+            if (!hasNext()) {
                 throw new NoSuchElementException();
             }
 
-            final Entry<@Boxed $K$, @Boxed $V$> result;
-            {
-                final Node<$K$, $V$> leafNode = (Node<$K$, $V$>)(nodes.length == 0 ? rootObjects : nodes[nodes.length - 1]);
-                final int ix = indexes[indexes.length - 1];
-                result = new AbstractMap.SimpleImmutableEntry<@Boxed $K$, @Boxed $V$>(
-                        Leaf.getKey(leafNode, ix),
-                        Leaf.getValue(leafNode, ix)
-                );
-            }
-
-            if (nextLevel < 0) {
-                hasNext = false;
-            } else {
-                int index = --indexes[nextLevel];
-                assert index >= 0;
-                if (nextLevel < nodes.length) {
-                    // We stepped back to an earlier item in an internal node: update all children
-                    AbstractNode node = nextLevel == 0 ? rootObjects : nodes[nextLevel - 1];
-                    for (int i = nextLevel; i < nodes.length;) {
-                        node = nodes[i++] = Internal.getNode((Node<$K$, AbstractNode>)node, index);
-                        index = indexes[i] = node.size - 1;
-                        assert index > 0;
-                    }
-
-                    nextLevel = nodes.length;
-                } else if (index == 0) {
-                    // We stepped back to the first item in a leaf node: find parent we should step back next
-                    assert nextLevel == nodes.length;
-                    nextLevel = -1;
-                    for (int i = nodes.length - 1; i >= 0; i--) {
-                        //Node node = i == 0 ? rootObjects : nodes[i - 1];
-                        index = indexes[i];
-                        if (index > 0) {
-                            nextLevel = i;
-                            break;
-                        }
-                    }
-                }
-            }
-
-            return result;
+            final int ix = index--;
+            return new AbstractMap.SimpleImmutableEntry<@Boxed $K$, @Boxed $V$>(
+                    Leaf.getKey(leaf, ix),
+                    Leaf.getValue(leaf, ix)
+            );
         }
 
         @Override
@@ -1714,27 +2353,119 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         }
     }
 
-    Iterator<Entry<@Boxed $K$, @Boxed $V$>> lastIterator() {
-        final DescendingEntryIterator it = new DescendingEntryIterator();
-        it.positionAtLast();;
+    /** Iterates over the entries between the bounds in ascending order. Each bound may be {@code MISSING}, in which case the key is ignored. */
+    Iterator<Entry<@Boxed $K$, @Boxed $V$>> ascendingIterator(@Boxed $K$ min, Bound minBound, @Boxed $K$ max, Bound maxBound) {
+        final EntryIterator it = new EntryIterator(max, maxBound);
+        switch (minBound) {
+            case MISSING:   it.positionAtFirst(); break;
+            case INCLUSIVE: it.positionAtCeiling(min); break;
+            case EXCLUSIVE: it.positionAtHigher(min); break;
+            default: throw new IllegalStateException();
+        }
         return it;
     }
 
-    Iterator<Entry<@Boxed $K$, @Boxed $V$>> lowerIterator($K$ key) {
-        final DescendingEntryIterator it = new DescendingEntryIterator();
-        it.positionAtLower(key);
+    /** Iterates over the entries between the bounds in descending order. Each bound may be {@code MISSING}, in which case the key is ignored. */
+    Iterator<Entry<@Boxed $K$, @Boxed $V$>> descendingIterator(@Boxed $K$ min, Bound minBound, @Boxed $K$ max, Bound maxBound) {
+        final DescendingEntryIterator it = new DescendingEntryIterator(min, minBound);
+        switch (maxBound) {
+            case MISSING:   it.positionAtLast(); break;
+            case INCLUSIVE: it.positionAtFloor(max); break;
+            case EXCLUSIVE: it.positionAtLower(max); break;
+            default: throw new IllegalStateException();
+        }
         return it;
     }
 
-    Iterator<Entry<@Boxed $K$, @Boxed $V$>> floorIterator($K$ key) {
+    Iterator<Entry<@Boxed $K$, @Boxed $V$>> lastIterator() {
         final DescendingEntryIterator it = new DescendingEntryIterator();
-        it.positionAtFloor(key);
+        it.positionAtLast();
         return it;
     }
 
     @Override
     public Set<Entry<@Boxed $K$, @Boxed $V$>> entrySet() {
-        return new MapEntrySet<>(this, this::firstIterator);
+        return new MapEntrySet<>(this, this::firstIterator, () -> spliterator(0, size));
+    }
+
+    // Splits by rank, which the subtree counts let us do in O(1) time whilst always producing halves of exactly known
+    // size. Traversal begins with a single log(n) descent to the first entry, after which we just use an EntryIterator.
+    private class EntrySpliterator implements Spliterator<Entry<@Boxed $K$, @Boxed $V$>> {
+        private int index;       // Rank of the next entry we will visit
+        private final int fence; // One more than the rank of the last entry we will visit
+        private EntryIterator it; // Null until we begin traversal, after which we no longer split
+
+        public EntrySpliterator(int index, int fence) {
+            this.index = index;
+            this.fence = fence;
+        }
+
+        private EntryIterator iterator() {
+            if (it == null) {
+                it = new EntryIterator();
+                it.positionAtRank(index);
+            }
+
+            return it;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<@Boxed $K$, @Boxed $V$>> action) {
+            if (index >= fence) {
+                return false;
+            }
+
+            final Entry<@Boxed $K$, @Boxed $V$> e = iterator().next();
+            index++;
+            action.accept(e);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Entry<@Boxed $K$, @Boxed $V$>> action) {
+            if (index >= fence) {
+                return;
+            }
+
+            final EntryIterator it = iterator();
+            while (index < fence) {
+                final Entry<@Boxed $K$, @Boxed $V$> e = it.next();
+                index++;
+                action.accept(e);
+            }
+        }
+
+        @Override
+        public Spliterator<Entry<@Boxed $K$, @Boxed $V$>> trySplit() {
+            final int mid = (index + fence) >>> 1;
+            if (it != null || mid <= index) {
+                return null;
+            }
+
+            final EntrySpliterator prefix = new EntrySpliterator(index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.SORTED | Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+
+        @Override
+        public Comparator<? super Entry<@Boxed $K$, @Boxed $V$>> getComparator() {
+            return (a, b) -> compare(a.getKey(), b.getKey());
+        }
+    }
+
+    /** A spliterator over the entries whose ranks lie in the half-open interval from {@code index} to {@code fence} */
+    Spliterator<Entry<@Boxed $K$, @Boxed $V$>> spliterator(int index, int fence) {
+        return new EntrySpliterator(index, fence);
     }
 
     NavigableMap2<@Boxed $K$, @Boxed $V$> asNavigableMap2() {
@@ -1776,21 +2507,24 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     }
 
     {% if V.isPrimitive() %}
+    {% if K.isPrimitive() %}
     /** Remove the entry with the specified key, returning the value of the removed entry. If no such entry existed, returns the most negative {@code {{V}}} value. */
     public $V$ remove{{V.name}}(Object key) {
-        // TODO: fast path avoiding allocation of result?
-        final @Boxed $V$ result = remove(key);
-        return result == null ? {{V.dfault}} : ($V$)result;
+        if (!(key instanceof @Boxed $K$)) {
+            return {{V.dfault}};
+        } else {
+            return remove{{V.name}}(($K$)key);
+        }
     }
 
-    {% if K.isPrimitive() %}
     /** Remove the entry with the specified key, returning the value of the removed entry. If no such entry existed, returns the most negative {@code {{V}}} value. */
     public $V$ remove{{V.name}}($K$ key) {
-        // TODO: fast path avoiding allocation of result?
-        final @Boxed $V$ result = remove(key);
-        return result == null ? {{V.dfault}} : ($V$)result;
-    }
+    {% else %}
+    /** Remove the entry with the specified key, returning the value of the removed entry. If no such entry existed, returns the most negative {@code {{V}}} value. */
+    public $V$ remove{{V.name}}(Object key) {
     {% endif %}
+        return removeInternal(key, REMOVE_KEY);
+    }
     {% endif %}
 
     {% if K.isPrimitive() %}
@@ -1809,32 +2543,65 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
     @Override
     public @Boxed $V$ remove(Object key) {
     {% endif %}
-        if (rootObjects == null) {
-            return null;
+        final int size = this.size;
+        final $V$ result = removeInternal({% if K.isPrimitive() %}key{% else %}({{K.erased}})key{% endif %}, REMOVE_KEY);
+        return size == this.size ? null : (@Boxed $V$)result;
+    }
+
+    // What removeCore should remove: either the entry with a particular key, or the first or last entry. In the latter
+    // cases we can find the entry without making any comparisons, and removeCore reports the key it removed in polledKey.
+    private static final int REMOVE_KEY = 0, REMOVE_FIRST = 1, REMOVE_LAST = 2;
+
+    private $K$ polledKey;
+
+    /** Returns the value of the removed entry, or {{V.dfault}} if there was no such entry (in which case size is unchanged) */
+    private $V$ removeInternal(@Erased $K$ key, int which) {
+        if (rootObjects == null || size == 0) {
+            return {{V.dfault}};
+        }
+
+        final boolean shared = rootObjects.shared;
+        if (shared && which == REMOVE_KEY && !subtreeContainsKey(rootObjects, depth, key)) {
+            return {{V.dfault}};
         }
 
-        final @Boxed $V$ result = removeCore(rootObjects, depth, key);
+        rootObjects = unshare(rootObjects, depth);
+
+        final $V$ result = removeCore(rootObjects, depth, key, which, shared || which != REMOVE_KEY);
         if (rootObjects.size == 1 && depth > 0) {
-            rootObjects = Internal.getNode((Node<$K$, AbstractNode>)rootObjects, 0);
+            rootObjects = Internal.getNode((InternalNode<$K$>)rootObjects, 0);
             depth--;
         }
 
         return result;
     }
 
-    private @Boxed $V$ removeCore(Object node, int depth, @Erased $K$ key) {
+    private boolean subtreeContainsKey(AbstractNode node, int depth, @Erased $K$ key) {
+        return Leaf.find(findLeaf(node, depth, key), key, comparator, searchStrategy) >= 0;
+    }
+
+    /**
+     * @param found True if we already know that there is an entry to remove. Until we do, we mustn't copy any shared
+     *              nodes on the way down, since if the key is missing that would just be a waste.
+     */
+    private $V$ removeCore(Object node, int depth, @Erased $K$ key, int which, boolean found) {
         if (depth == 0) {
-            final Node<$K$, $V$> leaf = (Node<$K$, $V$>)node;
-            final int index = Leaf.find(leaf, key, comparator);
-            if (index < 0) {
-                return null;
+            final LeafNode<$K$, $V$> leaf = (LeafNode<$K$, $V$>)node;
+            final int index = which == REMOVE_KEY   ? Leaf.find(leaf, key, comparator, searchStrategy)
+                            : which == REMOVE_FIRST ? 0
+                                                    : leaf.size - 1;
+            if (index < 0 || index >= leaf.size) {
+                return {{V.dfault}};
             } else {
-                final $V$ result = ($V$)Leaf.getValue(leaf, index);
+                final $V$ result = Leaf.getValue(leaf, index);
+                if (which != REMOVE_KEY) {
+                    polledKey = Leaf.getKey(leaf, index);
+                }
 
                 size--;
                 leaf.size--;
-                {{KV_}}Node.arraycopyKey  (leaf, index + 1, leaf, index, leaf.size - index);
-                {{KV_}}Node.arraycopyValue(leaf, index + 1, leaf, index, leaf.size - index);
+                {{KV_}}LeafNode.arraycopyKey  (leaf, index + 1, leaf, index, leaf.size - index);
+                {{KV_}}LeafNode.arraycopyValue(leaf, index + 1, leaf, index, leaf.size - index);
 
                 // Avoid memory leaks
                 {% if K.isObject() %}leaf.setKey  (leaf.size, null);{% endif %}
@@ -1843,18 +2610,35 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                 return result;
             }
         } else {
-            final Node<$K$, AbstractNode> internal = (Node<$K$, AbstractNode>)node;
-            final int index = Internal.find(internal, key, comparator);
-            final AbstractNode child = Internal.getNode(internal, index);
-            final @Boxed $V$ result = removeCore(child, depth - 1, key);
+            final InternalNode<$K$> internal = (InternalNode<$K$>)node;
+            final int index = which == REMOVE_KEY   ? Internal.find(internal, key, comparator, searchStrategy)
+                            : which == REMOVE_FIRST ? 0
+                                                    : internal.size - 1;
+            if (!found && Internal.getNode(internal, index).shared) {
+                if (!subtreeContainsKey(Internal.getNode(internal, index), depth - 1, key)) {
+                    return {{V.dfault}};
+                }
+
+                found = true;
+            }
+
+            final AbstractNode child = Internal.getNodeForWrite(internal, index, depth - 1);
+            final int size = this.size;
+            final $V$ result = removeCore(child, depth - 1, key, which, found);
+            if (this.size == size) {
+                // Nothing was removed, so there is nothing to rebalance
+                return result;
+            }
 
-            if (child.size < Node.MIN_FANOUT) {
-                assert child.size == Node.MIN_FANOUT - 1;
+            internal.counts[index]--;
+            final int minFanout = child.minFanout();
+            if (child.size < minFanout) {
+                assert child.size == minFanout - 1;
 
                 if (index > 0) {
                     // Take key from or merge with predecessor
-                    final AbstractNode pred = Internal.getNode(internal, index - 1);
-                    if (pred.size > Node.MIN_FANOUT) {
+                    final AbstractNode pred = Internal.getNodeForWrite(internal, index - 1, depth - 1);
+                    if (pred.size > minFanout) {
                         // Can take key from predecessor
                         final int predSize = --pred.size;
                         final int childSize = child.size++;
@@ -1862,8 +2646,8 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                         final $K$ predLtKey;
                         if (depth == 1) {
                             // Children are leaves
-                            final Node<$K$, $V$> childLeaf = (Node<$K$, $V$>)child;
-                            final Node<$K$, $V$> predLeaf  = (Node<$K$, $V$>)pred;
+                            final LeafNode<$K$, $V$> childLeaf = (LeafNode<$K$, $V$>)child;
+                            final LeafNode<$K$, $V$> predLeaf  = (LeafNode<$K$, $V$>)pred;
                             predLtKey = predLeaf.getKey(predSize);
                             final $V$ predValue = predLeaf.getValue(predSize);
 
@@ -1871,41 +2655,49 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                             {% if K.isObject() %}predLeaf.setKey  (predSize, null);{% endif %}
                             {% if V.isObject() %}predLeaf.setValue(predSize, null);{% endif %}
 
-                            {{KV_}}Node.arraycopyKey  (childLeaf, 0, childLeaf, 1, childSize);
-                            {{KV_}}Node.arraycopyValue(childLeaf, 0, childLeaf, 1, childSize);
+                            {{KV_}}LeafNode.arraycopyKey  (childLeaf, 0, childLeaf, 1, childSize);
+                            {{KV_}}LeafNode.arraycopyValue(childLeaf, 0, childLeaf, 1, childSize);
                             childLeaf.setKey  (0, predLtKey);
                             childLeaf.setValue(0, predValue);
+
+                            internal.counts[index - 1]--;
+                            internal.counts[index]++;
                         } else {
                             // Children are internal nodes
-                            final Node<$K$, AbstractNode> childInternal = (Node<$K$, AbstractNode>)child;
-                            final Node<$K$, AbstractNode> predInternal  = (Node<$K$, AbstractNode>)pred;
+                            final InternalNode<$K$> childInternal = (InternalNode<$K$>)child;
+                            final InternalNode<$K$> predInternal  = (InternalNode<$K$>)pred;
                             predLtKey = Internal.getKey(predInternal, predSize - 1);
                             final $K$ predKey = Internal.getKey(internal, index - 1);
                             final AbstractNode predNode = Internal.getNode(predInternal, predSize);
+                            final int predNodeCount = predInternal.counts[predSize];
 
                             // Avoid memory leaks
                             {% if K.isObject %}
                             predInternal.setKey  (predSize - 1, null);
                             {% endif %}
-                            predInternal.setValue(predSize,     null);
+                            Internal.setNode(predInternal, predSize, null, 0);
+
+                            {{K_}}InternalNode.arraycopyKey(childInternal, 0, childInternal, 1,  childSize - 1);
+                            Internal.arraycopyNode       (childInternal, 0, childInternal, 1, childSize);
+                            childInternal.setKey(0, predKey);
+                            Internal.setNode(childInternal, 0, predNode, predNodeCount);
 
-                            {{KObject_}}Node.arraycopyKey  (childInternal, 0, childInternal, 1,  childSize - 1);
-                            {{KObject_}}Node.arraycopyValue(childInternal, 0, childInternal, 1, childSize);
-                            childInternal.setKey  (0, predKey);
-                            childInternal.setValue(0, predNode);
+                            internal.counts[index - 1] -= predNodeCount;
+                            internal.counts[index]     += predNodeCount;
                         }
 
                         internal.setKey(index - 1, predLtKey);
                     } else {
                         // Can merge with predecessor
                         final $K$ middleKey = Internal.getKey(internal, index - 1);
+                        internal.counts[index - 1] += internal.counts[index];
                         Internal.deleteAtIndex(internal, index);
                         appendToPred(pred, middleKey, child, depth - 1);
                     }
                 } else {
                     // Take key from or merge with successor (there must be one because all nodes except the root must have at least 1 sibling)
-                    final AbstractNode succ = Internal.getNode(internal, index + 1);
-                    if (succ.size > Node.MIN_FANOUT) {
+                    final AbstractNode succ = Internal.getNodeForWrite(internal, index + 1, depth - 1);
+                    if (succ.size > minFanout) {
                         // Can take key from successor
                         final int succSize = --succ.size;
                         final int childSize = child.size++;
@@ -1913,14 +2705,14 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
                         final $K$ succGteKey;
                         if (depth == 1) {
                             // Children are leaves
-                            final Node<$K$, $V$> childLeaf = (Node<$K$, $V$>)child;
-                            final Node<$K$, $V$> succLeaf  = (Node<$K$, $V$>)succ;
+                            final LeafNode<$K$, $V$> childLeaf = (LeafNode<$K$, $V$>)child;
+                            final LeafNode<$K$, $V$> succLeaf  = (LeafNode<$K$, $V$>)succ;
                             succGteKey = Leaf.getKey(succLeaf, 1);
                             final $K$ succKey   = succLeaf.getKey  (0);
                             final $V$ succValue = succLeaf.getValue(0);
 
-                            {{KV_}}Node.arraycopyKey  (succLeaf, 1, succLeaf, 0, succSize);
-                            {{KV_}}Node.arraycopyValue(succLeaf, 1, succLeaf, 0, succSize);
+                            {{KV_}}LeafNode.arraycopyKey  (succLeaf, 1, succLeaf, 0, succSize);
+                            {{KV_}}LeafNode.arraycopyValue(succLeaf, 1, succLeaf, 0, succSize);
 
                             // Avoid memory leaks
                             {% if K.isObject %}succLeaf.setKey  (succSize, null);{% endif %}
@@ -1928,31 +2720,39 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
 
                             childLeaf.setKey  (childSize, succKey);
                             childLeaf.setValue(childSize, succValue);
+
+                            internal.counts[index + 1]--;
+                            internal.counts[index]++;
                         } else {
                             // Children are internal nodes
-                            final Node<$K$, AbstractNode> childInternal = (Node<$K$, AbstractNode>)child;
-                            final Node<$K$, AbstractNode> succInternal  = (Node<$K$, AbstractNode>)succ;
+                            final InternalNode<$K$> childInternal = (InternalNode<$K$>)child;
+                            final InternalNode<$K$> succInternal  = (InternalNode<$K$>)succ;
                             succGteKey = Internal.getKey(succInternal, 0);
                             final $K$ succKey = Internal.getKey(internal, index);
                             final AbstractNode succNode = Internal.getNode(succInternal, 0);
+                            final int succNodeCount = succInternal.counts[0];
 
-                            {{KObject_}}Node.arraycopyKey  (succInternal, 1, succInternal, 0, succSize - 1);
-                            {{KObject_}}Node.arraycopyValue(succInternal, 1, succInternal, 0, succSize);
+                            {{K_}}InternalNode.arraycopyKey(succInternal, 1, succInternal, 0, succSize - 1);
+                            Internal.arraycopyNode       (succInternal, 1, succInternal, 0, succSize);
 
                             // Avoid memory leaks
                             {% if K.isObject %}
                             succInternal.setKey  (succSize - 1, null);
                             {% endif %}
-                            succInternal.setValue(succSize,     null);
+                            Internal.setNode(succInternal, succSize, null, 0);
+
+                            childInternal.setKey(childSize - 1, succKey);
+                            Internal.setNode(childInternal, childSize, succNode, succNodeCount);
 
-                            childInternal.setKey  (childSize, succKey);
-                            childInternal.setValue(childSize, succNode);
+                            internal.counts[index + 1] -= succNodeCount;
+                            internal.counts[index]     += succNodeCount;
                         }
 
                         internal.setKey(index, succGteKey);
                     } else {
                         // Can merge with successor
                         final $K$ middleKey = Internal.getKey(internal, index);
+                        internal.counts[index] += internal.counts[index + 1];
                         Internal.deleteAtIndex(internal, index + 1);
                         appendToPred(child, middleKey, succ, depth - 1);
                     }
@@ -1968,21 +2768,451 @@ public class BTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V$>
         final int predSize = pred.size;
 
         pred.size = predSize + succSize;
-        assert pred.size == MAX_FANOUT;
+        assert pred.size <= pred.maxFanout();
+
+        if (depth == 0) {
+            // Children are leaves
+            final LeafNode<$K$, $V$> succLeaf = (LeafNode<$K$, $V$>)succ,
+                                 predLeaf = (LeafNode<$K$, $V$>)pred;
+            {{KV_}}LeafNode.arraycopyKey  (succLeaf, 0, predLeaf, predSize, succSize);
+            {{KV_}}LeafNode.arraycopyValue(succLeaf, 0, predLeaf, predSize, succSize);
+        } else {
+            // Children are internal nodes
+            final InternalNode<$K$> succInternal = (InternalNode<$K$>)succ,
+                                          predInternal = (InternalNode<$K$>)pred;
+            predInternal.setKey(predSize - 1, middleKey);
+            {{K_}}InternalNode.arraycopyKey(succInternal, 0, predInternal, predSize, succSize - 1);
+            Internal.arraycopyNode       (succInternal, 0, predInternal, predSize, succSize);
+        }
+    }
+
+    /** Removes all entries with keys within the given bounds in O(log n) time, whatever the number of entries removed */
+    void removeRange(@Boxed $K$ min, Bound minBound, @Boxed $K$ max, Bound maxBound) {
+        final Tree[] result = new Tree[2];
+        Tree middle = tree();
+
+        final Tree below;
+        if (minBound == Bound.MISSING || middle.root == null) {
+            below = Tree.EMPTY;
+        } else {
+            split(middle.root, middle.depth, min, minBound == Bound.EXCLUSIVE, result);
+            below = result[0];
+            middle = result[1];
+        }
+
+        final Tree above;
+        if (maxBound == Bound.MISSING || middle.root == null) {
+            above = Tree.EMPTY;
+        } else {
+            split(middle.root, middle.depth, max, maxBound == Bound.INCLUSIVE, result);
+            above = result[1];
+        }
+
+        setTree(above.root == null ? below : join(below, firstKey(above), above));
+    }
+
+    /**
+     * Removes all entries with keys greater than or equal to the given key from this map, and returns them as a new map
+     * with the same comparator.
+     * <p>
+     * Runs in log(n) time: rather than copying entries, the nodes along the path to the key are cut in two.
+     */
+    public BTreeMap<$K$, $V$> splitAt($K$ key) {
+        final BTreeMap<$K$, $V$> result = new BTreeMap<$K$, $V$>(comparator, leafFanout, internalFanout, searchStrategy);
+        {% if K.isGeneric() %}
+        result.keyPrefix = keyPrefix;
+        {% endif %}
+
+        final Tree tree = tree();
+        if (tree.root != null) {
+            final Tree[] pieces = new Tree[2];
+            split(tree.root, tree.depth, key, false, pieces);
+            setTree(pieces[0]);
+            result.setTree(pieces[1]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a map containing the entries of both the given maps, all of whose keys in {@code left} must be strictly
+     * less than those in {@code right}. The nodes of the input maps are reused, so they are left empty.
+     * <p>
+     * Runs in log(n) time.
+     *
+     * @throws IllegalArgumentException if the maps use different comparators or fanouts, or their keys are not ordered as described
+     */
+    public static <$K$, $V$> BTreeMap<$K$, $V$> concat(BTreeMap<$K$, $V$> left, BTreeMap<$K$, $V$> right) {
+        if (!Objects.equals(left.comparator, right.comparator)) {
+            throw new IllegalArgumentException("Cannot concatenate maps with different comparators");
+        } else if (left.leafFanout != right.leafFanout || left.internalFanout != right.internalFanout) {
+            throw new IllegalArgumentException("Cannot concatenate maps with different fanouts");
+        {% if K.isGeneric() %}
+        } else if (left.keyPrefix != right.keyPrefix) {
+            throw new IllegalArgumentException("Cannot concatenate maps with different key prefix functions");
+        {% endif %}
+        }
+
+        final BTreeMap<$K$, $V$> result = new BTreeMap<$K$, $V$>(left.comparator, left.leafFanout, left.internalFanout, left.searchStrategy);
+        {% if K.isGeneric() %}
+        result.keyPrefix = left.keyPrefix;
+        {% endif %}
+
+        final Tree leftTree = left.tree(), rightTree = right.tree();
+        if (leftTree.root == null) {
+            result.setTree(rightTree);
+        } else if (rightTree.root == null) {
+            result.setTree(leftTree);
+        } else {
+            final $K$ separator = right.firstKey(rightTree);
+            if (left.compare(left.lastKey(leftTree), separator) >= 0) {
+                throw new IllegalArgumentException("Cannot concatenate maps whose keys overlap");
+            }
+
+            result.setTree(result.join(leftTree, separator, rightTree));
+        }
+
+        left.clear();
+        right.clear();
+        return result;
+    }
+
+    private Tree tree() {
+        return new Tree(rootObjects, depth, size);
+    }
+
+    private void setTree(Tree tree) {
+        this.rootObjects = tree.root;
+        this.depth = tree.depth;
+        this.size = tree.size;
+    }
+
+    private void prependToSucc(AbstractNode pred, $K$ middleKey, AbstractNode succ, int depth) {
+        final int succSize = succ.size;
+        final int predSize = pred.size;
+
+        succ.size = predSize + succSize;
+        assert succ.size <= succ.maxFanout();
 
         if (depth == 0) {
             // Children are leaves
-            final Node<$K$, $V$> succLeaf = (Node<$K$, $V$>)succ,
-                                 predLeaf = (Node<$K$, $V$>)pred;
-            {{KV_}}Node.arraycopyKey  (succLeaf, 0, predLeaf, predSize, succSize);
-            {{KV_}}Node.arraycopyValue(succLeaf, 0, predLeaf, predSize, succSize);
+            final LeafNode<$K$, $V$> succLeaf = (LeafNode<$K$, $V$>)succ,
+                                 predLeaf = (LeafNode<$K$, $V$>)pred;
+            Leaf.copy(succLeaf, 0, succLeaf, predSize, succSize);
+            Leaf.copy(predLeaf, 0, succLeaf, 0,        predSize);
         } else {
             // Children are internal nodes
-            final Node<$K$, AbstractNode> succInternal = (Node<$K$, AbstractNode>)succ,
-                                          predInternal = (Node<$K$, AbstractNode>)pred;
+            final InternalNode<$K$> succInternal = (InternalNode<$K$>)succ,
+                                          predInternal = (InternalNode<$K$>)pred;
+            {{K_}}InternalNode.arraycopyKey(succInternal, 0, succInternal, predSize, succSize - 1);
+            Internal.arraycopyNode       (succInternal, 0, succInternal, predSize, succSize);
+            {{K_}}InternalNode.arraycopyKey(predInternal, 0, succInternal, 0,        predSize - 1);
+            Internal.arraycopyNode       (predInternal, 0, succInternal, 0,        predSize);
+            succInternal.setKey(predSize - 1, middleKey);
+        }
+    }
+
+    /** Moves the first n entries (or children) of succ onto the end of pred, returning the new separator between them */
+    private $K$ shiftLeft(AbstractNode pred, $K$ middleKey, AbstractNode succ, int n, int depth) {
+        final int predSize = pred.size;
+        final int succSize = succ.size;
+
+        pred.size = predSize + n;
+        succ.size = succSize - n;
+
+        if (depth == 0) {
+            // Children are leaves
+            final LeafNode<$K$, $V$> succLeaf = (LeafNode<$K$, $V$>)succ,
+                                 predLeaf = (LeafNode<$K$, $V$>)pred;
+            Leaf.copy(succLeaf, 0, predLeaf, predSize, n);
+            Leaf.copy(succLeaf, n, succLeaf, 0,        succSize - n);
+
+            // Avoid memory leaks
+            for (int i = succSize - n; i < succSize; i++) {
+                {% if K.isObject() %}succLeaf.setKey  (i, null);{% endif %}
+                {% if V.isObject() %}succLeaf.setValue(i, null);{% endif %}
+            }
+
+            return succLeaf.getKey(0);
+        } else {
+            // Children are internal nodes
+            final InternalNode<$K$> succInternal = (InternalNode<$K$>)succ,
+                                          predInternal = (InternalNode<$K$>)pred;
+            final $K$ separator = Internal.getKey(succInternal, n - 1);
+
             predInternal.setKey(predSize - 1, middleKey);
-            {{KObject_}}Node.arraycopyKey  (succInternal, 0, predInternal, predSize, succSize - 1);
-            {{KObject_}}Node.arraycopyValue(succInternal, 0, predInternal, predSize, succSize);
+            {{K_}}InternalNode.arraycopyKey(succInternal, 0, predInternal, predSize, n - 1);
+            Internal.arraycopyNode       (succInternal, 0, predInternal, predSize, n);
+            {{K_}}InternalNode.arraycopyKey(succInternal, n, succInternal, 0,        succSize - n - 1);
+            Internal.arraycopyNode       (succInternal, n, succInternal, 0,        succSize - n);
+
+            // Avoid memory leaks
+            for (int i = succSize - n; i < succSize; i++) {
+                {% if K.isObject() %}succInternal.setKey(i - 1, null);{% endif %}
+                Internal.setNode(succInternal, i, null, 0);
+            }
+
+            return separator;
+        }
+    }
+
+    /** Moves the last n entries (or children) of pred onto the start of succ, returning the new separator between them */
+    private $K$ shiftRight(AbstractNode pred, $K$ middleKey, AbstractNode succ, int n, int depth) {
+        final int predSize = pred.size;
+        final int succSize = succ.size;
+
+        pred.size = predSize - n;
+        succ.size = succSize + n;
+
+        if (depth == 0) {
+            // Children are leaves
+            final LeafNode<$K$, $V$> succLeaf = (LeafNode<$K$, $V$>)succ,
+                                 predLeaf = (LeafNode<$K$, $V$>)pred;
+            Leaf.copy(succLeaf, 0,            succLeaf, n, succSize);
+            Leaf.copy(predLeaf, predSize - n, succLeaf, 0, n);
+
+            // Avoid memory leaks
+            for (int i = predSize - n; i < predSize; i++) {
+                {% if K.isObject() %}predLeaf.setKey  (i, null);{% endif %}
+                {% if V.isObject() %}predLeaf.setValue(i, null);{% endif %}
+            }
+
+            return succLeaf.getKey(0);
+        } else {
+            // Children are internal nodes
+            final InternalNode<$K$> succInternal = (InternalNode<$K$>)succ,
+                                          predInternal = (InternalNode<$K$>)pred;
+            final $K$ separator = Internal.getKey(predInternal, predSize - n - 1);
+
+            {{K_}}InternalNode.arraycopyKey(succInternal, 0,            succInternal, n, succSize - 1);
+            Internal.arraycopyNode       (succInternal, 0,            succInternal, n, succSize);
+            {{K_}}InternalNode.arraycopyKey(predInternal, predSize - n, succInternal, 0, n - 1);
+            Internal.arraycopyNode       (predInternal, predSize - n, succInternal, 0, n);
+            succInternal.setKey(n - 1, middleKey);
+
+            // Avoid memory leaks
+            for (int i = predSize - n; i < predSize; i++) {
+                {% if K.isObject() %}predInternal.setKey(i - 1, null);{% endif %}
+                Internal.setNode(predInternal, i, null, 0);
+            }
+
+            return separator;
+        }
+    }
+
+    private int count(AbstractNode repr, int depth) {
+        return depth == 0 ? repr.size : Internal.count((InternalNode<$K$>)repr);
+    }
+
+    private int compare($K$ x, $K$ y) {
+        if (comparator != null) {
+            return comparator.compare{% if K.isSpecialized() %}{{K.name}}{% endif %}(x, y);
+        } else {
+            {% if K.isPrimitive %}
+            return {{K.boxed}}.compare(x, y);
+            {% elseif K.isBytes() %}
+            return ByteArrays.compareUnsigned(x, y);
+            {% else %}
+            return ((Comparable)x).compareTo(y);
+            {% endif %}
+        }
+    }
+
+    private $K$ lastKey(Tree tree) {
+        AbstractNode repr = tree.root;
+        for (int depth = tree.depth; depth > 0; depth--) {
+            repr = Internal.getNode((InternalNode<$K$>)repr, repr.size - 1);
+        }
+
+        return Leaf.getKey((LeafNode<$K$, $V$>)repr, repr.size - 1);
+    }
+
+    private $K$ firstKey(Tree tree) {
+        AbstractNode repr = tree.root;
+        for (int depth = tree.depth; depth > 0; depth--) {
+            repr = Internal.getNode((InternalNode<$K$>)repr, 0);
+        }
+
+        return Leaf.getKey((LeafNode<$K$, $V$>)repr, 0);
+    }
+
+    // Splitting and joining trees
+    //
+    // These are the building blocks of the O(log n) bulk operations: removing a key range, splitAt, and concat.
+    // Both work by reshaping the nodes along the spines of the trees, so the work done is proportional to the
+    // height of the trees rather than the number of entries in them.
+    //
+    // Join takes a separator key which is > all keys in the left tree and <= all keys in the right one. It descends
+    // the right spine of the taller tree (or left spine, if the right tree is the taller) until it reaches a node
+    // at the same height as the root of the shorter tree. Those two nodes are then merged into one, or rebalanced
+    // so that both are at least the minimum fanout in size, and the result is bubbled up exactly as for an insertion.
+    //
+    // Split descends to the leaf that would hold the key, cutting each node on the path in two. The pieces to the left
+    // of the path are then joined together bottom-up, as are the pieces to the right. Since the height of the pieces
+    // increases as we go up, the total cost of all these joins telescopes to O(log n).
+
+    /** Joins two trees whose keys are ordered with respect to the separator. The input trees are destroyed. */
+    private Tree join(Tree left, $K$ separator, Tree right) {
+        if (left.root == null) return right;
+        if (right.root == null) return left;
+
+        left  = new Tree(unshare(left.root,  left.depth),  left.depth,  left.size);
+        right = new Tree(unshare(right.root, right.depth), right.depth, right.size);
+
+        final AbstractNode root;
+        final int depth;
+        if (left.depth >= right.depth) {
+            joinRight(left.root, left.depth, separator, right);
+            root = left.root;
+            depth = left.depth;
+        } else {
+            joinLeft(left, separator, right.root, right.depth);
+            root = right.root;
+            depth = right.depth;
+        }
+
+        final int size = left.size + right.size;
+        final BubbledInsertion<$K$> toBubble = this.bubble;
+        if (toBubble == null || !toBubble.isPending()) {
+            return new Tree(root, depth, size);
+        }
+
+        final InternalNode<$K$> internal = {{K_}}InternalNode.create(internalFanout{% if K.isGeneric() %}, keyPrefix{% endif %});
+        internal.size = 2;
+        internal.setKey(0, toBubble.separator);
+        Internal.setNode(internal, 0, toBubble.leftObjects,  toBubble.leftCount);
+        Internal.setNode(internal, 1, toBubble.rightObjects, toBubble.rightCount);
+        toBubble.clear();
+        return new Tree(internal, depth + 1, size);
+    }
+
+    /** Joins the right tree onto the right spine of the subtree rooted at the given node, which must be at least as tall */
+    private void joinRight(AbstractNode repr, int depth, $K$ separator, Tree right) {
+        if (depth == right.depth) {
+            joinSameHeight(repr, separator, right.root, depth, true);
+            return;
+        }
+
+        final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+        final int index = internal.size - 1;
+        joinRight(Internal.getNodeForWrite(internal, index, depth - 1), depth - 1, separator, right);
+        putInternalFinishInternal(internal, index, right.size);
+    }
+
+    /** Joins the left tree onto the left spine of the subtree rooted at the given node, which must be at least as tall */
+    private void joinLeft(Tree left, $K$ separator, AbstractNode repr, int depth) {
+        if (depth == left.depth) {
+            joinSameHeight(left.root, separator, repr, depth, false);
+            return;
+        }
+
+        final InternalNode<$K$> internal = (InternalNode<$K$>)repr;
+        joinLeft(left, separator, Internal.getNodeForWrite(internal, 0, depth - 1), depth - 1);
+        putInternalFinishInternal(internal, 0, left.size);
+    }
+
+    /**
+     * Combines two nodes of the same height. If they fit into a single node, they are merged into pred (if intoPred)
+     * or succ (otherwise). If not, they are made to both have at least the minimum fanout of children and are left pending in
+     * the bubble() as a pair to be inserted into the parent.
+     */
+    private void joinSameHeight(AbstractNode pred, $K$ separator, AbstractNode succ, int depth, boolean intoPred) {
+        final int minFanout = pred.minFanout();
+        if (pred.size >= minFanout && succ.size >= minFanout) {
+            bubble().set(pred, succ, separator, count(pred, depth), count(succ, depth));
+        } else if (pred.size + succ.size <= pred.maxFanout()) {
+            if (intoPred) {
+                appendToPred(pred, separator, succ, depth);
+            } else {
+                prependToSucc(pred, separator, succ, depth);
+            }
+        } else {
+            // One of the nodes is underfull, but between them they have enough entries to make two valid nodes
+            final $K$ newSeparator = pred.size < minFanout ? shiftLeft (pred, separator, succ, minFanout - pred.size, depth)
+                                                           : shiftRight(pred, separator, succ, minFanout - succ.size, depth);
+            bubble().set(pred, succ, newSeparator, count(pred, depth), count(succ, depth));
+        }
+    }
+
+    /**
+     * Splits the tree rooted at the given node into the entries with keys less than the key (or less than or equal to it,
+     * if inclusive), and the rest. The two resulting trees are written to result[0] and result[1] respectively.
+     * The input tree is destroyed.
+     */
+    private void split(AbstractNode repr, int depth, @Erased $K$ key, boolean inclusive, Tree[] result) {
+        if (depth == 0) {
+            final LeafNode<$K$, $V$> leaf = (LeafNode<$K$, $V$>)repr;
+            final int index = Leaf.find(leaf, key, comparator, searchStrategy);
+            final int splitIndex = index < 0 ? -(index + 1) : inclusive ? index + 1 : index;
+
+            final int size = leaf.size;
+            if (splitIndex == 0) {
+                result[0] = Tree.EMPTY;
+                result[1] = new Tree(leaf, 0, size);
+            } else if (splitIndex == size) {
+                result[0] = new Tree(leaf, 0, size);
+                result[1] = Tree.EMPTY;
+            } else {
+                final LeafNode<$K$, $V$> left = (LeafNode<$K$, $V$>)unshare(leaf, 0);
+                final LeafNode<$K$, $V$> right = left.newNode();
+                right.size = size - splitIndex;
+                Leaf.copy(left, splitIndex, right, 0, right.size);
+                left.size = splitIndex;
+
+                // Avoid memory leaks
+                for (int i = splitIndex; i < size; i++) {
+                    {% if K.isObject() %}left.setKey  (i, null);{% endif %}
+                    {% if V.isObject() %}left.setValue(i, null);{% endif %}
+                }
+
+                result[0] = new Tree(left,  0, left.size);
+                result[1] = new Tree(right, 0, right.size);
+            }
+        } else {
+            final InternalNode<$K$> internal = (InternalNode<$K$>)unshare(repr, depth);
+            final int index = Internal.find(internal, key, comparator, searchStrategy);
+            final int size = internal.size;
+
+            split(Internal.getNode(internal, index), depth - 1, key, inclusive, result);
+            final Tree childLeft = result[0], childRight = result[1];
+
+            // The children to the right of the one we just split form a tree of their own, to be joined onto childRight
+            final int rightSize = size - index - 1;
+            if (rightSize > 0) {
+                final Tree right;
+                if (rightSize == 1) {
+                    right = new Tree(Internal.getNode(internal, index + 1), depth - 1, internal.counts[index + 1]);
+                } else {
+                    final InternalNode<$K$> rightInternal = internal.newNode();
+                    rightInternal.size = rightSize;
+                    {{K_}}InternalNode.arraycopyKey(internal, index + 1, rightInternal, 0, rightSize - 1);
+                    Internal.arraycopyNode       (internal, index + 1, rightInternal, 0, rightSize);
+                    right = new Tree(rightInternal, depth, Internal.count(rightInternal));
+                }
+
+                result[1] = join(childRight, Internal.getKey(internal, index), right);
+            }
+
+            // Likewise for the children to the left, for which we can reuse this node
+            if (index > 0) {
+                final $K$ separator = Internal.getKey(internal, index - 1);
+                final Tree left;
+                if (index == 1) {
+                    left = new Tree(Internal.getNode(internal, 0), depth - 1, internal.counts[0]);
+                } else {
+                    internal.size = index;
+
+                    // Avoid memory leaks
+                    for (int i = index; i < size; i++) {
+                        {% if K.isObject() %}internal.setKey(i - 1, null);{% endif %}
+                        Internal.setNode(internal, i, null, 0);
+                    }
+
+                    left = new Tree(internal, depth, Internal.count(internal));
+                }
+
+                result[0] = join(left, separator, childLeft);
+            }
         }
     }
 }
@@ -0,0 +1,653 @@
+package uk.co.omegaprime.btreemap;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+// A leaf holds the actual entries of the map. This is basically a pair of fixed size arrays (for keys and values) with
+// a "int" size field. How those "arrays" are stored depends on the NodeLayout, which is chosen once, when this class is
+// loaded:
+//  * FIELDS: the size is fixed by the subclass, one of which is generated for each fanout a map may choose (see
+//    BTreeMap.Builder.leafFanout), and the keys and values are numbered fields accessed via Unsafe
+//  * ARRAYS: ArrayLeafNode serves every fanout, and the keys and values are real arrays
+// The FIELDS layout only works if the JVM puts the fields one after another, which isn't something it promises to do
+// (since JDK 15, HotSpot will fit smaller fields into gaps between larger ones) so if it hasn't, we use ARRAYS instead.
+//
+// A map only ever uses one of these classes, so the JIT will usually find the calls to e.g. getKey monomorphic and
+// inline them.
+{% if K.isString() %}
+//
+// String keys are stored with their common prefix factored out, unless the map has a comparator: see prefix.
+{% elseif K.isBytes() %}
+//
+// byte[] keys have their first few bytes copied into the leaf itself: see heads.
+{% elseif K.isGeneric() %}
+//
+// If the map has a key prefix function, we keep the prefix of each key in the leaf itself: see prefixes.
+{% endif %}
+abstract class LeafNode<$K$,$V$> extends AbstractNode {
+{% if K.name == "Int" %}
+    // With the vector module, LookupBenchmark.getInt does 4.6-5.4M gets/s on JDK 17 with ARRAYS against 4.4M with
+    // FIELDS, so int leaves default to ARRAYS to get vector search. We don't do the same for long keys, which aren't
+    // searched with vectors (see KeySearch): getLong did 3.1-3.2M gets/s with ARRAYS against 3.8-4.0M with FIELDS.
+    static final NodeLayout LAYOUT = chooseLayout(NodeLayout.requestedForVectorSearch());
+{% else %}
+    static final NodeLayout LAYOUT = chooseLayout(NodeLayout.requested());
+{% endif %}
+
+    private static NodeLayout chooseLayout(NodeLayout requested) {
+        if (requested != NodeLayout.FIELDS) {
+            return requested;
+        }
+
+        // Referring to the classes like this doesn't run their static initializers, which would make the same checks
+        // but throw an ExceptionInInitializerError if they failed
+        try {
+            final int keySize = UNSAFE.arrayIndexScale(@Erased $K$[].class), valueSize = UNSAFE.arrayIndexScale(@Erased $V$[].class);
+            {% for fanout in fanouts %}
+            verifyInstanceFieldsContiguous(LeafNode{{fanout.min}}.class, "k", keySize,   {{fanout.max}});
+            verifyInstanceFieldsContiguous(LeafNode{{fanout.min}}.class, "v", valueSize, {{fanout.max}});
+            {% endfor %}
+            return NodeLayout.FIELDS;
+        } catch (IllegalStateException e) {
+            return NodeLayout.ARRAYS;
+        }
+    }
+
+    /** Returns an empty leaf that can hold between minFanout and 2 * minFanout - 1 entries */
+    public static <$K$,$V$> LeafNode<$K$,$V$> create(int minFanout) {
+        if (LAYOUT == NodeLayout.ARRAYS) {
+            if (Arrays.binarySearch(FANOUTS, minFanout) < 0) {
+                throw new IllegalArgumentException("Unsupported fanout " + minFanout + ", should be one of " + Arrays.toString(FANOUTS));
+            }
+
+            return new ArrayLeafNode<$K$,$V$>(minFanout);
+        }
+
+        switch (minFanout) {
+            {% for fanout in fanouts %}
+            case {{fanout.min}}: return new LeafNode{{fanout.min}}<$K$,$V$>();
+            {% endfor %}
+            default: throw new IllegalArgumentException("Unsupported fanout " + minFanout + ", should be one of " + Arrays.toString(FANOUTS));
+        }
+    }
+
+    /** Returns an empty node with the default fanout */
+    public static <$K$,$V$> LeafNode<$K$,$V$> create() {
+        return create(MIN_FANOUT);
+    }
+    {% if K.isBytes() %}
+
+    // heads[i] is ByteArrays.head(getKey(i)) (or 0 if there is no key), and is of length maxFanout(). Comparing these
+    // first means that find need only follow the pointer to a key if it shares its first 8 bytes with the one sought.
+    final long[] heads;
+
+    {{KV_}}LeafNode(int maxFanout) {
+        this.heads = new long[maxFanout];
+    }
+    {% elseif K.isString() %}
+
+    /** As {@link #create(int)}, for a map with the given comparator, which may be null */
+    public static <$K$,$V$> LeafNode<$K$,$V$> create(int minFanout, Comparator<? super $K$> comparator) {
+        final LeafNode<$K$,$V$> result = create(minFanout);
+        return result.withWholeKeys(comparator != null);
+    }
+
+    /** Makes this leaf, which must be empty, store the keys as they are, rather than factoring out a prefix, if asked to */
+    final LeafNode<$K$,$V$> withWholeKeys(boolean wholeKeys) {
+        if (wholeKeys) {
+            prefix = NO_PREFIX;
+        }
+
+        return this;
+    }
+    {% elseif K.isGeneric() %}
+
+    /** As {@link #create(int)}, for a map with the given key prefix function, which may be null */
+    public static <$K$,$V$> LeafNode<$K$,$V$> create(int minFanout, ToLongFunction<? super $K$> keyPrefix) {
+        final LeafNode<$K$,$V$> result = create(minFanout);
+        return result.withKeyPrefix(keyPrefix);
+    }
+
+    // Null unless the map has a key prefix function (see BTreeMap.Builder.keyPrefix), in which case prefixes[i] is
+    // keyPrefix.applyAsLong(getKey(i)) (or 0 if there is no key), and of length maxFanout(). Comparing these first means
+    // that find need only follow the pointer to a key, and call compareTo on it, if it has the same prefix as the one sought.
+    ToLongFunction<? super $K$> keyPrefix;
+    long[] prefixes;
+
+    /** Makes this node, which must be empty, keep the prefixes of its keys according to the function (unless it's null) */
+    final LeafNode<$K$,$V$> withKeyPrefix(ToLongFunction<? super $K$> keyPrefix) {
+        if (keyPrefix != null) {
+            this.keyPrefix = keyPrefix;
+            this.prefixes = new long[maxFanout()];
+        }
+
+        return this;
+    }
+
+    /** As Leaf.find, for a node with prefixes */
+    @SuppressWarnings("unchecked")
+    final int findByPrefix(@Erased $K$ key, Comparator<? super $K$> c) {
+        final int size = this.size;
+        final long prefix = keyPrefix.applyAsLong(($K$)key);
+        for (int i = 0; i < size; i++) {
+            int cmp = Long.compare(prefixes[i], prefix);
+            if (cmp == 0) {
+                cmp = c == null ? ((Comparable)getKey(i)).compareTo(key) : c.compare(getKey(i), ($K$)key);
+            }
+
+            if (cmp == 0) {
+                return i;
+            } else if (cmp > 0) {
+                return -i - 1;
+            }
+        }
+
+        return -size - 1;
+    }
+    {% endif %}
+
+    /** Returns an empty node of the same layout, and hence fanout, as this one */
+    public abstract LeafNode<$K$,$V$> newNode();
+
+    @Override
+    public LeafNode<$K$, $V$> clone() {
+        final LeafNode<$K$, $V$> result = newNode();
+        result.size = this.size;
+        arraycopyKey  (this, 0, result, 0, size);
+        arraycopyValue(this, 0, result, 0, size);
+        return result;
+    }
+
+    {% if K.isString() %}
+    // Every key in the leaf starts with this, and the key slots only hold what comes after it, so a long prefix shared
+    // by all the keys (as with e.g. hierarchical identifiers) is stored just once, and when searching the leaf we need
+    // only compare it once. Null until the first key is stored.
+    //
+    // Storing a key can only ever shorten the prefix, which is cheap to maintain but means that it can end up shorter
+    // than it need be (e.g. after a split divides the keys into two groups with longer prefixes of their own) until
+    // lengthenPrefix is called.
+    String prefix;
+
+    // The prefix of every leaf of a map with a comparator. A comparator has to see the whole keys, so rather than have
+    // getKey reassemble each one it compares, we store them as they are: this is empty, so it never needs shortening,
+    // and lengthenPrefix leaves it alone.
+    private static final String NO_PREFIX = new String();
+
+    abstract String getSuffix(int i);
+    abstract void setSuffix(int i, String x);
+
+    public final String getKey(int i) {
+        final String suffix = getSuffix(i);
+        // This is the only way in which a String map allocates where others don't
+        return suffix == null || prefix.isEmpty() ? suffix : prefix.concat(suffix);
+    }
+
+    public final void setKey(int i, String x) {
+        if (x == null) {
+            setSuffix(i, null);
+            return;
+        } else if (prefix == null) {
+            prefix = x;
+        } else if (!x.startsWith(prefix)) {
+            shortenPrefix(commonPrefixLength(prefix, x));
+        }
+
+        setSuffix(i, x.substring(prefix.length()));
+    }
+
+    /** Returns the length of the longest string that both arguments start with */
+    static int commonPrefixLength(String x, String y) {
+        final int n = Math.min(x.length(), y.length());
+        int i;
+        for (i = 0; i < n; i++) {
+            if (x.charAt(i) != y.charAt(i)) {
+                break;
+            }
+        }
+
+        return i;
+    }
+
+    private void shortenPrefix(int length) {
+        // Includes any slots past the size which haven't been cleared yet, so that everything in the slots is always
+        // relative to the current prefix
+        final String moved = prefix.substring(length);
+        for (int i = 0; i < maxFanout(); i++) {
+            final String suffix = getSuffix(i);
+            if (suffix != null) {
+                setSuffix(i, moved.concat(suffix));
+            }
+        }
+
+        prefix = prefix.substring(0, length);
+    }
+
+    /** Makes the prefix as long as it can be given the keys currently in the leaf, which must not be empty */
+    void lengthenPrefix() {
+        if (prefix == NO_PREFIX) {
+            return;
+        }
+
+        // The keys are sorted, so whatever the first and last have in common, all the others do too
+        final int length = commonPrefixLength(getSuffix(0), getSuffix(size - 1));
+        if (length == 0) {
+            return;
+        }
+
+        prefix = prefix.concat(getSuffix(0).substring(0, length));
+        for (int i = 0; i < maxFanout(); i++) {
+            final String suffix = getSuffix(i);
+            if (suffix != null) {
+                setSuffix(i, i < size ? suffix.substring(length) : null);
+            }
+        }
+    }
+
+    /** As Leaf.find, for the natural order on the keys */
+    final int find(String key) {
+        final int size = this.size;
+        if (size == 0) {
+            return -1;
+        } else if (!key.startsWith(prefix)) {
+            // Every key in the leaf is on the same side of this one
+            return key.compareTo(prefix) < 0 ? -1 : -size - 1;
+        }
+
+        final int offset = prefix.length();
+        for (int i = 0; i < size; i++) {
+            final int cmp = compareSuffix(getSuffix(i), key, offset);
+            if (cmp == 0) {
+                return i;
+            } else if (cmp > 0) {
+                return -i - 1;
+            }
+        }
+
+        return -size - 1;
+    }
+
+    /** Compares the suffix with the part of the key from the offset on, just as String.compareTo would */
+    private static int compareSuffix(String suffix, String key, int offset) {
+        final int suffixLength = suffix.length(), keyLength = key.length() - offset;
+        final int n = Math.min(suffixLength, keyLength);
+        for (int i = 0; i < n; i++) {
+            final char c1 = suffix.charAt(i), c2 = key.charAt(offset + i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+
+        return suffixLength - keyLength;
+    }
+    {% else %}
+    public abstract $K$ getKey  (int i);
+    {% if K.isBytes() %}
+    /** Stores the key without touching heads, which the caller must keep up to date itself */
+    abstract void storeKey(int i, $K$ x);
+
+    public final void setKey(int i, $K$ x) {
+        storeKey(i, x);
+        heads[i] = x == null ? 0 : ByteArrays.head(x);
+    }
+    {% elseif K.isGeneric() %}
+    /** Stores the key without touching prefixes, which the caller must keep up to date itself */
+    abstract void storeKey(int i, $K$ x);
+
+    public final void setKey(int i, $K$ x) {
+        storeKey(i, x);
+        if (prefixes != null) {
+            prefixes[i] = x == null ? 0 : keyPrefix.applyAsLong(x);
+        }
+    }
+    {% else %}
+    public abstract void setKey  (int i, $K$ x);
+    {% endif %}
+    {% endif %}
+    {% if K.isBytes() %}
+
+    /** As Leaf.find, for the natural order on the keys */
+    final int find(byte[] key) {
+        final int size = this.size;
+        final long head = ByteArrays.head(key);
+        for (int i = 0; i < size; i++) {
+            int cmp = Long.compareUnsigned(heads[i], head);
+            if (cmp == 0) {
+                cmp = ByteArrays.compareUnsigned(getKey(i), key);
+            }
+
+            if (cmp == 0) {
+                return i;
+            } else if (cmp > 0) {
+                return -i - 1;
+            }
+        }
+
+        return -size - 1;
+    }
+    {% endif %}
+
+    public abstract $V$ getValue(int i);
+    public abstract void setValue(int i, $V$ x);
+
+    public int binarySearch(int fromIndex, int toIndex, @Erased $K$ key, {{K_}}Comparator c) {
+        if (c == null) {
+            return binarySearch(fromIndex, toIndex, key);
+        }
+
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            $K$ midVal = getKey(mid);
+            int cmp = c.compare{{K_}}(midVal, key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid; // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+
+    public int binarySearch(int fromIndex, int toIndex, @Erased $K$ key) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+        {% if K.isString() %}
+        final String string = (String)key;
+        if (low > high) {
+            return -(low + 1);
+        } else if (!string.startsWith(prefix)) {
+            // As in find, every key in the leaf is on the same side of this one, and otherwise we need only compare suffixes
+            return string.compareTo(prefix) < 0 ? -(low + 1) : -(high + 2);
+        }
+
+        final int offset = prefix.length();
+        {% endif %}
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            {% if K.isBytes() %}
+            int cmp = ByteArrays.compareUnsigned(this.getKey(mid), key);
+            {% elseif K.isString() %}
+            int cmp = compareSuffix(this.getSuffix(mid), string, offset);
+            {% elseif K.isPrimitive() %}
+            int cmp = {{K.boxed}}.compare(this.getKey(mid), key);
+            {% else %}
+            @SuppressWarnings("rawtypes")
+            Comparable midVal = (Comparable)this.getKey(mid);
+            @SuppressWarnings("unchecked")
+            int cmp = midVal.compareTo(key);
+            {% endif %}
+
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid; // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+    {% if K.name == "Int" or K.name == "Long" %}
+
+    /** As {@link #binarySearch(int, int, $K$)}, but guesses where the key will be as if the keys were evenly spread */
+    public int interpolationSearch(int fromIndex, int toIndex, $K$ key) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            final $K$ lowVal = getKey(low), highVal = getKey(high);
+            if (key < lowVal) {
+                return -(low + 1);
+            } else if (key > highVal) {
+                return -(high + 2);
+            }
+
+            final int mid = Interpolation.guess(low, high, lowVal, highVal, key);
+            final $K$ midVal = getKey(mid);
+            if (midVal < key)
+                low = mid + 1;
+            else if (midVal > key)
+                high = mid - 1;
+            else
+                return mid; // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+
+    /** As {@link #interpolationSearch(int, int, $K$)}, but only guesses once, and then searches linearly from there */
+    public int interpolationScan(int fromIndex, int toIndex, $K$ key) {
+        final int low = fromIndex;
+        final int high = toIndex - 1;
+        if (low > high) {
+            return -(low + 1);
+        }
+
+        final $K$ lowVal = getKey(low), highVal = getKey(high);
+        if (key < lowVal) {
+            return -(low + 1);
+        } else if (key > highVal) {
+            return -(high + 2);
+        }
+
+        // Find the first key >= the one sought, which must exist since highVal is one
+        int i = Interpolation.guess(low, high, lowVal, highVal, key);
+        if (getKey(i) < key) {
+            do {
+                i++;
+            } while (getKey(i) < key);
+        } else {
+            while (i > low && getKey(i - 1) >= key) {
+                i--;
+            }
+        }
+        return getKey(i) == key ? i : -(i + 1);
+    }
+    {% endif %}
+
+    public static <$K$,$V$> void arraycopyKey(LeafNode<$K$,$V$> src, int srcIndex, LeafNode<? super $K$,?> dst, int dstIndex, int size) {
+        if (size < 0 || srcIndex + size > src.maxFanout() || dstIndex + size > dst.maxFanout()) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+
+        {% if K.isString() %}
+        // We can copy the suffixes as they are if both leaves have the same prefix, or we can make them so
+        if (src.prefix != null && src.prefix != dst.prefix) {
+            if (dst.prefix == null) {
+                dst.prefix = src.prefix;
+            } else if (!src.prefix.startsWith(dst.prefix)) {
+                dst.shortenPrefix(commonPrefixLength(src.prefix, dst.prefix));
+            }
+
+            if (dst.prefix.length() != src.prefix.length()) {
+                final String moved = src.prefix.substring(dst.prefix.length());
+                for (int i = 0; i < size; i++) {
+                    final String suffix = src.getSuffix(srcIndex + i);
+                    dst.setSuffix(dstIndex + i, suffix == null ? null : moved.concat(suffix));
+                }
+                return;
+            }
+        }
+
+        {% elseif K.isBytes() %}
+        // The heads are the same wherever the keys are, so rather than work them out again, we copy them along
+        System.arraycopy(src.heads, srcIndex, dst.heads, dstIndex, size);
+
+        {% elseif K.isGeneric() %}
+        // Likewise the prefixes, so that we needn't call the key prefix function again on every key we move
+        if (src.prefixes != null) {
+            System.arraycopy(src.prefixes, srcIndex, dst.prefixes, dstIndex, size);
+        }
+
+        {% endif %}
+        if (LAYOUT == NodeLayout.ARRAYS) {
+            System.arraycopy(((ArrayLeafNode<$K$,$V$>)src).keys, srcIndex, ((ArrayLeafNode<$K$,$V$>)dst).keys, dstIndex, size);
+        } else if (dst == src && srcIndex < dstIndex) {
+            for (int i = size - 1; i >= 0; i--) {
+                {% if K.isString() %}
+                dst.setSuffix(dstIndex + i, src.getSuffix(srcIndex + i));
+                {% elseif K.isBytes() or K.isGeneric() %}
+                dst.storeKey(dstIndex + i, src.getKey(srcIndex + i));
+                {% else %}
+                dst.setKey(dstIndex + i, src.getKey(srcIndex + i));
+                {% endif %}
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                {% if K.isString() %}
+                dst.setSuffix(dstIndex + i, src.getSuffix(srcIndex + i));
+                {% elseif K.isBytes() or K.isGeneric() %}
+                dst.storeKey(dstIndex + i, src.getKey(srcIndex + i));
+                {% else %}
+                dst.setKey(dstIndex + i, src.getKey(srcIndex + i));
+                {% endif %}
+            }
+        }
+    }
+
+    public static <$K$,$V$> void arraycopyValue(LeafNode<$K$,$V$> src, int srcIndex, LeafNode<?,? super $V$> dst, int dstIndex, int size) {
+        if (size < 0 || srcIndex + size > src.maxFanout() || dstIndex + size > dst.maxFanout()) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+
+        if (LAYOUT == NodeLayout.ARRAYS) {
+            System.arraycopy(((ArrayLeafNode<$K$,$V$>)src).values, srcIndex, ((ArrayLeafNode<$K$,$V$>)dst).values, dstIndex, size);
+        } else if (dst == src && srcIndex < dstIndex) {
+            for (int i = size - 1; i >= 0; i--) {
+                dst.setValue(dstIndex + i, src.getValue(srcIndex + i));
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                dst.setValue(dstIndex + i, src.getValue(srcIndex + i));
+            }
+        }
+    }
+
+    static final class ArrayLeafNode<$K$,$V$> extends LeafNode<$K$,$V$> {
+        // Both of length maxFanout()
+        final @Erased $K$[] keys;
+        final @Erased $V$[] values;
+
+        {{KV_}}ArrayLeafNode(int minFanout) {
+            {% if K.isBytes() %}
+            super(2 * minFanout - 1);
+            {% endif %}
+            this.keys   = {{K.newErasedArray("2 * minFanout - 1")}};
+            this.values = new @Erased $V$[2 * minFanout - 1];
+        }
+
+        @Override
+        public int minFanout() {
+            return (keys.length + 1) / 2;
+        }
+
+        @Override
+        public LeafNode<$K$,$V$> newNode() {
+            return new ArrayLeafNode<$K$,$V$>(minFanout()){% if K.isGeneric() %}.withKeyPrefix(keyPrefix){% elseif K.isString() %}.withWholeKeys(prefix == NO_PREFIX){% endif %};
+        }
+
+        {% if K.isString() %}
+        @Override
+        String getSuffix(int i) {
+            return (String)keys[i];
+        }
+        {% else %}
+        @Override
+        public $K$ getKey  (int i) {
+            return ($K$)keys[i];
+        }
+        {% endif %}
+        @Override
+        public $V$ getValue(int i) {
+            return ($V$)values[i];
+        }
+
+        {% if K.isString() %}
+        @Override
+        void setSuffix(int i, String x) {
+            keys[i] = x;
+        }
+        {% else %}
+        @Override
+        {% if K.isBytes() or K.isGeneric() %}void storeKey{% else %}public void setKey  {% endif %}(int i, $K$ x) {
+            keys[i] = x;
+        }
+        {% endif %}
+        @Override
+        public void setValue(int i, $V$ x) {
+            values[i] = x;
+        }
+    }
+
+    {% for fanout in fanouts %}
+    static final class LeafNode{{fanout.min}}<$K$,$V$> extends LeafNode<$K$,$V$> {
+        private static final int KEY_SIZE, VALUE_SIZE;
+        private static final long KEY_OFFSET0, VALUE_OFFSET0;
+
+        static {
+            // Object pointer size might differ from Unsafe.ADDRESS_SIZE if compressed OOPs are in use
+            KEY_SIZE   = UNSAFE.arrayIndexScale(@Erased $K$[].class);
+            VALUE_SIZE = UNSAFE.arrayIndexScale(@Erased $V$[].class);
+            KEY_OFFSET0   = verifyInstanceFieldsContiguous(LeafNode{{fanout.min}}.class, "k", KEY_SIZE,   {{fanout.max}});
+            VALUE_OFFSET0 = verifyInstanceFieldsContiguous(LeafNode{{fanout.min}}.class, "v", VALUE_SIZE, {{fanout.max}});
+        }
+
+        {% for i in fanout.indexes %}
+        private $K$ k{{i}};
+        {% endfor %}
+        {% for i in fanout.indexes %}
+        private $V$ v{{i}};
+        {% endfor %}
+        {% if K.isBytes() %}
+
+        LeafNode{{fanout.min}}() {
+            super({{fanout.max}});
+        }
+        {% endif %}
+
+        @Override
+        public int minFanout() {
+            return {{fanout.min}};
+        }
+
+        @Override
+        public LeafNode<$K$,$V$> newNode() {
+            return new LeafNode{{fanout.min}}<$K$,$V$>(){% if K.isGeneric() %}.withKeyPrefix(keyPrefix){% elseif K.isString() %}.withWholeKeys(prefix == NO_PREFIX){% endif %};
+        }
+
+        {% if K.isString() %}
+        @Override
+        String getSuffix(int i) {
+            return (String)UNSAFE.getObject(this, KEY_OFFSET0 + i * KEY_SIZE);
+        }
+        {% else %}
+        @Override
+        public $K$ getKey  (int i) {
+            return ($K$)UNSAFE.get{% if K.isBytes() %}Object{% else %}{{K.name}}{% endif %}(this, KEY_OFFSET0   + i * KEY_SIZE);
+        }
+        {% endif %}
+        @Override
+        public $V$ getValue(int i) {
+            return ($V$)UNSAFE.get{{V.name}}(this, VALUE_OFFSET0 + i * VALUE_SIZE);
+        }
+
+        {% if K.isString() %}
+        @Override
+        void setSuffix(int i, String x) {
+            UNSAFE.putObject(this, KEY_OFFSET0 + i * KEY_SIZE, x);
+        }
+        {% else %}
+        @Override
+        {% if K.isBytes() or K.isGeneric() %}void storeKey{% else %}public void setKey  {% endif %}(int i, $K$ x) {
+            UNSAFE.put{% if K.isBytes() %}Object{% else %}{{K.name}}{% endif %}(this, KEY_OFFSET0   + i * KEY_SIZE, x);
+        }
+        {% endif %}
+        @Override
+        public void setValue(int i, $V$ x) {
+            UNSAFE.put{{V.name}}(this, VALUE_OFFSET0 + i * VALUE_SIZE, x);
+        }
+    }
+    {% endfor %}
+}
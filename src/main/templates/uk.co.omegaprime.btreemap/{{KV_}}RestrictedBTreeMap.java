@@ -205,12 +205,27 @@ class RestrictedBTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V
 
     @Override
     public int size() {
-        int i = 0;
-        for (Map.Entry<@Boxed $K$, @Boxed $V$> _e : this.entrySet()) {
-            i++;
+        return Math.max(0, hiRank() - loRank());
+    }
+
+    // The rank in the underlying map of the first entry in this one
+    private int loRank() {
+        switch (minBound) {
+            case MISSING:   return 0;
+            case INCLUSIVE: return that.rank(min, false);
+            case EXCLUSIVE: return that.rank(min, true);
+            default: throw new IllegalStateException();
         }
+    }
 
-        return i;
+    // One more than the rank in the underlying map of the last entry in this one
+    private int hiRank() {
+        switch (maxBound) {
+            case MISSING:   return that.size();
+            case INCLUSIVE: return that.rank(max, true);
+            case EXCLUSIVE: return that.rank(max, false);
+            default: throw new IllegalStateException();
+        }
     }
 
     @Override
@@ -255,12 +270,7 @@ class RestrictedBTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V
 
     @Override
     public void clear() {
-        // TODO: fast path?
-        final Iterator<Entry<@Boxed $K$, @Boxed $V$>> it = entrySet().iterator();
-        while (it.hasNext()) {
-            it.next();
-            it.remove();
-        }
+        that.removeRange(min, minBound, max, maxBound);
     }
 
     @Override
@@ -275,21 +285,9 @@ class RestrictedBTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V
 
     @Override
     public Set<Entry<@Boxed $K$, @Boxed $V$>> entrySet() {
-        return new MapEntrySet<@Boxed $K$, @Boxed $V$>(this, () -> {
-            final Iterator<Entry<@Boxed $K$, @Boxed $V$>> it;
-            switch (minBound) {
-                case MISSING:   it = that.firstIterator(); break;
-                case INCLUSIVE: it = that.ceilingIterator(min); break;
-                case EXCLUSIVE: it = that.higherIterator(min); break;
-                default: throw new IllegalStateException();
-            }
-
-            switch (maxBound) {
-                case MISSING:   return it;
-                case INCLUSIVE: return Iterators.takeWhile(it, e -> Bound.cmp(e.getKey(), max, comparator()) <= 0);
-                case EXCLUSIVE: return Iterators.takeWhile(it, e -> Bound.cmp(e.getKey(), max, comparator()) <  0);
-                default: throw new IllegalStateException();
-            }
+        return new MapEntrySet<@Boxed $K$, @Boxed $V$>(this, () -> that.ascendingIterator(min, minBound, max, maxBound), () -> {
+            final int lo = loRank();
+            return that.spliterator(lo, Math.max(lo, hiRank()));
         });
     }
 
@@ -302,22 +300,7 @@ class RestrictedBTreeMap<$K$, $V$> implements NavigableMap<@Boxed $K$, @Boxed $V
 
             @Override
             public Set<Entry<@Boxed $K$, @Boxed $V$>> descendingEntrySet() {
-                return new MapEntrySet<@Boxed $K$, @Boxed $V$>({{KV_}}RestrictedBTreeMap.this, () -> {
-                    final Iterator<Entry<@Boxed $K$, @Boxed $V$>> it;
-                    switch (maxBound) {
-                        case MISSING:   it = that.lastIterator(); break;
-                        case INCLUSIVE: it = that.floorIterator(max); break;
-                        case EXCLUSIVE: it = that.lowerIterator(max); break;
-                        default: throw new IllegalStateException();
-                    }
-
-                    switch (minBound) {
-                        case MISSING:   return it;
-                        case INCLUSIVE: return Iterators.takeWhile(it, e -> Bound.cmp(e.getKey(), min, comparator()) >= 0);
-                        case EXCLUSIVE: return Iterators.takeWhile(it, e -> Bound.cmp(e.getKey(), min, comparator()) >  0);
-                        default: throw new IllegalStateException();
-                    }
-                });
+                return new MapEntrySet<@Boxed $K$, @Boxed $V$>({{KV_}}RestrictedBTreeMap.this, () -> that.descendingIterator(min, minBound, max, maxBound));
 
             }
 
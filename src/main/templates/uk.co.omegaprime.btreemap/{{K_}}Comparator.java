@@ -3,25 +3,56 @@ package uk.co.omegaprime.btreemap;
 import java.util.Comparator;
 
 /**
- * An equivalent to {@link java.util.Comparator} for primitive {@code {{K.unboxed}}} values.
+ * An equivalent to {@link java.util.Comparator} for {% if K.isPrimitive() %}primitive {% endif %}{@code {{K.unboxed}}} values.
  * <p>
  * You may optionally have your custom comparators implement this interface, which may improve
  * the ability of the JVM to optimize the code by removing unnecessary boxing.
  * <p>
+{% if K.isPrimitive() %}
  * The default implementation of the {@code Comparator} interface simply throws a {@code NullPointerException}
  * if a {@code null} boxed value is supplied.
+{% else %}
+ * The default implementation of the {@code Comparator} interface simply calls {@code compare{{K.name}}}.
+{% endif %}
  */
 public interface Comparator<$K$> extends Comparator<{{K.boxed}}> {
+    {% if K.isBytes() %}
+    /** The natural order of the keys of a {@code BytesBTreeMap}: lexicographic, treating each byte as unsigned */
+    Comparator<$K$> UNSIGNED = ByteArrays::compareUnsigned;
+
+    {% elseif K.isPrimitive() %}
+    /** The reverse of the natural order. A map given {@link java.util.Collections#reverseOrder()} will use this instead. */
+    Comparator<$K$> REVERSE = (x, y) -> {{K.boxed}}.compare(y, x);
+
+    {% endif %}
+    {% if K.name == "Int" or K.name == "Long" %}
+    /** Orders the values as if they were unsigned, as {@link {{K.boxed}}#compareUnsigned} does */
+    Comparator<$K$> UNSIGNED = {{K.boxed}}::compareUnsigned;
+
+    {% endif %}
     int compare{{K.name}}($K$ x, $K$ y);
 
     default int compare({{K.boxed}} x, {{K.boxed}} y) {
         return compare{{K.name}}(x, y);
     }
 
-    /** Construct an unboxed, specialized comparator using a boxed one */
+    /**
+     * Construct an unboxed, specialized comparator using a boxed one. A null comparator (i.e. natural ordering) is returned as-is.
+{% if K.isPrimitive() %}
+     * <p>
+     * The JDK's comparators for the natural order and its reverse become null and {@link #REVERSE} respectively, which
+     * maps can search with as fast as if there were no comparator at all.
+{% endif %}
+     */
     static Comparator<$K$> unbox(Comparator<? super {{K.boxed}}> that) {
-        if (that instanceof Comparator<$K$>) {
+        if (that == null || that instanceof Comparator<$K$>) {
             return (Comparator<$K$>)that;
+        {% if K.isPrimitive() %}
+        } else if (that == Comparators.NATURAL) {
+            return null;
+        } else if (that == Comparators.REVERSE) {
+            return REVERSE;
+        {% endif %}
         } else {
             return new Comparator<$K$>() {
                 @Override
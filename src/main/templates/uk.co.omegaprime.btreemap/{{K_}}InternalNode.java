@@ -0,0 +1,248 @@
+package uk.co.omegaprime.btreemap;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+// An internal node has between minFanout and 2 * minFanout - 1 children, and one fewer keys to separate them. Unlike
+// a LeafNode, it keeps these in ordinary arrays: the children are typed as AbstractNode, so fetching one involves no cast,
+// and having the keys in a real array lets KeySearch scan them with vector instructions where it can.
+//
+// The fanout is chosen per map (see BTreeMap.Builder.internalFanout), independently of that of the leaves below.
+final class InternalNode<$K$> extends AbstractNode {
+    /** Returns an empty internal node that can hold between minFanout and 2 * minFanout - 1 children */
+    public static <$K$> InternalNode<$K$> create(int minFanout) {
+        if (Arrays.binarySearch(FANOUTS, minFanout) < 0) {
+            throw new IllegalArgumentException("Unsupported fanout " + minFanout + ", should be one of " + Arrays.toString(FANOUTS));
+        }
+
+        return new InternalNode<$K$>(minFanout);
+    }
+
+    /** Returns an empty internal node with the default fanout */
+    public static <$K$> InternalNode<$K$> create() {
+        return create(MIN_FANOUT);
+    }
+    {% if K.isGeneric() %}
+
+    /** As {@link #create(int)}, for a map with the given key prefix function, which may be null */
+    public static <$K$> InternalNode<$K$> create(int minFanout, ToLongFunction<? super $K$> keyPrefix) {
+        final InternalNode<$K$> result = create(minFanout);
+        return result.withKeyPrefix(keyPrefix);
+    }
+    {% endif %}
+
+    // keys is of length maxFanout() - 1, and the others of length maxFanout(). counts[i] is the number of entries in the
+    // subtree rooted at children[i]: this is what lets us answer rank/select queries (and hence e.g. headMap(k).size())
+    // in O(log n) time.
+    final @Erased $K$[] keys;
+    final AbstractNode[] children;
+    final int[] counts;
+    {% if K.isBytes() %}
+    // heads[i] is ByteArrays.head(keys[i]), so Internal.find can usually tell which way to go without following the
+    // pointer to the key itself
+    final long[] heads;
+    {% elseif K.isGeneric() %}
+    // As in LeafNode: null unless the map has a key prefix function, in which case prefixes[i] is keyPrefix.applyAsLong(keys[i])
+    ToLongFunction<? super $K$> keyPrefix;
+    long[] prefixes;
+    {% endif %}
+
+    private {{K_}}InternalNode(int minFanout) {
+        final int maxFanout = 2 * minFanout - 1;
+        this.keys = {{K.newErasedArray("maxFanout - 1")}};
+        this.children = new AbstractNode[maxFanout];
+        this.counts = new int[maxFanout];
+        {% if K.isBytes() %}
+        this.heads = new long[maxFanout - 1];
+        {% endif %}
+    }
+
+    @Override
+    public int minFanout() {
+        return (children.length + 1) / 2;
+    }
+
+    /** Returns an empty node of the same fanout as this one */
+    public InternalNode<$K$> newNode() {
+        return new InternalNode<$K$>(minFanout()){% if K.isGeneric() %}.withKeyPrefix(keyPrefix){% endif %};
+    }
+    {% if K.isGeneric() %}
+
+    /** Makes this node, which must be empty, keep the prefixes of its keys according to the function (unless it's null) */
+    InternalNode<$K$> withKeyPrefix(ToLongFunction<? super $K$> keyPrefix) {
+        if (keyPrefix != null) {
+            this.keyPrefix = keyPrefix;
+            this.prefixes = new long[keys.length];
+        }
+
+        return this;
+    }
+
+    /** As Internal.find, for a node with prefixes */
+    @SuppressWarnings("unchecked")
+    int findByPrefix(@Erased $K$ key, Comparator<? super $K$> c) {
+        final int size = this.size;
+        final long prefix = keyPrefix.applyAsLong(($K$)key);
+        int i;
+        for (i = 0; i < size - 1; i++) {
+            final int cmp = Long.compare(prefixes[i], prefix);
+            if (cmp > 0 || (cmp == 0 && (c == null ? ((Comparable)keys[i]).compareTo(key) : c.compare(getKey(i), ($K$)key)) > 0)) {
+                return i;
+            }
+        }
+
+        return i;
+    }
+    {% endif %}
+
+    @Override
+    public InternalNode<$K$> clone() {
+        final InternalNode<$K$> result = newNode();
+        result.size = this.size;
+        System.arraycopy(this.keys,     0, result.keys,     0, Math.max(0, size - 1));
+        System.arraycopy(this.children, 0, result.children, 0, size);
+        System.arraycopy(this.counts,   0, result.counts,   0, size);
+        {% if K.isBytes() %}
+        System.arraycopy(this.heads,    0, result.heads,    0, Math.max(0, size - 1));
+        {% elseif K.isGeneric() %}
+        if (prefixes != null) {
+            System.arraycopy(this.prefixes, 0, result.prefixes, 0, Math.max(0, size - 1));
+        }
+        {% endif %}
+        return result;
+    }
+
+    public $K$ getKey(int i) {
+        return ($K$)keys[i];
+    }
+
+    public void setKey(int i, $K$ x) {
+        keys[i] = x;
+        {% if K.isBytes() %}
+        heads[i] = x == null ? 0 : ByteArrays.head(x);
+        {% elseif K.isGeneric() %}
+        if (prefixes != null) {
+            prefixes[i] = x == null ? 0 : keyPrefix.applyAsLong(x);
+        }
+        {% endif %}
+    }
+
+    public int binarySearch(int fromIndex, int toIndex, @Erased $K$ key, {{K_}}Comparator c) {
+        if (c == null) {
+            return binarySearch(fromIndex, toIndex, key);
+        }
+
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            $K$ midVal = getKey(mid);
+            int cmp = c.compare{{K_}}(midVal, key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid; // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+
+    public int binarySearch(int fromIndex, int toIndex, @Erased $K$ key) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            {% if K.isBytes() %}
+            int cmp = ByteArrays.compareUnsigned(this.getKey(mid), key);
+            {% elseif K.isPrimitive() %}
+            int cmp = {{K.boxed}}.compare(this.getKey(mid), key);
+            {% else %}
+            @SuppressWarnings("rawtypes")
+            Comparable midVal = (Comparable)this.getKey(mid);
+            @SuppressWarnings("unchecked")
+            int cmp = midVal.compareTo(key);
+            {% endif %}
+
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid; // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+    {% if K.name == "Int" or K.name == "Long" %}
+
+    // These two are just as in LeafNode. The loops can't be shared without reading the keys through an interface or a
+    // lambda (a leaf's keys may be in fields rather than an array), and that would cost more than interpolating saves.
+
+    /** As LeafNode.interpolationSearch */
+    public int interpolationSearch(int fromIndex, int toIndex, $K$ key) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            final $K$ lowVal = getKey(low), highVal = getKey(high);
+            if (key < lowVal) {
+                return -(low + 1);
+            } else if (key > highVal) {
+                return -(high + 2);
+            }
+
+            final int mid = Interpolation.guess(low, high, lowVal, highVal, key);
+            final $K$ midVal = getKey(mid);
+            if (midVal < key)
+                low = mid + 1;
+            else if (midVal > key)
+                high = mid - 1;
+            else
+                return mid; // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+
+    /** As LeafNode.interpolationScan */
+    public int interpolationScan(int fromIndex, int toIndex, $K$ key) {
+        final int low = fromIndex;
+        final int high = toIndex - 1;
+        if (low > high) {
+            return -(low + 1);
+        }
+
+        final $K$ lowVal = getKey(low), highVal = getKey(high);
+        if (key < lowVal) {
+            return -(low + 1);
+        } else if (key > highVal) {
+            return -(high + 2);
+        }
+
+        // Find the first key >= the one sought, which must exist since highVal is one
+        int i = Interpolation.guess(low, high, lowVal, highVal, key);
+        if (getKey(i) < key) {
+            do {
+                i++;
+            } while (getKey(i) < key);
+        } else {
+            while (i > low && getKey(i - 1) >= key) {
+                i--;
+            }
+        }
+        return getKey(i) == key ? i : -(i + 1);
+    }
+    {% endif %}
+
+    public static <$K$> void arraycopyKey(InternalNode<$K$> src, int srcIndex, InternalNode<$K$> dst, int dstIndex, int size) {
+        System.arraycopy(src.keys, srcIndex, dst.keys, dstIndex, size);
+        {% if K.isBytes() %}
+        System.arraycopy(src.heads, srcIndex, dst.heads, dstIndex, size);
+        {% elseif K.isGeneric() %}
+        if (src.prefixes != null) {
+            System.arraycopy(src.prefixes, srcIndex, dst.prefixes, dstIndex, size);
+        }
+        {% endif %}
+    }
+}
@@ -17,6 +17,8 @@ public class BTreeMapBenchmark {
                 //new it.unimi.dsi.fastutil.ints.Int2IntAVLTreeMap();
                 //IntIntBTreeMap.create();
                 //BTreeMap.create();
+                //ConcurrentBTreeMap.create();
+                //new java.util.concurrent.ConcurrentSkipListMap<>();
                 new TreeMap<>();
                 //DBMaker.newMemoryDB().make().createTreeMap("foo").make();
         }
@@ -13,6 +13,7 @@ import org.junit.runner.RunWith;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 
 import static org.junit.Assert.*;
 
@@ -96,6 +97,14 @@ public class BTreeMapTest {
         public HeadMapExclusive(Integer key) { super("HeadMapExclusive", key, (m, k) -> new ArrayList<>(m.headMap(k, false).values())); }
     }
 
+    public static class HeadMapSize extends KeyedOperation<Integer> {
+        public HeadMapSize(Integer key) { super("HeadMapSize", key, (m, k) -> m.headMap(k, true).size()); }
+    }
+
+    public static class TailMapExclusiveSize extends KeyedOperation<Integer> {
+        public TailMapExclusiveSize(Integer key) { super("TailMapExclusiveSize", key, (m, k) -> m.tailMap(k, false).size()); }
+    }
+
     public static class UnkeyedOperation<T> implements Operation {
         private final String name;
         private final Function<NavigableMap<Integer, Integer>, T> f;
@@ -155,6 +164,29 @@ public class BTreeMapTest {
         }
     }
 
+    public static class SubMapClear implements Operation {
+        public final int fromKey, toKey;
+        public final boolean fromInclusive, toInclusive;
+        public SubMapClear(int fromKey, boolean fromInclusive, int toKey, boolean toInclusive) {
+            this.fromKey = fromKey;
+            this.fromInclusive = fromInclusive;
+            this.toKey = toKey;
+            this.toInclusive = toInclusive;
+        }
+
+        @Override
+        public void apply(NavigableMap<Integer, Integer> expected, NavigableMap<Integer, Integer> actual) {
+            expected.subMap(fromKey, fromInclusive, toKey, toInclusive).clear();
+            actual  .subMap(fromKey, fromInclusive, toKey, toInclusive).clear();
+            Assert.assertEquals(expected, actual);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("SubMapClear(%s, %s, %s, %s)", fromKey, fromInclusive, toKey, toInclusive);
+        }
+    }
+
     private static int randomKey(SourceOfRandomness sor) {
         // Use a small keyspace so that we'll randomly get some collisions. Tests more interesting that way!
         return sor.nextInt(0, 10000);
@@ -167,7 +199,7 @@ public class BTreeMapTest {
 
         @Override
         public Operation generate(SourceOfRandomness sourceOfRandomness, GenerationStatus generationStatus) {
-            switch (sourceOfRandomness.nextInt(18)) {
+            switch (sourceOfRandomness.nextInt(21)) {
                 case 0:  return new Put(randomKey(sourceOfRandomness), sourceOfRandomness.nextInt());
                 case 1:  return new Get(randomKey(sourceOfRandomness));
                 case 2:  return new LowerEntry(randomKey(sourceOfRandomness));
@@ -186,6 +218,12 @@ public class BTreeMapTest {
                 case 15: return new DescendingTailMap(randomKey(sourceOfRandomness));
                 case 16: return new DescendingTailMapExclusive(randomKey(sourceOfRandomness));
                 case 17: return new Remove(randomKey(sourceOfRandomness));
+                case 18: return new HeadMapSize(randomKey(sourceOfRandomness));
+                case 19: return new TailMapExclusiveSize(randomKey(sourceOfRandomness));
+                case 20: {
+                    final int fromKey = randomKey(sourceOfRandomness);
+                    return new SubMapClear(fromKey, sourceOfRandomness.nextBoolean(), fromKey + sourceOfRandomness.nextInt(0, 500), sourceOfRandomness.nextBoolean());
+                }
                 default: throw new IllegalStateException();
             }
         }
@@ -203,11 +241,74 @@ public class BTreeMapTest {
     private static void checkMapInvariants(NavigableMap<?, ?> mp) {
         if (mp instanceof IntIntBTreeMap) {
             ((IntIntBTreeMap)mp).checkAssumingKeysNonNull();
+        } else if (mp instanceof IntObjectBTreeMap) {
+            ((IntObjectBTreeMap)mp).checkAssumingKeysNonNull();
+        } else if (mp instanceof LongLongBTreeMap) {
+            ((LongLongBTreeMap)mp).checkAssumingKeysNonNull();
+        } else if (mp instanceof FloatFloatBTreeMap) {
+            ((FloatFloatBTreeMap)mp).checkAssumingKeysNonNull();
+        } else if (mp instanceof DoubleDoubleBTreeMap) {
+            ((DoubleDoubleBTreeMap)mp).checkAssumingKeysNonNull();
+        } else if (mp instanceof StringBTreeMap) {
+            ((StringBTreeMap)mp).checkAssumingKeysNonNull();
+        } else if (mp instanceof BytesBTreeMap) {
+            ((BytesBTreeMap)mp).checkAssumingKeysNonNull();
         } else {
             ((BTreeMap)mp).checkAssumingKeysNonNull();
         }
     }
 
+    /**
+     * Puts 20000 random keys into each of the maps, or removes them one time in three, checking that the actual maps
+     * agree with the expected one about what was there before and stay well formed.
+     */
+    @SafeVarargs
+    private static <K, V> void applyRandomPutsAndRemoves(Random random, Function<Random, K> keys, IntFunction<V> values, NavigableMap<K, V> expected, NavigableMap<K, V>... actuals) {
+        for (int i = 0; i < 20000; i++) {
+            final K key = keys.apply(random);
+            if (random.nextInt(3) == 0) {
+                final V removed = expected.remove(key);
+                for (NavigableMap<K, V> actual : actuals) {
+                    assertEquals(removed, actual.remove(key));
+                }
+            } else {
+                final V value = values.apply(i);
+                final V replaced = expected.put(key, value);
+                for (NavigableMap<K, V> actual : actuals) {
+                    assertEquals(replaced, actual.put(key, value));
+                }
+            }
+
+            if (i % 1000 == 0) {
+                for (NavigableMap<K, V> actual : actuals) {
+                    checkMapInvariants(actual);
+                }
+            }
+        }
+
+        for (NavigableMap<K, V> actual : actuals) {
+            checkMapInvariants(actual);
+            assertEquals(expected, actual);
+            assertArrayEquals(expected.keySet().toArray(), actual.keySet().toArray());
+        }
+    }
+
+    /** Looks up 1000 random keys in each of the maps, checking that they all agree with the expected one */
+    @SafeVarargs
+    private static <K, V> void checkRandomLookups(Random random, Function<Random, K> keys, NavigableMap<K, V> expected, NavigableMap<K, V>... actuals) {
+        for (int i = 0; i < 1000; i++) {
+            final K key = keys.apply(random);
+            for (NavigableMap<K, V> actual : actuals) {
+                assertEquals(expected.get(key),            actual.get(key));
+                assertEquals(expected.containsKey(key),    actual.containsKey(key));
+                // Arrays so that byte[] keys are compared by their contents
+                assertArrayEquals(new Object[] { expected.lowerKey(key), expected.floorKey(key), expected.ceilingKey(key), expected.higherKey(key) },
+                                  new Object[] { actual.lowerKey(key),   actual.floorKey(key),   actual.ceilingKey(key),   actual.higherKey(key) });
+                assertEquals(expected.headMap(key).size(), actual.headMap(key).size());
+            }
+        }
+    }
+
     @Property
     public void randomOperationSequenceOnEmptyMap(boolean unbox, @com.pholser.junit.quickcheck.generator.Size(min=4, max=100) List<@From(OperationGenerator.class) Operation> ops) {
         final TreeMap<Integer, Integer> expected = new TreeMap<>();
@@ -262,6 +363,19 @@ public class BTreeMapTest {
         }
     }
 
+    @Property(trials = 1000)
+    public void randomOperationSequenceOnConcurrentMap(@com.pholser.junit.quickcheck.generator.Size(min=4, max=100) List<@From(OperationGenerator.class) Operation> ops) {
+        final TreeMap<Integer, Integer> expected = new TreeMap<>();
+        final NavigableMap<Integer, Integer> actual = ConcurrentBTreeMap.create();
+
+        // Try to make sure we have at least 2 levels of internal nodes
+        createMaps(expected, actual, 1024);
+
+        for (Operation op : ops) {
+            op.apply(expected, actual);
+        }
+    }
+
     private static void createMaps(TreeMap<Integer, Integer> expected, NavigableMap<Integer, Integer> actual, int maxSize) {
         final SourceOfRandomness sor = new SourceOfRandomness(new Random(1337));
         for (int i = 0; i < maxSize; i++) {
@@ -464,6 +578,186 @@ public class BTreeMapTest {
         }
     }
 
+    @Test
+    public void rankAndEntryAtIndex() {
+        final TreeMap<Integer, Integer> expected = new TreeMap<>();
+        final IntIntBTreeMap actual = IntIntBTreeMap.create();
+        createMaps(expected, actual, 1024);
+
+        final List<Map.Entry<Integer, Integer>> entries = new ArrayList<>(expected.entrySet());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.get(i), actual.entryAtIndex(i));
+            assertEquals(i, actual.rank(entries.get(i).getKey().intValue()));
+        }
+
+        for (int key = -1; key <= 10000; key += 7) {
+            assertEquals(expected.headMap(key).size(), actual.rank(key));
+            assertEquals(expected.subMap(key, true, key + 500, false).size(), actual.subMap(key, true, key + 500, false).size());
+        }
+
+        try {
+            actual.entryAtIndex(actual.size());
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void bulkLoad() {
+        for (int size : new int[] { 0, 1, 15, 16, 17, 31, 32, 33, 496, 497, 512, 961, 962, 2000 }) {
+            final TreeMap<Integer, Integer> expected = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                expected.put(2 * i, i);
+            }
+
+            for (double fillFactor : new double[] { 0.1, 0.5, 0.75, 1.0 }) {
+                final IntIntBTreeMap actual = IntIntBTreeMap.create(expected, fillFactor);
+                checkMapInvariants(actual);
+                assertEquals(expected, actual);
+
+                // The result should be a perfectly ordinary tree that we can go on to mutate
+                for (int i = 0; i < size; i += 3) {
+                    actual.put(2 * i + 1, i);
+                    actual.remove(2 * i);
+                }
+                checkMapInvariants(actual);
+            }
+
+            final BTreeMap<Integer, Integer> putAll = BTreeMap.create();
+            putAll.putAll(expected);
+            checkMapInvariants(putAll);
+            assertEquals(expected, putAll);
+        }
+
+        try {
+            IntIntBTreeMap.create(new TreeMap<>(), 0.0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void putAllMerge() {
+        final Random random = new Random(1337);
+        for (int[] sizes : new int[][] { { 1, 1 }, { 100, 10 }, { 1000, 1000 }, { 10, 1000 }, { 2000, 5 } }) {
+            final TreeMap<Integer, Integer> expected = new TreeMap<>();
+            final IntIntBTreeMap unboxed = IntIntBTreeMap.create();
+            final BTreeMap<Integer, Integer> boxed = BTreeMap.create();
+            for (int i = 0; i < sizes[0]; i++) {
+                final int key = random.nextInt(4 * sizes[0]);
+                expected.put(key, i);
+                unboxed.put(key, i);
+                boxed.put(key, i);
+            }
+
+            final IntIntBTreeMap unboxedThat = IntIntBTreeMap.create();
+            final BTreeMap<Integer, Integer> boxedThat = BTreeMap.create();
+            for (int i = 0; i < sizes[1]; i++) {
+                final int key = random.nextInt(4 * sizes[1]) + (i % 2 == 0 ? 0 : 8 * sizes[0]);
+                expected.put(key, -i);
+                unboxedThat.put(key, -i);
+                boxedThat.put(key, -i);
+            }
+
+            unboxed.putAll(unboxedThat);
+            boxed.putAll(boxedThat);
+            checkMapInvariants(unboxed);
+            checkMapInvariants(boxed);
+            assertEquals(expected, unboxed);
+            assertEquals(expected, boxed);
+        }
+    }
+
+    @Test
+    public void rangeClear() {
+        for (int size : new int[] { 1, 31, 32, 100, 1000, 5000 }) {
+            for (int from = -1; from <= size + 1; from += 1 + size / 40) {
+                for (int to = from; to <= size + 1; to += 1 + size / 13) {
+                    final TreeMap<Integer, Integer> expected = new TreeMap<>();
+                    final IntIntBTreeMap actual = IntIntBTreeMap.create();
+                    for (int i = 0; i < size; i++) {
+                        expected.put(i, i);
+                        actual.put(i, i);
+                    }
+
+                    expected.subMap(from, true, to, false).clear();
+                    actual  .subMap(from, true, to, false).clear();
+                    checkMapInvariants(actual);
+                    assertEquals(expected, actual);
+
+                    expected.headMap(from, false).clear();
+                    actual  .headMap(from, false).clear();
+                    checkMapInvariants(actual);
+                    assertEquals(expected, actual);
+
+                    expected.tailMap(to, true).clear();
+                    actual  .tailMap(to, true).clear();
+                    checkMapInvariants(actual);
+                    assertEquals(expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void splitAtAndConcat() {
+        for (int size : new int[] { 0, 1, 31, 32, 100, 1000, 20000 }) {
+            for (int key = -1; key <= size + 1; key += 1 + size / 37) {
+                final IntIntBTreeMap left = IntIntBTreeMap.create();
+                for (int i = 0; i < size; i++) {
+                    left.put(i, -i);
+                }
+
+                final IntIntBTreeMap right = left.splitAt(key);
+                checkMapInvariants(left);
+                checkMapInvariants(right);
+                assertEquals(Math.max(0, Math.min(size, key)), left.size());
+                assertEquals(size - left.size(), right.size());
+                if (!left .isEmpty()) assertTrue(left.lastKey()   <  key);
+                if (!right.isEmpty()) assertTrue(right.firstKey() >= key);
+
+                final IntIntBTreeMap joined = IntIntBTreeMap.concat(left, right);
+                checkMapInvariants(joined);
+                assertEquals(size, joined.size());
+                assertTrue(left.isEmpty());
+                assertTrue(right.isEmpty());
+                for (int i = 0; i < size; i++) {
+                    assertEquals(-i, joined.getInt(i));
+                }
+            }
+        }
+
+        final BTreeMap<Integer, Integer> low = BTreeMap.create(), high = BTreeMap.create();
+        for (int i = 0; i < 1000; i++) {
+            low.put(i, i);
+            high.put(i + 500, i);
+        }
+
+        try {
+            BTreeMap.concat(low, high);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Disjoint key ranges get spliced in by putAll, without disturbing the argument
+        low.splitAt(500);
+        final TreeMap<Integer, Integer> expected = new TreeMap<>(high);
+        expected.putAll(low);
+
+        final BTreeMap<Integer, Integer> highThenLow = high.clone(), lowThenHigh = low.clone();
+        highThenLow.putAll(low);
+        lowThenHigh.putAll(high);
+        checkMapInvariants(highThenLow);
+        checkMapInvariants(lowThenHigh);
+        assertEquals(expected, highThenLow);
+        assertEquals(expected, lowThenHigh);
+        assertEquals(500, low.size());
+        assertEquals(1000, high.size());
+    }
+
     @Test
     public void cloneWorks() {
         final BTreeMap<String, Integer> oldMap = BTreeMap.create();
@@ -492,4 +786,692 @@ public class BTreeMapTest {
         assertFalse(oldMap.containsKey("501"));
         assertTrue (newMap.containsKey("501"));
     }
+
+    @Test
+    public void cloneIsIndependentOfOriginal() {
+        final Random random = new Random(1234);
+        final List<TreeMap<Integer, Integer>> expecteds = new ArrayList<>();
+        final List<IntIntBTreeMap> actuals = new ArrayList<>();
+        expecteds.add(new TreeMap<>());
+        actuals.add(IntIntBTreeMap.create());
+
+        for (int i = 0; i < 20000; i++) {
+            final int which = random.nextInt(actuals.size());
+            final TreeMap<Integer, Integer> expected = expecteds.get(which);
+            final IntIntBTreeMap actual = actuals.get(which);
+
+            final int key = random.nextInt(5000);
+            switch (random.nextInt(100)) {
+                case 0:
+                    expecteds.add(new TreeMap<>(expected));
+                    actuals.add(actual.clone());
+                    break;
+                case 1:
+                    expected.subMap(key, key + 200).clear();
+                    actual  .subMap(key, key + 200).clear();
+                    break;
+                default:
+                    if (random.nextInt(3) == 0) {
+                        assertEquals(expected.remove(key), actual.remove(key));
+                    } else {
+                        assertEquals(expected.put(key, i), actual.put(key, i));
+                    }
+            }
+        }
+
+        for (int i = 0; i < actuals.size(); i++) {
+            checkMapInvariants(actuals.get(i));
+            assertEquals(expecteds.get(i), actuals.get(i));
+        }
+    }
+
+    @Test
+    public void cursor() {
+        final TreeMap<Integer, Integer> expected = new TreeMap<>();
+        final IntIntBTreeMap actual = IntIntBTreeMap.create();
+        createMaps(expected, actual, 1024);
+
+        final IntIntBTreeMap.Cursor cursor = actual.cursor();
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            assertTrue(cursor.advance());
+            assertEquals((int)e.getKey(),   cursor.keyInt());
+            assertEquals((int)e.getValue(), cursor.valueInt());
+            assertEquals(e.getKey(),        cursor.key());
+        }
+        assertFalse(cursor.advance());
+        assertFalse(cursor.advance());
+
+        final int fromKey = expected.keySet().stream().skip(500).findFirst().get();
+        final BTreeMap<Integer, Integer> boxed = BTreeMap.create(expected);
+        final BTreeMap<Integer, Integer>.Cursor tailCursor = boxed.cursor(fromKey - 1);
+        for (Map.Entry<Integer, Integer> e : expected.tailMap(fromKey - 1, true).entrySet()) {
+            assertTrue(tailCursor.advance());
+            assertEquals(e.getKey(),   tailCursor.key());
+            assertEquals(e.getValue(), tailCursor.value());
+        }
+        assertFalse(tailCursor.advance());
+
+        assertFalse(BTreeMap.<Integer, Integer>create().cursor().advance());
+    }
+
+    @Test
+    public void spliterator() {
+        final TreeMap<Integer, Integer> expected = new TreeMap<>();
+        final IntIntBTreeMap actual = IntIntBTreeMap.create();
+        createMaps(expected, actual, 10000);
+
+        final Spliterator<Map.Entry<Integer, Integer>> spliterator = actual.entrySet().spliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.SORTED | Spliterator.ORDERED | Spliterator.DISTINCT));
+        assertEquals(expected.size(), spliterator.getExactSizeIfKnown());
+
+        // Recursively split all the way down and check that the pieces add up to the whole
+        final List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+        final Deque<Spliterator<Map.Entry<Integer, Integer>>> stack = new ArrayDeque<>();
+        stack.push(spliterator);
+        while (!stack.isEmpty()) {
+            final Spliterator<Map.Entry<Integer, Integer>> suffix = stack.pop();
+            final long size = suffix.getExactSizeIfKnown();
+            final Spliterator<Map.Entry<Integer, Integer>> prefix = suffix.trySplit();
+            if (prefix == null) {
+                final int before = entries.size();
+                suffix.forEachRemaining(entries::add);
+                assertEquals(size, entries.size() - before);
+            } else {
+                assertEquals(size, prefix.getExactSizeIfKnown() + suffix.getExactSizeIfKnown());
+                stack.push(suffix);
+                stack.push(prefix);
+            }
+        }
+        assertEquals(new ArrayList<>(expected.entrySet()), entries);
+
+        assertEquals(expected.keySet().stream().mapToLong(k -> k).sum(), actual.keySet().parallelStream().mapToLong(k -> k).sum());
+        assertEquals(new ArrayList<>(expected.values()), actual.values().parallelStream().collect(java.util.stream.Collectors.toList()));
+
+        final NavigableMap<Integer, Integer> expectedSubMap = expected.subMap(1000, false, 5000, true), actualSubMap = actual.subMap(1000, false, 5000, true);
+        assertEquals(expectedSubMap.size(), actualSubMap.entrySet().spliterator().getExactSizeIfKnown());
+        assertEquals(new ArrayList<>(expectedSubMap.keySet()), actualSubMap.keySet().parallelStream().collect(java.util.stream.Collectors.toList()));
+    }
+
+    @Test
+    public void pollAsPriorityQueue() {
+        final Random random = new Random(1337);
+        final TreeMap<Integer, String> expected = new TreeMap<>();
+        final IntObjectBTreeMap<String> actual = IntObjectBTreeMap.create();
+
+        for (int i = 0; i < 20000; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    if (expected.isEmpty()) {
+                        assertNull(actual.pollFirstEntry());
+                    } else {
+                        assertEquals((int)expected.pollFirstEntry().getKey(), actual.pollFirstKeyInt());
+                    }
+                    break;
+                case 1:
+                    assertEquals(expected.pollLastEntry(), actual.pollLastEntry());
+                    break;
+                default:
+                    final int key = random.nextInt(5000);
+                    assertEquals(expected.put(key, Integer.toString(key)), actual.put(key, Integer.toString(key)));
+            }
+
+            assertEquals(expected.size(), actual.size());
+        }
+
+        checkMapInvariants(actual);
+        assertEquals(expected, actual);
+
+        while (!expected.isEmpty()) {
+            assertEquals(expected.pollFirstEntry(), actual.pollFirstEntry());
+        }
+        assertNull(actual.pollFirstEntry());
+        assertNull(actual.pollLastEntry());
+        try {
+            actual.pollLastKeyInt();
+            fail();
+        } catch (NoSuchElementException _e) {
+        }
+    }
+
+    @Test
+    public void primitivePutAndRemove() {
+        final Random random = new Random(1337);
+        final TreeMap<Integer, Integer> expected = new TreeMap<>();
+        final IntIntBTreeMap actual = IntIntBTreeMap.create();
+
+        for (int i = 0; i < 20000; i++) {
+            final int key = random.nextInt(2000);
+            if (random.nextBoolean()) {
+                final Integer old = expected.put(key, -key);
+                assertEquals(old == null ? Integer.MIN_VALUE : old, actual.putInt(key, -key));
+            } else {
+                final Integer old = expected.remove(key);
+                assertEquals(old == null ? Integer.MIN_VALUE : old, actual.removeInt(key));
+            }
+
+            assertEquals(expected.size(), actual.size());
+        }
+
+        checkMapInvariants(actual);
+        assertEquals(expected, actual);
+
+        assertEquals(Integer.MIN_VALUE, actual.removeInt("not a key"));
+        assertNull(actual.remove(2000));
+    }
+
+    @Test
+    public void primitiveNavigation() {
+        final Random random = new Random(1337);
+        final TreeMap<Integer, Integer> expected = new TreeMap<>();
+        final IntIntBTreeMap actual = IntIntBTreeMap.create();
+        for (int i = 0; i < 5000; i++) {
+            final int key = random.nextInt(20000) * 2;
+            expected.put(key, -key);
+            actual.putInt(key, -key);
+        }
+
+        assertEquals((int)expected.firstKey(), actual.firstKeyInt());
+        assertEquals((int)expected.lastKey(),  actual.lastKeyInt());
+
+        for (int key = -1; key <= 40001; key++) {
+            assertEquals(valueOrMin(expected.lowerEntry(key)),   actual.lowerValueInt(key));
+            assertEquals(valueOrMin(expected.floorEntry(key)),   actual.floorValueInt(key));
+            assertEquals(valueOrMin(expected.ceilingEntry(key)), actual.ceilingValueInt(key));
+            assertEquals(valueOrMin(expected.higherEntry(key)),  actual.higherValueInt(key));
+
+            assertEquals(expected.lowerKey(key),   actual.lowerKey(key));
+            assertEquals(expected.ceilingKey(key), actual.ceilingKey(key));
+            assertEquals(expected.floorKey(key) == null ? Integer.MIN_VALUE : (int)expected.floorKey(key), actual.floorKeyInt(key));
+        }
+    }
+
+    @Test
+    public void floatingPointKeysAgreeWithBoxedOrdering() {
+        final Random random = new Random(1337);
+        final TreeMap<Float, Float> expected = new TreeMap<>();
+        final FloatFloatBTreeMap actual = FloatFloatBTreeMap.create();
+
+        final float[] special = { Float.NaN, -0.0f, 0.0f, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.MIN_VALUE, -Float.MAX_VALUE };
+        for (int i = 0; i < 5000; i++) {
+            final float key = i < special.length ? special[i] : random.nextInt(1000) / 8.0f - 60;
+            assertEquals(expected.put(key, key * 2), actual.put(key, key * 2));
+        }
+
+        checkMapInvariants(actual);
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+
+        assertEquals(Float.NaN, actual.lastKeyFloat(), 0.0f);
+        assertEquals(Float.NEGATIVE_INFINITY, actual.firstKeyFloat(), 0.0f);
+        assertEquals(Float.floatToIntBits(-0.0f), Float.floatToIntBits(actual.lowerKeyFloat(0.0f)));
+        assertEquals(Float.POSITIVE_INFINITY, actual.lowerKeyFloat(Float.NaN), 0.0f);
+        assertEquals(Float.NaN, actual.getOrDefaultFloat(Float.NaN, 0), 0.0f);
+        for (float key : special) {
+            assertEquals(expected.floorEntry(key), actual.floorEntry(key));
+            assertEquals(expected.higherEntry(key), actual.higherEntry(key));
+            assertEquals(expected.remove(key), actual.remove(key));
+        }
+        checkMapInvariants(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void stringKeysWithCommonPrefixes() {
+        final Random random = new Random(1337);
+        final TreeMap<String, Integer> expected = new TreeMap<>();
+        final StringBTreeMap<Integer> actual = StringBTreeMap.create();
+        applyRandomPutsAndRemoves(random, BTreeMapTest::randomHierarchicalKey, i -> i, expected, actual);
+
+        final StringBTreeMap<Integer> bulkLoaded = StringBTreeMap.create(expected);
+        checkMapInvariants(bulkLoaded);
+        assertEquals(expected, bulkLoaded);
+        checkRandomLookups(random, BTreeMapTest::randomHierarchicalKeyOrNeighbour, expected, actual, bulkLoaded);
+
+        final TreeMap<String, Integer> expectedClone = new TreeMap<>(expected);
+        final StringBTreeMap<Integer> clone = actual.clone();
+        applyRandomPutsAndRemoves(random, BTreeMapTest::randomHierarchicalKey, i -> -i, expected, actual);
+        checkMapInvariants(clone);
+        assertEquals(expectedClone, clone);
+    }
+
+    @Test
+    public void stringKeysAreStoredWholeIfThereIsAComparator() {
+        // A comparator has to see the whole keys, so it would be a waste to factor out a prefix only to reassemble them
+        final Random random = new Random(1337);
+        final TreeMap<String, String> expected = new TreeMap<>(Comparator.reverseOrder());
+        for (int i = 0; i < 5000; i++) {
+            final String key = randomHierarchicalKey(random);
+            expected.putIfAbsent(key, key);
+        }
+
+        final StringBTreeMap<String> inserted = StringBTreeMap.create(Comparator.reverseOrder());
+        for (Map.Entry<String, String> e : new HashMap<>(expected).entrySet()) {
+            inserted.put(e.getKey(), e.getValue());
+        }
+        final StringBTreeMap<String> bulkLoaded = StringBTreeMap.create(expected);
+        for (StringBTreeMap<String> actual : Arrays.asList(inserted, bulkLoaded)) {
+            checkMapInvariants(actual);
+            assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(actual.entrySet()));
+            for (Map.Entry<String, String> e : actual.entrySet()) {
+                assertSame(e.getValue(), e.getKey());
+                assertSame(e.getValue(), actual.floorKey(e.getValue()));
+            }
+        }
+    }
+
+    private static String randomHierarchicalKey(Random random) {
+        switch (random.nextInt(50)) {
+            case 0: return "";
+            case 1: return "uk";
+            case 2: return "zz/" + random.nextInt(10);
+            default: return "uk/co/omegaprime/services/" + random.nextInt(4) + "/instances/" + random.nextInt(100) + "/metrics/" + random.nextInt(20);
+        }
+    }
+
+    /** As randomHierarchicalKey, but sometimes cut short or extended, so that it sorts before or after a whole leaf of keys */
+    private static String randomHierarchicalKeyOrNeighbour(Random random) {
+        final String key = randomHierarchicalKey(random);
+        switch (random.nextInt(3)) {
+            case 0:  return key;
+            case 1:  return key.substring(0, random.nextInt(key.length() + 1));
+            default: return key + "~";
+        }
+    }
+
+    @Test
+    public void byteArrayKeysUseUnsignedOrder() {
+        final Random random = new Random(1337);
+        final TreeMap<byte[], Integer> expected = new TreeMap<>(BTreeMapTest::compareUnsigned);
+        final BytesBTreeMap<Integer> actual = BytesBTreeMap.create();
+        applyRandomPutsAndRemoves(random, BTreeMapTest::randomByteArrayKey, i -> i, expected, actual);
+
+        // The natural order isn't null, so that e.g. a TreeMap built from this one knows what it is
+        final BytesBTreeMap<Integer> bulkLoaded = BytesBTreeMap.create(expected);
+        checkMapInvariants(bulkLoaded);
+        assertEquals(expected, bulkLoaded);
+        assertEquals(expected, new TreeMap<>(actual));
+        checkRandomLookups(random, BTreeMapTest::randomByteArrayKey, expected, actual, bulkLoaded);
+
+        // A comparator that isn't the natural order has to see the whole keys
+        final BytesBTreeMap<Integer> signed = BytesBTreeMap.create((BytesComparator)BTreeMapTest::compareSigned);
+        final TreeMap<byte[], Integer> expectedSigned = new TreeMap<>(BTreeMapTest::compareSigned);
+        signed.putAll(actual);
+        expectedSigned.putAll(expected);
+        checkMapInvariants(signed);
+        assertArrayEquals(expectedSigned.keySet().toArray(), signed.keySet().toArray());
+        applyRandomPutsAndRemoves(random, BTreeMapTest::randomByteArrayKey, i -> i, expectedSigned, signed);
+        checkRandomLookups(random, BTreeMapTest::randomByteArrayKey, expectedSigned, signed);
+    }
+
+    @Test
+    public void wellKnownComparatorsAreRecognised() {
+        assertNull(IntIntBTreeMap.create(Comparator.naturalOrder()).comparator());
+        assertNull(BTreeMap.create(Comparator.naturalOrder()).comparator());
+        assertSame(IntComparator.REVERSE, IntIntBTreeMap.create(Collections.reverseOrder()).comparator());
+        assertSame(DoubleComparator.REVERSE, DoubleDoubleBTreeMap.create(Comparator.<Double>naturalOrder().reversed()).comparator());
+
+        // Negative keys are the biggest of all, unsigned
+        final Function<Random, Integer> intKeys = random -> random.nextInt(2000) - 1000;
+        final List<Comparator<Integer>> intComparators = Arrays.asList(Collections.reverseOrder(), IntComparator.UNSIGNED);
+        final List<Comparator<Long>> longComparators = Arrays.asList(Collections.reverseOrder(), LongComparator.UNSIGNED);
+        for (int c = 0; c < 2; c++) {
+            final Random random = new Random(c);
+            final TreeMap<Integer, Integer> expectedInt = new TreeMap<>(intComparators.get(c));
+            final IntIntBTreeMap actualInt = IntIntBTreeMap.create(intComparators.get(c));
+            final BTreeMap<Integer, Integer> actualObject = BTreeMap.create(intComparators.get(c));
+            applyRandomPutsAndRemoves(random, intKeys, i -> i, expectedInt, actualInt, actualObject);
+            checkRandomLookups(random, intKeys, expectedInt, actualInt, actualObject);
+
+            final Function<Random, Long> longKeys = r -> (long)intKeys.apply(r);
+            final TreeMap<Long, Long> expectedLong = new TreeMap<>(longComparators.get(c));
+            final LongLongBTreeMap actualLong = LongLongBTreeMap.create(longComparators.get(c));
+            applyRandomPutsAndRemoves(random, longKeys, i -> (long)i, expectedLong, actualLong);
+            checkRandomLookups(random, longKeys, expectedLong, actualLong);
+        }
+
+        // Lots of NaNs and zeroes of both signs, which don't compare as they do with the built-in operators
+        final Random random = new Random(2);
+        final Function<Random, Double> doubleKeys = r -> r.nextInt(10) == 0 ? Double.NaN : r.nextInt(10) == 0 ? -0.0 : (r.nextInt(2000) - 1000) / 10.0;
+        final TreeMap<Double, Double> expectedDouble = new TreeMap<>(Collections.reverseOrder());
+        final DoubleDoubleBTreeMap actualDouble = DoubleDoubleBTreeMap.create(Collections.reverseOrder());
+        applyRandomPutsAndRemoves(random, doubleKeys, i -> (double)i, expectedDouble, actualDouble);
+        checkRandomLookups(random, doubleKeys, expectedDouble, actualDouble);
+    }
+
+    @Test
+    public void keyPrefixesAreOnlyAShortcut() {
+        // Often sharing a prefix, so that we have to compare the keys themselves
+        final Function<Random, String> keys = random -> random.nextBoolean() ? "uk" + random.nextInt(1000) : randomHierarchicalKey(random);
+        for (boolean reversed : new boolean[] { false, true }) {
+            final Random random = new Random(reversed ? 1 : 2);
+            final Comparator<String> comparator = reversed ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            final TreeMap<String, Integer> expected = new TreeMap<>(comparator);
+            final BTreeMap<String, Integer> actual = BTreeMap.<String, Integer>builder()
+                    .comparator(comparator).fanout(8).keyPrefix(reversed ? k -> -stringPrefix(k) : BTreeMapTest::stringPrefix).build();
+            applyRandomPutsAndRemoves(random, keys, i -> i, expected, actual);
+
+            // These make nodes in ways other than splitting a full one
+            final BTreeMap<String, Integer> bulkLoaded = BTreeMap.<String, Integer>builder()
+                    .comparator(comparator).keyPrefix(reversed ? k -> -stringPrefix(k) : BTreeMapTest::stringPrefix).build();
+            bulkLoaded.putAll(expected);
+            checkMapInvariants(bulkLoaded);
+            assertEquals(expected, bulkLoaded);
+            final BTreeMap<String, Integer> above = actual.splitAt("uk5");
+            checkMapInvariants(actual);
+            checkMapInvariants(above);
+            final BTreeMap<String, Integer> rejoined = BTreeMap.concat(actual, above);
+            checkMapInvariants(rejoined);
+            assertEquals(expected, rejoined);
+
+            checkRandomLookups(random, keys, expected, rejoined, bulkLoaded);
+        }
+    }
+
+    @Test
+    public void searchStrategiesAgree() {
+        for (SearchStrategy strategy : SearchStrategy.values()) {
+            for (int distribution : new int[] { 0, 1, 2 }) {
+                final Random random = new Random(distribution);
+                final Function<Random, Long> keys = r -> randomlyDistributedKey(r, distribution);
+                final TreeMap<Long, Long> expected = new TreeMap<>();
+                final LongLongBTreeMap actual = LongLongBTreeMap.builder().searchStrategy(strategy).build();
+                final LongLongBTreeMap actualWide = LongLongBTreeMap.builder().searchStrategy(strategy).fanout(64).build();
+                applyRandomPutsAndRemoves(random, keys, i -> (long)i, expected, actual, actualWide);
+                checkRandomLookups(random, keys, expected, actual, actualWide);
+
+                final TreeMap<Long, Long> expectedReversed = new TreeMap<>(Comparator.reverseOrder());
+                final BTreeMap<Long, Long> actualReversed = BTreeMap.<Long, Long>builder().searchStrategy(strategy).comparator(Comparator.reverseOrder()).build();
+                applyRandomPutsAndRemoves(random, keys, i -> (long)i, expectedReversed, actualReversed);
+                checkRandomLookups(random, keys, expectedReversed, actualReversed);
+
+                final Function<Random, Integer> intKeys = r -> (int)randomlyDistributedKey(r, distribution);
+                final TreeMap<Integer, Integer> expectedInt = new TreeMap<>();
+                final IntIntBTreeMap actualInt = IntIntBTreeMap.builder().searchStrategy(strategy).build();
+                applyRandomPutsAndRemoves(random, intKeys, i -> i, expectedInt, actualInt);
+                checkRandomLookups(random, intKeys, expectedInt, actualInt);
+            }
+
+            // The distance between these doesn't fit in a long
+            final LongLongBTreeMap extremes = LongLongBTreeMap.builder().searchStrategy(strategy).build();
+            for (long key : new long[] { Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE }) {
+                extremes.put(key, key);
+            }
+            for (long key : new long[] { Long.MIN_VALUE, -1, 0, Long.MAX_VALUE }) {
+                assertEquals(Long.valueOf(key), extremes.get(key));
+                assertEquals(key == Long.MAX_VALUE ? null : Long.valueOf(key + 1), extremes.higherKey(key));
+            }
+            assertNull(extremes.get(2));
+
+            // String leaves have a binary search of their own, which compares just the suffixes of the keys
+            final Random random = new Random(strategy.ordinal());
+            final TreeMap<String, Integer> expectedStrings = new TreeMap<>();
+            final StringBTreeMap<Integer> actualStrings = StringBTreeMap.<Integer>builder().searchStrategy(strategy).build();
+            applyRandomPutsAndRemoves(random, BTreeMapTest::randomHierarchicalKey, i -> i, expectedStrings, actualStrings);
+            checkRandomLookups(random, BTreeMapTest::randomHierarchicalKeyOrNeighbour, expectedStrings, actualStrings);
+        }
+    }
+
+    /** Keys that are evenly spread, bunched into a few small clusters, or mostly small but with some at the extremes */
+    private static long randomlyDistributedKey(Random random, int distribution) {
+        switch (distribution) {
+            case 0:  return random.nextInt(50000) * 7L;
+            case 1:  return random.nextInt(8) * 1000000L + random.nextInt(1000);
+            default: return random.nextInt(10) == 0 ? (random.nextBoolean() ? Integer.MIN_VALUE : Integer.MAX_VALUE) - random.nextInt(3)
+                                                    : (long)Math.pow(2, random.nextDouble() * 20);
+        }
+    }
+
+    /** The first three characters of the string, in the same order as the strings themselves */
+    private static long stringPrefix(String x) {
+        long result = 0;
+        for (int i = 0; i < 3; i++) {
+            result = (result << 16) | (i < x.length() ? x.charAt(i) : 0);
+        }
+
+        return result;
+    }
+
+    /** Keys that often share their first 8 bytes or more, are often shorter than that, and use the whole range of byte values */
+    private static byte[] randomByteArrayKey(Random random) {
+        final byte[] key = new byte[random.nextInt(12)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)(i < 9 ? random.nextInt(3) * 0x7F : random.nextInt(256));
+        }
+
+        return key;
+    }
+
+    private static int compareUnsigned(byte[] x, byte[] y) {
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            final int cmp = Integer.compare(x[i] & 0xFF, y[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+
+        return Integer.compare(x.length, y.length);
+    }
+
+    private static int compareSigned(byte[] x, byte[] y) {
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            final int cmp = Byte.compare(x[i], y[i]);
+            if (cmp != 0) return cmp;
+        }
+
+        return Integer.compare(x.length, y.length);
+    }
+
+    private static int valueOrMin(Map.Entry<Integer, Integer> e) {
+        return e == null ? Integer.MIN_VALUE : e.getValue();
+    }
+
+    @Test
+    public void nonDefaultFanouts() {
+        for (int[] fanouts : new int[][] { { 8, 8 }, { 32, 32 }, { 64, 64 }, { 64, 8 }, { 8, 32 } }) {
+            final Random random = new Random(fanouts[0] * 100 + fanouts[1]);
+            final TreeMap<Integer, Integer> expected = new TreeMap<>();
+            final IntIntBTreeMap unboxed = IntIntBTreeMap.builder().leafFanout(fanouts[0]).internalFanout(fanouts[1]).build();
+            final BTreeMap<Integer, Integer> boxed = BTreeMap.<Integer, Integer>builder().leafFanout(fanouts[0]).internalFanout(fanouts[1]).build();
+            applyRandomPutsAndRemoves(random, r -> r.nextInt(10000), i -> i, expected, unboxed, boxed);
+
+            // Maps of different fanouts can't share nodes, so these have to copy entries instead
+            final IntIntBTreeMap defaultFanout = IntIntBTreeMap.create();
+            defaultFanout.putAll(unboxed.splitAt(5000));
+            unboxed.putAll(defaultFanout);
+            checkMapInvariants(unboxed);
+            checkMapInvariants(defaultFanout);
+            assertEquals(expected, unboxed);
+            assertEquals(expected.tailMap(5000), defaultFanout);
+
+            try {
+                IntIntBTreeMap.concat(IntIntBTreeMap.create(), unboxed);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+
+        try {
+            BTreeMap.builder().fanout(12);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void mixedWidthLeavesWorkWhateverTheLayout() {
+        // Leaves whose keys and values differ in size are the ones that a JVM is most likely to lay out in a way that
+        // the FIELDS layout can't cope with, in which case we should quietly fall back to ARRAYS
+        final NodeLayout requested = NodeLayout.valueOf(System.getProperty(NodeLayout.PROPERTY, "FIELDS"));
+        for (NodeLayout layout : new NodeLayout[] { LongObjectBTreeMap.nodeLayout(), IntLongBTreeMap.nodeLayout(), DoubleByteBTreeMap.nodeLayout() }) {
+            assertTrue(layout == requested || layout == NodeLayout.ARRAYS);
+        }
+
+        final Random random = new Random(1337);
+        final TreeMap<Long, Integer> expectedLongObject = new TreeMap<>();
+        final TreeMap<Integer, Long> expectedIntLong = new TreeMap<>();
+        final TreeMap<Double, Byte> expectedDoubleByte = new TreeMap<>();
+        final LongObjectBTreeMap<Integer> actualLongObject = LongObjectBTreeMap.create();
+        final IntLongBTreeMap actualIntLong = IntLongBTreeMap.create();
+        final DoubleByteBTreeMap actualDoubleByte = DoubleByteBTreeMap.create();
+        for (int i = 0; i < 10000; i++) {
+            final int key = random.nextInt(5000);
+            // Boxing the arguments picks the Map.put overloads, which return null rather than a default if the key is new
+            assertEquals(expectedLongObject.put((long)key, i),         actualLongObject.put(Long.valueOf(key), Integer.valueOf(i)));
+            assertEquals(expectedIntLong   .put(key, (long)i),         actualIntLong   .put(Integer.valueOf(key), Long.valueOf(i)));
+            assertEquals(expectedDoubleByte.put((double)key, (byte)i), actualDoubleByte.put(Double.valueOf(key), Byte.valueOf((byte)i)));
+        }
+
+        assertEquals(expectedLongObject, actualLongObject);
+        assertEquals(expectedIntLong,    actualIntLong);
+        assertEquals(expectedDoubleByte, actualDoubleByte);
+    }
+
+    @Test
+    public void keySearchCountsLessOrEqual() {
+        // Covers every length up to that of the largest node, so that (if vector instructions are in use) we try both
+        // the plain loop for short nodes and the overlapping load for the last part of longer ones
+        final Random random = new Random(1337);
+        for (int n = 0; n < 2 * AbstractNode.FANOUTS[AbstractNode.FANOUTS.length - 1]; n++) {
+            final int[] ints = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                ints[i] = random.nextInt(n * 2 + 1);
+            }
+            Arrays.sort(ints, 0, n);
+
+            for (int key = -1; key <= n * 2 + 1; key++) {
+                int expected = 0;
+                while (expected < n && ints[expected] <= key) expected++;
+
+                assertEquals(expected, KeySearch.countLessOrEqual(ints, n, key));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentMapReadersSeeConsistentState() throws InterruptedException {
+        final int threads = 4, keys = 20000;
+        final ConcurrentBTreeMap<Integer, Integer> actual = ConcurrentBTreeMap.create();
+        final List<TreeMap<Integer, Integer>> expecteds = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> writers = new ArrayList<>(), readers = new ArrayList<>();
+        final java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+
+        // Each writer owns the keys congruent to its index, so the final contents of the map are deterministic.
+        // Values are always the negation of the key, so readers can tell if they see a torn entry.
+        for (int t = 0; t < threads; t++) {
+            final int owner = t;
+            final TreeMap<Integer, Integer> expected = new TreeMap<>();
+            expecteds.add(expected);
+            writers.add(new Thread(() -> {
+                final Random random = new Random(owner);
+                for (int i = 0; i < 200000; i++) {
+                    final int key = random.nextInt(keys / threads) * threads + owner;
+                    if (random.nextInt(3) == 0) {
+                        assertEquals(expected.remove(key), actual.remove(key));
+                    } else {
+                        assertEquals(expected.put(key, -key), actual.put(key, -key));
+                    }
+                }
+            }));
+        }
+
+        for (int t = 0; t < threads; t++) {
+            final boolean descending = t % 2 == 0;
+            readers.add(new Thread(() -> {
+                final Random random = new Random();
+                while (!done.get()) {
+                    final int key = random.nextInt(keys);
+                    final Integer value = actual.get(key);
+                    assertTrue(value == null || value == -key);
+
+                    final Map.Entry<Integer, Integer> ceiling = actual.ceilingEntry(key);
+                    assertTrue(ceiling == null || (ceiling.getKey() >= key && ceiling.getValue() == -ceiling.getKey()));
+
+                    Integer last = null;
+                    for (Map.Entry<Integer, Integer> e : (descending ? actual.descendingMap() : actual).tailMap(key).entrySet()) {
+                        assertEquals(-e.getKey(), (int)e.getValue());
+                        assertTrue(last == null || (descending ? e.getKey() < last : e.getKey() > last));
+                        last = e.getKey();
+                        if (random.nextInt(100) == 0) break;
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : writers) thread.setUncaughtExceptionHandler((_thread, e) -> failures.add(e));
+        for (Thread thread : readers) thread.setUncaughtExceptionHandler((_thread, e) -> failures.add(e));
+        for (Thread thread : writers) thread.start();
+        for (Thread thread : readers) thread.start();
+        for (Thread thread : writers) thread.join();
+        done.set(true);
+        for (Thread thread : readers) thread.join();
+
+        assertEquals(Collections.emptyList(), failures);
+
+        final TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (TreeMap<Integer, Integer> writerExpected : expecteds) {
+            expected.putAll(writerExpected);
+        }
+        assertEquals(expected, actual);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new ArrayList<>(expected.descendingMap().entrySet()), new ArrayList<>(actual.descendingMap().entrySet()));
+    }
+
+    @Test
+    public void concurrentMapUnlinksEmptyLeaves() throws InterruptedException {
+        // Used as a FIFO queue, the map would otherwise accumulate empty leaves at the front that every poll had to skip
+        final ConcurrentBTreeMap<Integer, Integer> queue = ConcurrentBTreeMap.create();
+        for (int i = 0; i < 200000; i++) {
+            queue.put(i, -i);
+            if (i >= 100) {
+                assertEquals(Integer.valueOf(i - 100), queue.pollFirstEntry().getKey());
+            }
+        }
+        assertEquals(100, queue.size());
+        assertEquals(Integer.valueOf(199900), queue.firstKey());
+        assertTrue(queue.nodeCount() < 20);
+
+        final ConcurrentBTreeMap<Integer, Integer> cleared = ConcurrentBTreeMap.create();
+        for (int i = 0; i < 100000; i++) {
+            cleared.put(i, -i);
+        }
+        cleared.clear();
+        assertTrue(cleared.isEmpty());
+        assertEquals(1, cleared.nodeCount());
+        cleared.put(1, -1);
+        assertEquals(Collections.singletonMap(1, -1), cleared);
+
+        // Several threads each put their own keys and poll anyone's, so that leaves empty (and are unlinked) while
+        // others are being inserted into or polled from
+        final int threads = 4, keys = 100000;
+        final ConcurrentBTreeMap<Integer, Integer> shared = ConcurrentBTreeMap.create();
+        final Set<Integer> polled = Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int owner = t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < keys; i++) {
+                    final int key = i * threads + owner;
+                    shared.put(key, -key);
+                    if (i % 4 != 0) {
+                        final Map.Entry<Integer, Integer> e = shared.pollFirstEntry();
+                        assertEquals(-e.getKey(), (int)e.getValue());
+                        assertTrue(polled.add(e.getKey()));
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : workers) thread.setUncaughtExceptionHandler((_thread, e) -> failures.add(e));
+        for (Thread thread : workers) thread.start();
+        for (Thread thread : workers) thread.join();
+
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(threads * keys, polled.size() + shared.size());
+        for (Integer key : shared.keySet()) {
+            assertFalse(polled.contains(key));
+        }
+        shared.clear();
+        assertEquals(1, shared.nodeCount());
+    }
 }
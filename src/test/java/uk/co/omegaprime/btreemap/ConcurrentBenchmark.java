@@ -0,0 +1,90 @@
+package uk.co.omegaprime.btreemap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Run with "gradle concurrentBenchmark". Several threads share one map: in the "read" group they all just look keys up,
+// while in the "readWrite" group one of them spends its time putting and removing keys, so that the readers have to
+// cope with nodes changing under them. Add e.g. "-tg 7,1" to the arguments to change how many readers there are.
+public class ConcurrentBenchmark {
+    public static final int KEYS = 1_000_000;
+
+    public enum Implementation {
+        BTREE {
+            ConcurrentNavigableMap<Integer, Integer> create() {
+                return ConcurrentBTreeMap.create();
+            }
+        },
+        SKIP_LIST {
+            ConcurrentNavigableMap<Integer, Integer> create() {
+                return new ConcurrentSkipListMap<>();
+            }
+        };
+
+        abstract ConcurrentNavigableMap<Integer, Integer> create();
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedState {
+        @Param
+        public Implementation implementation;
+
+        public ConcurrentNavigableMap<Integer, Integer> map;
+
+        @Setup(Level.Trial)
+        public void trialSetup() {
+            map = implementation.create();
+            final Random random = new Random(1337);
+            for (int i = 0; i < KEYS; i++) {
+                map.put(random.nextInt(KEYS * 2), i);
+            }
+        }
+    }
+
+    // Each thread looks up its own keys, chosen up front so that all we measure is the map operation itself
+    @State(Scope.Thread)
+    public static class ThreadState {
+        public final int[] keys = new int[4096];
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void trialSetup() {
+            final Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(KEYS * 2);
+            }
+        }
+
+        public int nextKey() {
+            next = (next + 1) & (keys.length - 1);
+            return keys[next];
+        }
+    }
+
+    @Benchmark
+    @Group("read")
+    @GroupThreads(4)
+    public Integer get(SharedState shared, ThreadState state) {
+        return shared.map.get(state.nextKey());
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Integer getWhileWriting(SharedState shared, ThreadState state) {
+        return shared.map.get(state.nextKey());
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public Integer write(SharedState shared, ThreadState state) {
+        // Putting back keys that weren't there keeps the size of the map about where it started
+        final int key = state.nextKey();
+        final Integer removed = shared.map.remove(key);
+        return removed != null ? removed : shared.map.put(key, key);
+    }
+}
@@ -0,0 +1,147 @@
+package uk.co.omegaprime.btreemap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+// Run with "gradle lookupBenchmark". The *Scalar benchmarks turn off vector instructions for searching within nodes
+// (see KeySearch), so comparing them with the others shows what they buy us. The keys to look up are chosen up front,
+// so that all we measure is the lookup itself.
+//
+// To compare the node layouts, add e.g. "-jvmArgsAppend -Dbtreemap.nodeLayout=FIELDS" (see NodeLayout).
+public class LookupBenchmark {
+    public static final int KEYS = 1_000_000;
+
+    @State(Scope.Thread)
+    public static class MyState {
+        public final IntIntBTreeMap intMap = IntIntBTreeMap.create();
+        public final LongLongBTreeMap longMap = LongLongBTreeMap.create();
+        public final LongLongBTreeMap reversedLongMap = LongLongBTreeMap.create(Collections.reverseOrder());
+        // The same order, but not one that the map recognises, so it has to call the comparator for every key
+        public final LongLongBTreeMap reversedLongMapViaComparator = LongLongBTreeMap.create((Comparator<Long>)(x, y) -> Long.compare(y, x));
+        public final IntIntBTreeMap unsignedIntMap = IntIntBTreeMap.create(IntComparator.UNSIGNED);
+        public final BTreeMap<Integer, Integer> objectMap = BTreeMap.create();
+        public final BTreeMap<Integer, Integer> prefixedObjectMap = BTreeMap.<Integer, Integer>builder().keyPrefix(Integer::longValue).build();
+        public final BTreeMap<String, Integer> stringObjectMap = BTreeMap.create();
+        public final StringBTreeMap<Integer> stringMap = StringBTreeMap.create();
+        public final BTreeMap<byte[], Integer> bytesObjectMap = BTreeMap.create((Comparator<byte[]>)ByteArrays::compareUnsigned);
+        public final BytesBTreeMap<Integer> bytesMap = BytesBTreeMap.create();
+        public final int[] keys = new int[4096];
+        public final String[] stringKeys = new String[keys.length];
+        public final byte[][] bytesKeys = new byte[keys.length][];
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void trialSetup() {
+            final Random random = new Random(1337);
+            for (int i = 0; i < KEYS; i++) {
+                final int key = random.nextInt(KEYS * 2);
+                intMap.putInt(key, i);
+                longMap.putLong(key, i);
+                reversedLongMap.putLong(key, i);
+                reversedLongMapViaComparator.putLong(key, i);
+                unsignedIntMap.putInt(key, i);
+                objectMap.put(key, i);
+                prefixedObjectMap.put(key, i);
+                stringObjectMap.put(stringKey(key), i);
+                stringMap.put(stringKey(key), i);
+                bytesObjectMap.put(bytesKey(key), i);
+                bytesMap.put(bytesKey(key), i);
+            }
+
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(KEYS * 2);
+                stringKeys[i] = stringKey(keys[i]);
+                bytesKeys[i] = bytesKey(keys[i]);
+            }
+        }
+
+        // Hierarchical identifiers, which share long prefixes with their neighbours
+        private static String stringKey(int key) {
+            return String.format("uk.co.omegaprime.services.%03d.instances.%04d", key / 10000, key % 10000);
+        }
+
+        // As a storage layer might use: a table number, then the row's ID (big-endian, so that it sorts as the ID does), then a column name
+        private static byte[] bytesKey(int key) {
+            return new byte[] { 0, (byte)(key % 3), (byte)(key >>> 24), (byte)(key >>> 16), (byte)(key >>> 8), (byte)key, 'v', 'a', 'l', 'u', 'e' };
+        }
+
+        public int nextKey() {
+            next = (next + 1) & (keys.length - 1);
+            return keys[next];
+        }
+
+        public String nextStringKey() {
+            next = (next + 1) & (keys.length - 1);
+            return stringKeys[next];
+        }
+
+        public byte[] nextBytesKey() {
+            next = (next + 1) & (keys.length - 1);
+            return bytesKeys[next];
+        }
+    }
+
+    @Benchmark
+    public int getInt(MyState state) {
+        return state.intMap.getInt(state.nextKey());
+    }
+
+    @Benchmark
+    public long getLong(MyState state) {
+        return state.longMap.getLong(state.nextKey());
+    }
+
+    @Benchmark
+    public long getLongReversed(MyState state) {
+        return state.reversedLongMap.getLong(state.nextKey());
+    }
+
+    @Benchmark
+    public long getLongReversedViaComparator(MyState state) {
+        return state.reversedLongMapViaComparator.getLong(state.nextKey());
+    }
+
+    @Benchmark
+    public int getIntUnsigned(MyState state) {
+        return state.unsignedIntMap.getInt(state.nextKey());
+    }
+
+    @Benchmark
+    public Integer getObject(MyState state) {
+        return state.objectMap.get(state.nextKey());
+    }
+
+    @Benchmark
+    public Integer getObjectPrefixed(MyState state) {
+        return state.prefixedObjectMap.get(state.nextKey());
+    }
+
+    @Benchmark
+    public Integer getStringObject(MyState state) {
+        return state.stringObjectMap.get(state.nextStringKey());
+    }
+
+    @Benchmark
+    public Integer getString(MyState state) {
+        return state.stringMap.get(state.nextStringKey());
+    }
+
+    @Benchmark
+    public Integer getBytesObject(MyState state) {
+        return state.bytesObjectMap.get(state.nextBytesKey());
+    }
+
+    @Benchmark
+    public Integer getBytes(MyState state) {
+        return state.bytesMap.get(state.nextBytesKey());
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dbtreemap.vectorSearch=false")
+    public int getIntScalar(MyState state) {
+        return state.intMap.getInt(state.nextKey());
+    }
+}
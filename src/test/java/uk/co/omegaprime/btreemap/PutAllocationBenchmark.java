@@ -0,0 +1,48 @@
+package uk.co.omegaprime.btreemap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+// Run with "gradle allocationBenchmark", which turns on the GC profiler. The interesting number is gc.alloc.rate.norm:
+// overwriting should allocate nothing at all, and inserting should allocate only the nodes created by splits, i.e.
+// roughly one node (plus, for internal nodes, its counts array) per MIN_FANOUT insertions.
+public class PutAllocationBenchmark {
+    public static final int KEYS = 1_000_000;
+
+    @State(Scope.Thread)
+    public static class MyState {
+        public final Random random = new Random();
+        public final IntIntBTreeMap warmedMap = IntIntBTreeMap.create();
+        public IntIntBTreeMap growingMap;
+        public int key;
+
+        @Setup(Level.Trial)
+        public void trialSetup() {
+            for (int i = 0; i < KEYS; i++) {
+                warmedMap.putInt(i, i);
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void iterationSetup() {
+            // Start each iteration afresh so the map doesn't grow without bound
+            growingMap = IntIntBTreeMap.create();
+        }
+
+        @Setup(Level.Invocation)
+        public void invocationSetup() {
+            key = random.nextInt(KEYS);
+        }
+    }
+
+    @Benchmark
+    public int putOverwrite(MyState state) {
+        return state.warmedMap.putInt(state.key, 1337);
+    }
+
+    @Benchmark
+    public int putInsert(MyState state) {
+        return state.growingMap.putInt(state.random.nextInt(), 1337);
+    }
+}
@@ -0,0 +1,73 @@
+package uk.co.omegaprime.btreemap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+
+// Run with "gradle searchStrategyBenchmark". Compares the SearchStrategy options on long keys which are spread evenly,
+// bunched into clusters, or spread over many orders of magnitude. The keys to look up are drawn from the same
+// distribution as those in the map, and chosen up front so that all we measure is the lookup itself.
+public class SearchStrategyBenchmark {
+    public static final int KEYS = 1_000_000;
+
+    public enum Distribution {
+        UNIFORM {
+            long nextKey(Random random) {
+                return random.nextInt(KEYS * 2);
+            }
+        },
+        CLUSTERED {
+            // 64 runs of consecutive keys, scattered over the whole range of longs
+            long nextKey(Random random) {
+                return (random.nextInt(64) * 0x9E3779B97F4A7C15L) + random.nextInt(KEYS / 16);
+            }
+        },
+        SKEWED {
+            // Most keys are small, but there are some as big as 2^40
+            long nextKey(Random random) {
+                return (long)Math.exp(random.nextDouble() * 40 * Math.log(2));
+            }
+        };
+
+        abstract long nextKey(Random random);
+    }
+
+    @State(Scope.Thread)
+    public static class MyState {
+        @Param
+        public SearchStrategy strategy;
+
+        @Param
+        public Distribution distribution;
+
+        @Param({"16", "64"})
+        public int fanout;
+
+        public LongLongBTreeMap map;
+        public final long[] keys = new long[4096];
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void trialSetup() {
+            map = LongLongBTreeMap.builder().searchStrategy(strategy).fanout(fanout).build();
+            final Random random = new Random(1337);
+            for (int i = 0; i < KEYS; i++) {
+                map.putLong(distribution.nextKey(random), i);
+            }
+
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = distribution.nextKey(random);
+            }
+        }
+
+        public long nextKey() {
+            next = (next + 1) & (keys.length - 1);
+            return keys[next];
+        }
+    }
+
+    @Benchmark
+    public long getLong(MyState state) {
+        return state.map.getLong(state.nextKey());
+    }
+}